@@ -25,19 +25,34 @@ if [ ! -d $JNI ] ; then
 fi
 
 echo "Building the Java include files"
-javah -d $INCLUDE -cp $CLASS $PKG.HashKnv25 $PKG.HashScrypt $PKG.HashSha3 || exit 1
+javah -d $INCLUDE -cp $CLASS $PKG.CpuAffinity $PKG.HashFunction $PKG.HashKnv25 $PKG.HashScrypt $PKG.HashSha3 $PKG.HashSha256 $PKG.ScratchArena || exit 1
 
-echo "Building libNxtMint_x86_64.so"
-gcc -c -O3 -m64 -fPIC -D_POSIX_C_SOURCE -I"$INCLUDE" -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/linux" -o $OBJ/JniKnv25.o $SRC/JniKnv25.c || exit 1
-gcc -c -O3 -m64 -fPIC -D_POSIX_C_SOURCE -I"$INCLUDE" -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/linux" -o $OBJ/JniScrypt.o $SRC/JniScrypt.c || exit 1
-gcc -c -O3 -m64 -fPIC -D_POSIX_C_SOURCE -I"$INCLUDE" -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/linux" -o $OBJ/JniSha3.o $SRC/JniSha3.c || exit 1
-gcc -m64 -shared -o $JNI/libNxtMint_x86_64.so $OBJ/JniKnv25.o $OBJ/JniScrypt.o $OBJ/JniSha3.o || exit 1
+#############################################
+# Build a library variant                   #
+#                                           #
+#   $1 = Library name                       #
+#   $2 = Compiler                           #
+#   $3 = Architecture options               #
+#   $4 = Instruction set options            #
+#   $5 = Instruction set check (JniLoad.c)  #
+#############################################
 
-echo "Building libNxtMint_x86.so"
-gcc -c -O3 -m32 -fPIC -D_POSIX_C_SOURCE -I"$INCLUDE" -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/linux" -o $OBJ/JniKnv25.o $SRC/JniKnv25.c || exit 1
-gcc -c -O3 -m32 -fPIC -D_POSIX_C_SOURCE -I"$INCLUDE" -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/linux" -o $OBJ/JniScrypt.o $SRC/JniScrypt.c || exit 1
-gcc -c -O3 -m32 -fPIC -D_POSIX_C_SOURCE -I"$INCLUDE" -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/linux" -o $OBJ/JniSha3.o $SRC/JniSha3.c || exit 1
-gcc -m32 -shared -o $JNI/libNxtMint_x86.so $OBJ/JniKnv25.o $OBJ/JniScrypt.o $OBJ/JniSha3.o || exit 1
+build_library() {
+    echo "Building lib$1.so"
+    for NAME in JniAffinity JniArena JniKnv25 JniScrypt JniSha3 JniSha256 ; do
+        $2 -c -O3 $3 $4 -fPIC -D_POSIX_C_SOURCE -I"$INCLUDE" -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/linux" -o $OBJ/$NAME.o $SRC/$NAME.c || exit 1
+    done
+    $2 -c -O3 $3 $5 -fPIC -D_POSIX_C_SOURCE -I"$INCLUDE" -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/linux" -o $OBJ/JniLoad.o $SRC/JniLoad.c || exit 1
+    $2 $3 -shared -o $JNI/lib$1.so $OBJ/JniAffinity.o $OBJ/JniArena.o $OBJ/JniKnv25.o $OBJ/JniScrypt.o $OBJ/JniSha3.o $OBJ/JniSha256.o $OBJ/JniLoad.o || exit 1
+}
+
+build_library NxtMint_x86_64_avx512 gcc -m64 -mavx512f -DREQUIRE_AVX512
+build_library NxtMint_x86_64_avx2 gcc -m64 "-mavx2" -DREQUIRE_AVX2
+build_library NxtMint_x86_64 gcc -m64 "-msse2"
+build_library NxtMint_x86 gcc -m32 ""
+
+if command -v aarch64-linux-gnu-gcc > /dev/null ; then
+    build_library NxtMint_aarch64 aarch64-linux-gnu-gcc "" ""
+fi
 
 exit 0
-
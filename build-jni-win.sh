@@ -33,19 +33,34 @@ if [ ! -d $JNI ] ; then
 fi
 
 echo "Building the Java include files"
-javah -d $INCLUDE -cp $CLASS $PKG.HashKnv25 $PKG.HashScrypt $PKG.HashSha3  || exit 1
+javah -d $INCLUDE -cp $CLASS $PKG.CpuAffinity $PKG.HashFunction $PKG.HashKnv25 $PKG.HashScrypt $PKG.HashSha3 $PKG.HashSha256 $PKG.ScratchArena  || exit 1
 
-echo "Building NxtMint_x86_64.dll"
-gcc -c -O3 -m64 -D_POSIX_C_SOURCE -I"$INCLUDE" -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/win32" -o $OBJ/JniKnv25.o $SRC/JniKnv25.c || exit 1
-gcc -c -O3 -m64 -D_POSIX_C_SOURCE -I"$INCLUDE" -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/win32" -o $OBJ/JniScrypt.o $SRC/JniScrypt.c || exit 1
-gcc -c -O3 -m64 -D_POSIX_C_SOURCE -I"$INCLUDE" -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/win32" -o $OBJ/JniSha3.o $SRC/JniSha3.c || exit 1
-gcc -m64 -shared -Wl,--kill-at -o $JNI/NxtMint_x86_64.dll $OBJ/JniKnv25.o $OBJ/JniScrypt.o $OBJ/JniSha3.o || exit 1
+#############################################
+# Build a library variant                   #
+#                                           #
+#   $1 = Library name                       #
+#   $2 = Linker                             #
+#   $3 = Architecture options               #
+#   $4 = Instruction set options            #
+#   $5 = Instruction set check (JniLoad.c)  #
+#                                           #
+# gcc does not keep the Windows stack       #
+# aligned for AVX registers, so the AVX     #
+# builds use unaligned vector moves.        #
+#############################################
 
-echo "Building NxtMint_x86.dll"
-gcc -c -O3 -m32 -D_POSIX_C_SOURCE -I"$INCLUDE" -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/win32" -o $OBJ/JniKnv25.o $SRC/JniKnv25.c || exit 1
-gcc -c -O3 -m32 -D_POSIX_C_SOURCE -I"$INCLUDE" -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/win32" -o $OBJ/JniScrypt.o $SRC/JniScrypt.c || exit 1
-gcc -c -O3 -m32 -D_POSIX_C_SOURCE -I"$INCLUDE" -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/win32" -o $OBJ/JniSha3.o $SRC/JniSha3.c || exit 1
-/c/mingw/bin/gcc -m32 -shared -Wl,--kill-at -o $JNI/NxtMint_x86.dll $OBJ/JniKnv25.o $OBJ/JniScrypt.o $OBJ/JniSha3.o || exit 1
+build_library() {
+    echo "Building $1.dll"
+    for NAME in JniAffinity JniArena JniKnv25 JniScrypt JniSha3 JniSha256 ; do
+        gcc -c -O3 $3 $4 -D_POSIX_C_SOURCE -I"$INCLUDE" -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/win32" -o $OBJ/$NAME.o $SRC/$NAME.c || exit 1
+    done
+    gcc -c -O3 $3 $5 -D_POSIX_C_SOURCE -I"$INCLUDE" -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/win32" -o $OBJ/JniLoad.o $SRC/JniLoad.c || exit 1
+    $2 $3 -shared -Wl,--kill-at -o $JNI/$1.dll $OBJ/JniAffinity.o $OBJ/JniArena.o $OBJ/JniKnv25.o $OBJ/JniScrypt.o $OBJ/JniSha3.o $OBJ/JniSha256.o $OBJ/JniLoad.o || exit 1
+}
 
-exit 0
+build_library NxtMint_x86_64_avx512 gcc -m64 "-mavx512f -Wa,-muse-unaligned-vector-move" -DREQUIRE_AVX512
+build_library NxtMint_x86_64_avx2 gcc -m64 "-mavx2 -Wa,-muse-unaligned-vector-move" -DREQUIRE_AVX2
+build_library NxtMint_x86_64 gcc -m64 "-msse2"
+build_library NxtMint_x86 /c/mingw/bin/gcc -m32 ""
 
+exit 0
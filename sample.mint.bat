@@ -5,5 +5,7 @@
 @REM ###################################################
 
 @echo Starting NxtMint
+@REM Add --add-modules jdk.incubator.vector to the java command to use the
+@REM Java Vector API hash functions (Java 17 or later)
 java -Xmx256m -Djava.library.path="jni" -jar NxtMint-1.7.0.jar
 
@@ -6,5 +6,7 @@
 ##################################################
 
 echo "Starting NxtMint"
+# Add --add-modules jdk.incubator.vector to the java command to use the
+# Java Vector API hash functions (Java 17 or later)
 java -Xmx256m -Djava.library.path="jni" -jar NxtMint-1.7.0.jar
 
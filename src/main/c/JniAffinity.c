@@ -0,0 +1,48 @@
+/*
+ * Copyright 2015 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * CPU worker thread placement
+ */
+#ifdef _WIN32
+#include <windows.h>
+#else
+#define _GNU_SOURCE
+#include <sched.h>
+#endif
+#include "org_ScripterRon_NxtMint_CpuAffinity.h"
+
+/**
+ * Bind the current thread to a logical processor
+ *
+ * @param       cpu             Logical processor
+ * @return                      TRUE if the thread was bound
+ */
+JNIEXPORT jboolean JNICALL Java_org_ScripterRon_NxtMint_CpuAffinity_JniSetAffinity(JNIEnv *envp, jclass class,
+                                jint cpu) {
+#ifdef _WIN32
+    if (cpu < 0 || cpu >= (jint)(8*sizeof(DWORD_PTR)))
+        return JNI_FALSE;
+    return (SetThreadAffinityMask(GetCurrentThread(), (DWORD_PTR)1 << cpu) != 0 ? JNI_TRUE : JNI_FALSE);
+#else
+    cpu_set_t cpuSet;
+    if (cpu < 0 || cpu >= CPU_SETSIZE)
+        return JNI_FALSE;
+    CPU_ZERO(&cpuSet);
+    CPU_SET(cpu, &cpuSet);
+    return (sched_setaffinity(0, sizeof(cpuSet), &cpuSet) == 0 ? JNI_TRUE : JNI_FALSE);
+#endif
+}
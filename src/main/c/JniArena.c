@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Hash function scratch memory
+ *
+ * The scratch memory is allocated directly from the operating system so it is
+ * page-aligned and is not touched until the hash function uses it.  This means the
+ * pages are allocated on the NUMA node of the worker thread that uses them.
+ *
+ * When huge pages are requested, we first try the reserved huge pages (hugetlbfs).
+ * If none are available, the memory is aligned on a huge page boundary and the
+ * kernel is asked to back it with transparent huge pages.
+ */
+#ifdef _WIN32
+#include <windows.h>
+#else
+#define _GNU_SOURCE
+#include <sys/mman.h>
+#endif
+#include <stddef.h>
+#include "org_ScripterRon_NxtMint_ScratchArena.h"
+
+/** Huge page size */
+#define HUGE_PAGE_SIZE ((size_t)2*1024*1024)
+
+/** Page types */
+#define PAGE_NORMAL         0
+#define PAGE_TRANSPARENT    1
+#define PAGE_HUGETLB        2
+
+static void releaseArena(void *arena, size_t length);
+
+/**
+ * Allocate scratch memory
+ *
+ * @param       size            Memory size
+ * @param       hugePages       TRUE to use huge pages
+ * @param       jniPageType     Returned page type
+ * @return                      Direct buffer or NULL if the memory is not available
+ */
+JNIEXPORT jobject JNICALL Java_org_ScripterRon_NxtMint_ScratchArena_JniAllocate(JNIEnv *envp, jclass class,
+                                jlong size, jboolean hugePages, jintArray jniPageType) {
+    jint pageType = PAGE_NORMAL;
+    size_t length = (size_t)size;
+    void *arena = NULL;
+#ifdef _WIN32
+    arena = VirtualAlloc(NULL, length, MEM_COMMIT|MEM_RESERVE, PAGE_READWRITE);
+#else
+    if (hugePages) {
+        length = (length+HUGE_PAGE_SIZE-1) & ~(HUGE_PAGE_SIZE-1);
+#ifdef MAP_HUGETLB
+        arena = mmap(NULL, length, PROT_READ|PROT_WRITE, MAP_PRIVATE|MAP_ANONYMOUS|MAP_HUGETLB, -1, 0);
+        if (arena == MAP_FAILED)
+            arena = NULL;
+        else
+            pageType = PAGE_HUGETLB;
+#endif
+        if (arena == NULL) {
+            //
+            // Allocate an extra huge page so we can align the arena and then
+            // release the unused memory before and after the arena
+            //
+            char *region = mmap(NULL, length+HUGE_PAGE_SIZE, PROT_READ|PROT_WRITE,
+                                MAP_PRIVATE|MAP_ANONYMOUS, -1, 0);
+            if (region != MAP_FAILED) {
+                char *aligned = (char *)(((size_t)region+HUGE_PAGE_SIZE-1) & ~(HUGE_PAGE_SIZE-1));
+                if (aligned > region)
+                    munmap(region, aligned-region);
+                if (aligned+length < region+length+HUGE_PAGE_SIZE)
+                    munmap(aligned+length, (region+length+HUGE_PAGE_SIZE)-(aligned+length));
+                arena = aligned;
+#ifdef MADV_HUGEPAGE
+                if (madvise(arena, length, MADV_HUGEPAGE) == 0)
+                    pageType = PAGE_TRANSPARENT;
+#endif
+            }
+        }
+    } else {
+        arena = mmap(NULL, length, PROT_READ|PROT_WRITE, MAP_PRIVATE|MAP_ANONYMOUS, -1, 0);
+        if (arena == MAP_FAILED)
+            arena = NULL;
+    }
+#endif
+    if (arena == NULL)
+        return NULL;
+    //
+    // Release the memory if the direct buffer can't be created (an OutOfMemoryError
+    // is pending in this case)
+    //
+    jobject buffer = (*envp)->NewDirectByteBuffer(envp, arena, (jlong)length);
+    if (buffer == NULL) {
+        releaseArena(arena, length);
+        return NULL;
+    }
+    (*envp)->SetIntArrayRegion(envp, jniPageType, 0, 1, &pageType);
+    return buffer;
+}
+
+/**
+ * Release scratch memory
+ *
+ * @param       jniArena        Direct buffer returned by JniAllocate()
+ */
+JNIEXPORT void JNICALL Java_org_ScripterRon_NxtMint_ScratchArena_JniFree(JNIEnv *envp, jclass class,
+                                jobject jniArena) {
+    void *arena = (*envp)->GetDirectBufferAddress(envp, jniArena);
+    if (arena == NULL)
+        return;
+    releaseArena(arena, (size_t)(*envp)->GetDirectBufferCapacity(envp, jniArena));
+}
+
+/**
+ * Return scratch memory to the operating system
+ *
+ * @param       arena           Memory address
+ * @param       length          Memory size
+ */
+static void releaseArena(void *arena, size_t length) {
+#ifdef _WIN32
+    VirtualFree(arena, 0, MEM_RELEASE);
+#else
+    munmap(arena, length);
+#endif
+}
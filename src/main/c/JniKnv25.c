@@ -19,6 +19,8 @@
  */
 #include <stdlib.h>
 #include <stdio.h>
+#include "JniVector.h"
+#include "JniLoad.h"
 #include "org_ScripterRon_NxtMint_HashKnv25.h"
 
 /** Addition Java<->C definitions */
@@ -41,8 +43,19 @@ static const LONG constants[] = {
     1LL
 };
 
-/** Hash function */
-static BOOLEAN doHash(ULONG *input, BYTE *target);
+/** Keccak rho offsets */
+static const int rhoOffsets[] = {
+     0,  1, 62, 28, 27,
+    36, 44,  6, 55, 20,
+     3, 10, 43, 25, 39,
+    41, 45, 15, 21,  8,
+    18,  2, 61, 56, 14
+};
+
+/** Hash functions */
+static void precompute(ULONG *input, ULONG *lanes);
+static int doHash(VULONG nonce, VULONG *round0, BYTE *target);
+static BOOLEAN checkTarget(ULONG *digest, BYTE *target);
 
 /**
  * Native Keccak25 hash function
@@ -50,41 +63,37 @@ static BOOLEAN doHash(ULONG *input, BYTE *target);
  * @param       inputBytes      Input bytes
  * @param       targetBytes     Target bytes
  * @param       initialNonce    Initial nonce
- * @Param       count           Iteration count
- * @return                      Hash result
+ * @param       count           Iteration count
+ * @param       epoch           Target epoch for this work
+ * @param       result          Returned nonce and hash count
+ * @return                      TRUE if the target was met
 */
-JNIEXPORT jobject JNICALL Java_org_ScripterRon_NxtMint_HashKnv25_JniHash(JNIEnv *envp, jclass this, 
-                                jobjectArray jniInputBytes, jobjectArray jniTargetBytes,
-                                jlong initialNonce, jint count) {     
+JNIEXPORT jboolean JNICALL Java_org_ScripterRon_NxtMint_HashKnv25_JniHash(JNIEnv *envp, jobject this,
+                                jbyteArray jniInputBytes, jbyteArray jniTargetBytes,
+                                jlong initialNonce, jint count, jlong epoch, jlongArray jniResult) {
     ULONG input[5];
+    ULONG round0[25];
+    VULONG vround0[25];
     ULONG nonce = (ULONG)initialNonce;
-    int i, offset, loop;
+    jbyte inputBytes[40];
+    jbyte targetBytes[32];
+    int i, offset, loop, lane;
     //
     // Get the input data
     //
-    jsize inputLength = (*envp)->GetArrayLength(envp, jniInputBytes);
-    if (inputLength != 40) {
-        printf("Input length is not 40 bytes\n");
-        return NULL;
-    }
-    jbyte *inputBytes = (*envp)->GetByteArrayElements(envp, jniInputBytes, NULL);
-    if (inputBytes == NULL) {
-        printf("Unable to create input buffer\n");
-        return NULL;
+    if ((*envp)->GetArrayLength(envp, jniInputBytes) != 40) {
+        (*envp)->ThrowNew(envp, illegalArgumentException, "Input length is not 40 bytes");
+        return JNI_FALSE;
     }
+    (*envp)->GetByteArrayRegion(envp, jniInputBytes, 0, 40, inputBytes);
     //
     // Get the target
     //
-    jsize targetLength = (*envp)->GetArrayLength(envp, jniTargetBytes);
-    if (targetLength != 32) {
-        printf("Target length is not 32 bytes\n");
-        return NULL;
-    }
-    jbyte *targetBytes = (*envp)->GetByteArrayElements(envp, jniTargetBytes, NULL);
-    if (targetBytes == NULL) {
-        printf("Unable to create trget buffer\n");
-        return NULL;
+    if ((*envp)->GetArrayLength(envp, jniTargetBytes) != 32) {
+        (*envp)->ThrowNew(envp, illegalArgumentException, "Target length is not 32 bytes");
+        return JNI_FALSE;
     }
+    (*envp)->GetByteArrayRegion(envp, jniTargetBytes, 0, 32, targetBytes);
     //
     // Convert the input data to an array of unsigned longs
     //
@@ -98,65 +107,152 @@ JNIEXPORT jobject JNICALL Java_org_ScripterRon_NxtMint_HashKnv25_JniHash(JNIEnv
                        (((ULONG)inputBytes[offset+6]&0xFF) << 48) | 
                        (((ULONG)inputBytes[offset+7]&0xFF) << 56);
     }
+    precompute(input, round0);
+    for (i=0; i<25; i++)
+        vround0[i] = VULONG_BROADCAST(round0[i]);
     //
-    // Iterate until we find a solution or the maximum loop count is reached
+    // Iterate until we find a solution, the maximum loop count is reached or
+    // the target epoch changes
     //
     // The nonce is stored in the first 8 bytes of the input data in
-    // little-endian format.  We will increment it for each hash pass.
+    // little-endian format.  We will increment it for each hash pass and
+    // each pass hashes ULONG_LANES consecutive nonces.  The lanes past the end of the
+    // batch are not checked since their nonces belong to the next nonce range.
     //
     int hashCount = 0;
-    BOOLEAN meetsTarget = FALSE;
-    for (loop=0; loop<count && !meetsTarget; loop++) {
-        nonce++;
-        input[0] = nonce;
-        meetsTarget = doHash(input, targetBytes);
-        hashCount++;
+    lane = -1;
+    VULONG nonces = {0};
+    for (loop=0; loop<count && lane<0 && *targetEpoch==epoch; loop+=ULONG_LANES) {
+        int laneCount = (count-loop < ULONG_LANES ? count-loop : ULONG_LANES);
+        for (i=0; i<ULONG_LANES; i++)
+            nonces[i] = nonce + i + 1;
+        lane = doHash(nonces, vround0, targetBytes);
+        if (lane >= laneCount)
+            lane = -1;
+        if (lane >= 0) {
+            nonce += lane + 1;
+            hashCount += lane + 1;
+        } else {
+            nonce += laneCount;
+            hashCount += laneCount;
+        }
     }
+    BOOLEAN meetsTarget = (lane >= 0);
     //
-    // Release the input parameters
-    //
-    (*envp)->ReleaseByteArrayElements(envp, jniInputBytes, inputBytes, 0);
-    (*envp)->ReleaseByteArrayElements(envp, jniTargetBytes, targetBytes, 0);
-    //
-    // Return the result as a JniHashResult object
+    // Return the nonce and the hash count
     //
-    jclass class = (*envp)->FindClass(envp, "org/ScripterRon/NxtMint/JniHashResult");
-    if (class == NULL) {
-        printf("JniHashResult class not found");
-        return NULL;
+    jlong result[2];
+    result[0] = (jlong)nonce;
+    result[1] = (jlong)hashCount;
+    (*envp)->SetLongArrayRegion(envp, jniResult, 0, 2, result);
+    return (jboolean)meetsTarget;
+}
+
+/**
+ * Precompute the first round lanes for the input data
+ *
+ * Only lane 0 (the nonce) changes for each hash.  The theta, rho and pi steps
+ * are linear, so the lanes are computed with a zero nonce and doHash() adds the
+ * rotated nonce to the lanes that depend on it (see KeccakRound0.java).
+ *
+ * @param       input           Input data lanes
+ * @param       lanes           Precomputed lanes in pi order
+ */
+static void precompute(ULONG *input, ULONG *lanes) {
+    ULONG state[25], C[5];
+    int i, x, y;
+    for (i=0; i<25; i++)
+        state[i] = 0;
+    for (i=1; i<5; i++)
+        state[i] = input[i];
+    state[5]  = 1;
+    state[16] = 0x8000000000000000ULL;
+    // theta(state)
+    for (x=0; x<5; x++)
+        C[x] = state[x] ^ state[x+5] ^ state[x+10] ^ state[x+15] ^ state[x+20];
+    for (x=0; x<5; x++) {
+        ULONG dX = ((C[(x+1)%5] << 1) | (C[(x+1)%5] >> 63)) ^ C[(x+4)%5];
+        for (y=0; y<5; y++)
+            state[x+5*y] ^= dX;
     }
-    jmethodID mid = (*envp)->GetMethodID(envp, class, "<init>", "(ZJI)V");
-    if (mid == NULL) {
-        printf("JniHashResult method not found");
-        return NULL;
+    // rho(state) and pi(state)
+    for (x=0; x<5; x++) {
+        for (y=0; y<5; y++) {
+            int index = x+5*y;
+            int offset = rhoOffsets[index];
+            lanes[y+5*((2*x+3*y)%5)] = (offset!=0 ?
+                (state[index] << offset) | (state[index] >> (64-offset)) : state[index]);
+        }
     }
-    jobject result = (*envp)->NewObject(envp, class, mid, 
-                     (jboolean)meetsTarget, (jlong)nonce, (jint)hashCount);
-    return result;
 }
 
 /**
- * Perform a single hash
- * 
- * @param       input           Input data
+ * Hash the nonces in each vector lane
+ *
+ * @param       nonce           Nonces
+ * @param       round0          Precomputed first round lanes
  * @param       target          Target
- * @return                      TRUE if the target was met
+ * @return                      Index of the first lane that met the target or -1
  */
-static BOOLEAN doHash(ULONG *input, BYTE *target) {
-    ULONG state0, state1, state2, state3, state4, state5, state6, state7, 
-          state8, state9, state10, state11, state12, state13, state14, state15, 
-          state16, state17, state18, state19, state20, state21, state22, state23, state24;
-    int i, j;
-    state0 = input[0];  state1 = input[1];
-    state2 = input[2];  state3 = input[3];
-    state4 = input[4];
-    state5 = 1;   state6 = 0;   state7 = 0;   state8 = 0;   state9 = 0;
-    state10 = 0;  state11 = 0;  state12 = 0;  state13 = 0;  state14 = 0;
-    state15 = 0;  state16 = 0x8000000000000000LL;           
-    state17 = 0;  state18 = 0;  state19 = 0;  state20 = 0;  state21 = 0;
-    state22 = 0;  state23 = 0;  state24 = 0;
-    for (i=0; i<25;) {
-        ULONG t1, t2, t3, t4, t5, t6, t7, t8, t9, t10, t11, t12, t13, t14, t15, t16, t17, t18, t19;            
+static int doHash(VULONG nonce, VULONG *round0, BYTE *target) {
+    VULONG c0, c1, c2, c3, c4;
+    int i;
+    c0 = round0[0] ^ nonce;
+    c1 = round0[1] ^ ((nonce << 44) | (nonce >> (64-44)));
+    c2 = round0[2];
+    c3 = round0[3];
+    c4 = round0[4] ^ ((nonce << 15) | (nonce >> (64-15)));
+    VULONG state0 = c0 ^ (~c1 & c2) ^ (ULONG)constants[0];
+    VULONG state1 = c1 ^ (~c2 & c3);
+    VULONG state2 = c2 ^ (~c3 & c4);
+    VULONG state3 = c3 ^ (~c4 & c0);
+    VULONG state4 = c4 ^ (~c0 & c1);
+
+    c0 = round0[5];
+    c1 = round0[6] ^ ((nonce << 21) | (nonce >> (64-21)));
+    c2 = round0[7];
+    c3 = round0[8] ^ ((nonce << 45) | (nonce >> (64-45)));
+    c4 = round0[9];
+    VULONG state5 = c0 ^ (~c1 & c2);
+    VULONG state6 = c1 ^ (~c2 & c3);
+    VULONG state7 = c2 ^ (~c3 & c4);
+    VULONG state8 = c3 ^ (~c4 & c0);
+    VULONG state9 = c4 ^ (~c0 & c1);
+
+    c0 = round0[10] ^ ((nonce << 1) | (nonce >> (64-1)));
+    c1 = round0[11];
+    c2 = round0[12];
+    c3 = round0[13] ^ ((nonce << 9) | (nonce >> (64-9)));
+    c4 = round0[14];
+    VULONG state10 = c0 ^ (~c1 & c2);
+    VULONG state11 = c1 ^ (~c2 & c3);
+    VULONG state12 = c2 ^ (~c3 & c4);
+    VULONG state13 = c3 ^ (~c4 & c0);
+    VULONG state14 = c4 ^ (~c0 & c1);
+
+    c0 = round0[15] ^ ((nonce << 28) | (nonce >> (64-28)));
+    c1 = round0[16];
+    c2 = round0[17] ^ ((nonce << 10) | (nonce >> (64-10)));
+    c3 = round0[18];
+    c4 = round0[19];
+    VULONG state15 = c0 ^ (~c1 & c2);
+    VULONG state16 = c1 ^ (~c2 & c3);
+    VULONG state17 = c2 ^ (~c3 & c4);
+    VULONG state18 = c3 ^ (~c4 & c0);
+    VULONG state19 = c4 ^ (~c0 & c1);
+
+    c0 = round0[20];
+    c1 = round0[21];
+    c2 = round0[22] ^ ((nonce << 40) | (nonce >> (64-40)));
+    c3 = round0[23];
+    c4 = round0[24] ^ ((nonce << 2) | (nonce >> (64-2)));
+    VULONG state20 = c0 ^ (~c1 & c2);
+    VULONG state21 = c1 ^ (~c2 & c3);
+    VULONG state22 = c2 ^ (~c3 & c4);
+    VULONG state23 = c3 ^ (~c4 & c0);
+    VULONG state24 = c4 ^ (~c0 & c1);
+    for (i=1; i<25;) {
+        VULONG t1, t2, t3, t4, t5, t6, t7, t8, t9, t10, t11, t12, t13, t14, t15, t16, t17, t18, t19;            
         t1 = state0 ^ state5 ^ state10 ^ state15 ^ state20;
         t2 = state2 ^ state7 ^ state12 ^ state17 ^ state22;
         t3 = t1 ^ ((t2 << 1) | (t2 >> (64-1)));
@@ -262,20 +358,30 @@ static BOOLEAN doHash(ULONG *input, BYTE *target) {
         state24 ^= ((~t13) & t18);
     }    
     //
-    // Check if we met the target
+    // Check if any of the lanes met the target
     //
+    for (i=0; i<ULONG_LANES; i++) {
+        ULONG digest[4] = {state0[i], state1[i], state2[i], state3[i]};
+        if (checkTarget(digest, target))
+            return i;
+    }
+    return -1;
+}
+
+/**
+ * Check if the digest meets the target
+ *
+ * @param       digest          First 4 digest lanes
+ * @param       target          Target
+ * @return                      TRUE if the target was met
+ */
+static BOOLEAN checkTarget(ULONG *digest, BYTE *target) {
+    int i, j;
     BOOLEAN isSolved = TRUE;
     BOOLEAN keepChecking = TRUE;
     ULONG check;
     for (i=3; i>=0 && keepChecking; i--) {
-        if (i == 0)
-            check = state0;
-        else if (i == 1)
-            check = state1;
-        else if (i == 2)
-            check = state2;
-        else
-            check = state3;
+        check = digest[i];
         for (j=7; j>=0 && keepChecking; j--) {
             int b0 = (int)(check>>(j*8))&0xff;
             int b1 = (int)(target[i*8+j])&0xff;
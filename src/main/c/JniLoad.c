@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Native library initialization
+ *
+ * The native library is built for several instruction sets and HashFunction
+ * tries to load the variants from the fastest to the slowest.  A variant refuses
+ * to load if the processor does not support the instruction set it was compiled
+ * for (REQUIRE_AVX2 or REQUIRE_AVX512).  This file is always compiled for the
+ * baseline instruction set so the check can run on any processor.
+ *
+ * The JNI class references used by the hash functions are cached here so they
+ * don't need to be looked up for each hash call.
+ */
+#include "JniLoad.h"
+#include "org_ScripterRon_NxtMint_HashFunction.h"
+
+/** IllegalArgumentException class (global reference) */
+jclass illegalArgumentException;
+
+/** Target epoch used until HashFunction provides the shared epoch */
+static volatile jlong initialEpoch = 0;
+
+/** Current target epoch (shared with HashFunction) */
+volatile jlong *targetEpoch = &initialEpoch;
+
+/**
+ * Library load processing
+ *
+ * @param       vm              Java virtual machine
+ * @param       reserved        Reserved
+ * @return                      Required JNI version or JNI_ERR if the library can't be used
+ */
+JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
+#if defined(REQUIRE_AVX512) || defined(REQUIRE_AVX2)
+    __builtin_cpu_init();
+#endif
+#if defined(REQUIRE_AVX512)
+    if (!__builtin_cpu_supports("avx512f"))
+        return JNI_ERR;
+#elif defined(REQUIRE_AVX2)
+    if (!__builtin_cpu_supports("avx2"))
+        return JNI_ERR;
+#endif
+    JNIEnv *envp;
+    if ((*vm)->GetEnv(vm, (void **)&envp, JNI_VERSION_1_6) != JNI_OK)
+        return JNI_ERR;
+    jclass class = (*envp)->FindClass(envp, "java/lang/IllegalArgumentException");
+    if (class == NULL)
+        return JNI_ERR;
+    illegalArgumentException = (*envp)->NewGlobalRef(envp, class);
+    (*envp)->DeleteLocalRef(envp, class);
+    if (illegalArgumentException == NULL)
+        return JNI_ERR;
+    return JNI_VERSION_1_6;
+}
+
+/**
+ * Set the shared target epoch
+ *
+ * @param       epochBuffer     Direct buffer containing the target epoch
+ */
+JNIEXPORT void JNICALL Java_org_ScripterRon_NxtMint_HashFunction_JniInit(JNIEnv *envp, jclass class,
+                                jobject epochBuffer) {
+    jlong *epoch = (*envp)->GetDirectBufferAddress(envp, epochBuffer);
+    if (epoch == NULL) {
+        (*envp)->ThrowNew(envp, illegalArgumentException, "Target epoch buffer is not valid");
+        return;
+    }
+    targetEpoch = epoch;
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2015 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * JNI references cached when the native library is loaded
+ *
+ * The hash functions return the nonce and hash count in a long[] owned by the
+ * Java hash function, so no Java objects are created by a hash call and the
+ * only class reference needed is for reporting errors.
+ *
+ * The target epoch is stored in a direct buffer owned by HashFunction.  The hash
+ * loops compare it with the epoch for their work and stop as soon as a new
+ * target has been dispatched.
+ */
+#ifndef JNI_LOAD_H
+#define JNI_LOAD_H
+
+#include <jni.h>
+
+/** IllegalArgumentException class (global reference) */
+extern jclass illegalArgumentException;
+
+/** Current target epoch (shared with HashFunction) */
+extern volatile jlong *targetEpoch;
+
+#endif
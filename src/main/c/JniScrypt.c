@@ -16,10 +16,18 @@
 
 /**
  * SCRYPT hash algorithm for Monetary System currencies
+ *
+ * UINT_LANES consecutive nonces are hashed at the same time with one nonce in
+ * each vector lane (see JniVector.h).  Each lane has its own scratchpad block in
+ * the pad buffer.  The PBKDF2 steps use HMAC-SHA256 where the HMAC key is the
+ * 40-byte input data, so the input pad and output pad states are computed once
+ * for each nonce and then reused for the five HMAC operations.
  */
 #include <stdlib.h>
 #include <stdio.h>
 #include <memory.h>
+#include "JniVector.h"
+#include "JniLoad.h"
 #include "org_ScripterRon_NxtMint_HashScrypt.h"
 
 /** Addition Java<->C definitions */
@@ -33,22 +41,15 @@ typedef unsigned char      BOOLEAN;
 #define TRUE  1
 #define FALSE 0
 
-/** SHA-256 digest */
-typedef struct {
-    UINT    DH[8];
-    UINT    DX[64];
-    INT     xOff;
-    INT     xByteCount;
-} Digest;
-
 /** SCRYPT state */
 typedef struct {
-    Digest  digest;             // HMAC digest
-    Digest  ipadDigest;         // Input pad digest
-    Digest  opadDigest;         // Output pad digest
-    BYTE    B[132];             // Work buffer
-    UINT    V[32*1024];         // Pad buffer
-    UINT    X[32];              // Block mixer
+    VUINT   keyWords[10];       // HMAC key (input data words)
+    VUINT   ipadState[8];       // Input pad digest
+    VUINT   opadState[8];       // Output pad digest
+    VUINT   H[8];               // SHA-256 hash state
+    VUINT   W[64];              // SHA-256 message schedule
+    VUINT   X[32];              // Block mixer
+    VUINT   V[32*1024];         // Pad buffer
 } State;
 
 /** SHA-256 constants */
@@ -63,22 +64,23 @@ static const UINT K[] = {
     0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
 };
 
+/** SHA-256 initial hash values */
+static const UINT H0[] = {
+    0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+};
+
 /** Hash function */
-static BOOLEAN doHash(BYTE *input, BYTE *target, ULONG nonce, State *state);
-static void xorSalsa2(State *state);
+static int doHash(State *state, UINT *target);
+static void xorSalsa2(VUINT *X);
 #define rotateLeft(x, y) (((x)<<(y)) | ((x)>>(32-y)))
+#define byteSwap(x) ((((x)&0xff)<<24) | (((x)&0xff00)<<8) | (((x)>>8)&0xff00) | ((x)>>24))
 
 /** HMAC functions */
 static void initMac(State *state);
-static void finishMac(BYTE *out, State *state);
-
-/** SHA-256 functions */
-static void updateDigest(BYTE *buffer, int inOff, int inLen, Digest *digest);
-static void finishDigest(BYTE *out, Digest *digest);
-static void resetDigest(Digest * digest);
+static void finishMac(State *state);
 
 /** SHA-256 helper functions */
-static void processBlock(Digest *digest);
+static void processBlock(State *state);
 #define Ch(x, y, z)  (((x) & (y)) ^ ((~(x)) & (z)))
 #define Maj(x, y, z) (((x) & (y)) ^ ((x) & (z)) ^ ((y) & (z)))
 #define Sum0(x) ((((x)>>2) | ((x)<<30)) ^ (((x)>>13) | ((x)<<19)) ^ (((x)>>22) | ((x)<<10)))
@@ -90,199 +92,228 @@ static void processBlock(Digest *digest);
  * @param       inputBytes      Input bytes
  * @param       targetBytes     Target bytes
  * @param       initialNonce    Initial nonce
- * @Param       count           Iteration count
- * @return                      Hash result
+ * @param       count           Iteration count
+ * @param       epoch           Target epoch for this work
+ * @param       result          Returned nonce and hash count
+ * @param       stateBuffer     Scrypt state (direct buffer of at least JniStateSize() bytes)
+ * @return                      TRUE if the target was met
 */
-JNIEXPORT jobject JNICALL Java_org_ScripterRon_NxtMint_HashScrypt_JniHash(JNIEnv *envp, jclass this,
-                                jobjectArray jniInputBytes, jobjectArray jniTargetBytes,
-                                jlong initialNonce, jint count) {
+JNIEXPORT jboolean JNICALL Java_org_ScripterRon_NxtMint_HashScrypt_JniHash(JNIEnv *envp, jobject this,
+                                jbyteArray jniInputBytes, jbyteArray jniTargetBytes,
+                                jlong initialNonce, jint count, jlong epoch, jlongArray jniResult,
+                                jobject jniState) {
+    UINT target[8];
     ULONG nonce = (ULONG)initialNonce;
-    int loop;
+    jbyte inputBytes[40];
+    jbyte targetBytes[32];
+    int i, loop, lane;
     //
     // Get the input data
     //
-    jsize inputLength = (*envp)->GetArrayLength(envp, jniInputBytes);
-    if (inputLength != 40) {
-        printf("Input length is not 40 bytes\n");
-        return NULL;
-    }
-    jbyte *inputBytes = (*envp)->GetByteArrayElements(envp, jniInputBytes, NULL);
-    if (inputBytes == NULL) {
-        printf("Unable to create input buffer\n");
-        return NULL;
+    if ((*envp)->GetArrayLength(envp, jniInputBytes) != 40) {
+        (*envp)->ThrowNew(envp, illegalArgumentException, "Input length is not 40 bytes");
+        return JNI_FALSE;
     }
+    (*envp)->GetByteArrayRegion(envp, jniInputBytes, 0, 40, inputBytes);
     //
     // Get the target
     //
-    jsize targetLength = (*envp)->GetArrayLength(envp, jniTargetBytes);
-    if (targetLength != 32) {
-        printf("Target length is not 32 bytes\n");
-        return NULL;
-    }
-    jbyte *targetBytes = (*envp)->GetByteArrayElements(envp, jniTargetBytes, NULL);
-    if (targetBytes == NULL) {
-        printf("Unable to create trget buffer\n");
-        return NULL;
+    if ((*envp)->GetArrayLength(envp, jniTargetBytes) != 32) {
+        (*envp)->ThrowNew(envp, illegalArgumentException, "Target length is not 32 bytes");
+        return JNI_FALSE;
     }
+    (*envp)->GetByteArrayRegion(envp, jniTargetBytes, 0, 32, targetBytes);
     //
-    // Allocate the Scrypt state
+    // Get the Scrypt state (aligned on a vector boundary).  The state is a scratch
+    // arena owned by the Java hash function and is reused for each call (see JniArena.c).
     //
-    State *state = malloc(sizeof(State));
-    if (state == NULL) {
-        printf("Unable to allocate Scrypt state storage");
-        return NULL;
+    BYTE *stateBuffer = (*envp)->GetDirectBufferAddress(envp, jniState);
+    if (stateBuffer == NULL ||
+            (*envp)->GetDirectBufferCapacity(envp, jniState) < (jlong)(sizeof(State)+VECTOR_SIZE)) {
+        (*envp)->ThrowNew(envp, illegalArgumentException, "Scrypt state buffer is not valid");
+        return JNI_FALSE;
     }
+    State *state = (State *)(((size_t)stateBuffer+VECTOR_SIZE-1) & ~(size_t)(VECTOR_SIZE-1));
     //
-    // Iterate until we find a solution or the maximum loop count is reached
+    // Build the constant part of the HMAC key (the SHA-256 algorithm is big-endian)
     //
-    // The nonce is stored in the first 8 bytes of the input data in
-    // little-endian format.  We will increment it for each hash pass.
+    for (i=2; i<10; i++)
+        state->keyWords[i] = VUINT_BROADCAST((((UINT)inputBytes[i*4]&0xff)<<24) |
+                                             (((UINT)inputBytes[i*4+1]&0xff)<<16) |
+                                             (((UINT)inputBytes[i*4+2]&0xff)<<8) |
+                                             ((UINT)inputBytes[i*4+3]&0xff));
     //
-    int hashCount = 0;
-    BOOLEAN meetsTarget = FALSE;
-    for (loop=0; loop<count && !meetsTarget; loop++) {
-        nonce++;
-        meetsTarget = doHash(inputBytes, targetBytes, nonce, state);
-        hashCount++;
-    }
+    // The digest and the target are treated as 32-byte unsigned numbers in little-endian format
     //
-    // Release the input parameters
+    for (i=0; i<8; i++)
+        target[i] = ((UINT)targetBytes[i*4]&0xff) | (((UINT)targetBytes[i*4+1]&0xff)<<8) |
+                    (((UINT)targetBytes[i*4+2]&0xff)<<16) | (((UINT)targetBytes[i*4+3]&0xff)<<24);
     //
-    (*envp)->ReleaseByteArrayElements(envp, jniInputBytes, inputBytes, 0);
-    (*envp)->ReleaseByteArrayElements(envp, jniTargetBytes, targetBytes, 0);
+    // Iterate until we find a solution, the maximum loop count is reached or
+    // the target epoch changes
     //
-    // Return the result as a JniHashResult object
+    // The nonce is stored in the first 8 bytes of the input data in
+    // little-endian format.  We will increment it for each hash pass and
+    // each pass hashes UINT_LANES consecutive nonces.  The lanes past the end of the
+    // batch are not checked since their nonces belong to the next nonce range.
     //
-    jclass class = (*envp)->FindClass(envp, "org/ScripterRon/NxtMint/JniHashResult");
-    if (class == NULL) {
-        printf("JniHashResult class not found");
-        return NULL;
-    }
-    jmethodID mid = (*envp)->GetMethodID(envp, class, "<init>", "(ZJI)V");
-    if (mid == NULL) {
-        printf("JniHashResult method not found");
-        return NULL;
+    int hashCount = 0;
+    lane = -1;
+    for (loop=0; loop<count && lane<0 && *targetEpoch==epoch; loop+=UINT_LANES) {
+        int laneCount = (count-loop < UINT_LANES ? count-loop : UINT_LANES);
+        for (i=0; i<UINT_LANES; i++) {
+            ULONG laneNonce = nonce + i + 1;
+            state->keyWords[0][i] = byteSwap((UINT)laneNonce);
+            state->keyWords[1][i] = byteSwap((UINT)(laneNonce>>32));
+        }
+        lane = doHash(state, target);
+        if (lane >= laneCount)
+            lane = -1;
+        if (lane >= 0) {
+            nonce += lane + 1;
+            hashCount += lane + 1;
+        } else {
+            nonce += laneCount;
+            hashCount += laneCount;
+        }
     }
-    jobject result = (*envp)->NewObject(envp, class, mid,
-                     (jboolean)meetsTarget, (jlong)nonce, (jint)hashCount);
+    BOOLEAN meetsTarget = (lane >= 0);
     //
-    // Release the Scrypt state
+    // Return the nonce and the hash count
     //
-    free(state);
-    return result;
+    jlong result[2];
+    result[0] = (jlong)nonce;
+    result[1] = (jlong)hashCount;
+    (*envp)->SetLongArrayRegion(envp, jniResult, 0, 2, result);
+    return (jboolean)meetsTarget;
 }
 
 /**
- * Perform a single hash
+ * Return the size of the Scrypt state buffer
  *
- * @param       input           Input data
- * @param       target          Target
- * @param       nonce           Nonce
- * @param       state           Global state
- * @return                      TRUE if the target was met
+ * @return                      Buffer size
  */
-static BOOLEAN doHash(BYTE *input, BYTE *target, ULONG nonce, State *state) {
-    int i, j;
-    //
-    // Initialize B from the input data
-    //
-    // The nonce is stored in the first 8 bytes of the input data
+JNIEXPORT jint JNICALL Java_org_ScripterRon_NxtMint_HashScrypt_JniStateSize(JNIEnv *envp, jclass class) {
+    return (jint)(sizeof(State)+VECTOR_SIZE);
+}
+
+/**
+ * Hash the nonces in each vector lane
+ *
+ * @param       state           Scrypt state with the HMAC key set
+ * @param       target          Target words
+ * @return                      Index of the first lane that met the target or -1
+ */
+static int doHash(State *state, UINT *target) {
+    VUINT *W = state->W;
+    VUINT *X = state->X;
+    VUINT *V = state->V;
+    int i, j, k, lane;
     //
-    state->B[0] = (BYTE)nonce;
-    state->B[1] = (BYTE)(nonce>>8);
-    state->B[2] = (BYTE)(nonce>>16);
-    state->B[3] = (BYTE)(nonce>>24);
-    state->B[4] = (BYTE)(nonce>>32);
-    state->B[5] = (BYTE)(nonce>>40);
-    state->B[6] = (BYTE)(nonce>>48);
-    state->B[7] = (BYTE)(nonce>>56);
-    memcpy(&state->B[8], &input[8], 40-8);
-    memset(&state->B[40], 0, 132-40);
+    // B = PBKDF2(input, input || INT(i))
     //
-    // Initialize state
+    // Each message is the 40-byte input data followed by the 32-bit block index,
+    // so it fits in a single block following the 64-byte input pad.
     //
     initMac(state);
     for (i=0; i<4; i++) {
-        BYTE H[32];
-        state->B[43] = (BYTE)(i + 1);
-        updateDigest(state->B, 0, 44, &state->digest);
-        finishMac(H, state);
-        for (j=0; j<8; j++) {
-            state->X[i*8+j] = ((UINT)H[j*4+0]&0xff) |
-                              (((UINT)H[j*4+1]&0xff)<<8) |
-                              (((UINT)H[j*4+2]&0xff)<<16) |
-                              (((UINT)H[j*4+3]&0xff)<<24);
-        }
+        memcpy(state->H, state->ipadState, 8*sizeof(VUINT));
+        memcpy(W, state->keyWords, 10*sizeof(VUINT));
+        W[10] = VUINT_BROADCAST(i + 1);
+        W[11] = VUINT_BROADCAST(0x80000000U);
+        W[12] = VUINT_BROADCAST(0);
+        W[13] = VUINT_BROADCAST(0);
+        W[14] = VUINT_BROADCAST(0);
+        W[15] = VUINT_BROADCAST((64 + 44) * 8);
+        processBlock(state);
+        finishMac(state);
+        for (j=0; j<8; j++)
+            X[i*8+j] = byteSwap(state->H[j]);
     }
     //
-    // Perform the hashes
+    // Perform the hashes.  Each lane uses a different scratchpad block in the
+    // second loop, so the lanes are XOR'ed one at a time.
     //
     for (i=0; i<1024; i++) {
-        memcpy(&state->V[i*32], state->X, 32*sizeof(UINT));
-        xorSalsa2(state);
+        memcpy(&V[i*32], X, 32*sizeof(VUINT));
+        xorSalsa2(X);
     }
     for (i=0; i<1024; i++) {
-        int k = (state->X[16]&1023)*32;
-        for (j=0; j<32; j++)
-            state->X[j] ^= state->V[k+j];
-        xorSalsa2(state);
-    }
-    for (i=0; i<32; i++) {
-        state->B[i*4+0] = (BYTE)(state->X[i]);
-        state->B[i*4+1] = (BYTE)(state->X[i] >> 8);
-        state->B[i*4+2] = (BYTE)(state->X[i] >> 16);
-        state->B[i*4+3] = (BYTE)(state->X[i] >> 24);
+        for (lane=0; lane<UINT_LANES; lane++) {
+            k = (X[16][lane]&1023)*32;
+            for (j=0; j<32; j++)
+                X[j][lane] ^= V[k+j][lane];
+        }
+        xorSalsa2(X);
     }
-    state->B[128+3] = 1;
-    updateDigest(state->B, 0, 132, &state->digest);
-    BYTE digest[32];
-    finishMac(digest, state);
-    //
-    // Save the digest if it satisfies the target.  Note that the digest and the target
-    // are treated as 32-byte unsigned numbers in little-endian format.
-    //
-    BOOLEAN keepChecking = TRUE;
-    BOOLEAN isSolved = TRUE;
-    for (i=31; i>=0 && keepChecking; i--) {
-        int b0 = (int)digest[i]&0xff;
-        int b1 = (int)target[i]&0xff;
-        if (b0 < b1) {
-            keepChecking = FALSE;
-        } else if (b0 > b1) {
-            keepChecking = FALSE;
-            isSolved = FALSE;
+    //
+    // H = PBKDF2(input, X || INT(1))
+    //
+    // X is stored in little-endian format, so each word is byte-swapped to form
+    // the big-endian message words.  The 132-byte message needs 3 blocks.
+    //
+    memcpy(state->H, state->ipadState, 8*sizeof(VUINT));
+    for (i=0; i<16; i++)
+        W[i] = byteSwap(X[i]);
+    processBlock(state);
+    for (i=0; i<16; i++)
+        W[i] = byteSwap(X[i+16]);
+    processBlock(state);
+    W[0] = VUINT_BROADCAST(1);
+    W[1] = VUINT_BROADCAST(0x80000000U);
+    for (i=2; i<15; i++)
+        W[i] = VUINT_BROADCAST(0);
+    W[15] = VUINT_BROADCAST((64 + 132) * 8);
+    processBlock(state);
+    finishMac(state);
+    //
+    // Check if any of the lanes met the target.  Each digest word is big-endian, so it
+    // needs to be byte-swapped before comparing it to the little-endian target word.
+    //
+    for (lane=0; lane<UINT_LANES; lane++) {
+        BOOLEAN keepChecking = TRUE;
+        BOOLEAN isSolved = TRUE;
+        for (i=7; i>=0 && keepChecking; i--) {
+            UINT check = byteSwap(state->H[i][lane]);
+            if (check < target[i]) {
+                keepChecking = FALSE;
+            } else if (check > target[i]) {
+                keepChecking = FALSE;
+                isSolved = FALSE;
+            }
         }
+        if (isSolved)
+            return lane;
     }
-    return isSolved;
+    return -1;
 }
 
 /**
  * Scrypt blockmix
  *
- * @param       state           Global state
+ * @param       X               Block mixer
  */
-static inline void xorSalsa2(State * state) {
+static inline void xorSalsa2(VUINT *X) {
     int i;
-    UINT value;
     //
     //  Process X[0]-X[15] and X[16]-X[31]
     //
-    UINT x00 = state->X[0] ^= state->X[16+0];
-    UINT x01 = state->X[1] ^= state->X[16+1];
-    UINT x02 = state->X[2] ^= state->X[16+2];
-    UINT x03 = state->X[3] ^= state->X[16+3];
-    UINT x04 = state->X[4] ^= state->X[16+4];
-    UINT x05 = state->X[5] ^= state->X[16+5];
-    UINT x06 = state->X[6] ^= state->X[16+6];
-    UINT x07 = state->X[7] ^= state->X[16+7];
-    UINT x08 = state->X[8] ^= state->X[16+8];
-    UINT x09 = state->X[9] ^= state->X[16+9];
-    UINT x10 = state->X[10] ^= state->X[16+10];
-    UINT x11 = state->X[11] ^= state->X[16+11];
-    UINT x12 = state->X[12] ^= state->X[16+12];
-    UINT x13 = state->X[13] ^= state->X[16+13];
-    UINT x14 = state->X[14] ^= state->X[16+14];
-    UINT x15 = state->X[15] ^= state->X[16+15];
+    VUINT x00 = X[0] ^= X[16+0];
+    VUINT x01 = X[1] ^= X[16+1];
+    VUINT x02 = X[2] ^= X[16+2];
+    VUINT x03 = X[3] ^= X[16+3];
+    VUINT x04 = X[4] ^= X[16+4];
+    VUINT x05 = X[5] ^= X[16+5];
+    VUINT x06 = X[6] ^= X[16+6];
+    VUINT x07 = X[7] ^= X[16+7];
+    VUINT x08 = X[8] ^= X[16+8];
+    VUINT x09 = X[9] ^= X[16+9];
+    VUINT x10 = X[10] ^= X[16+10];
+    VUINT x11 = X[11] ^= X[16+11];
+    VUINT x12 = X[12] ^= X[16+12];
+    VUINT x13 = X[13] ^= X[16+13];
+    VUINT x14 = X[14] ^= X[16+14];
+    VUINT x15 = X[15] ^= X[16+15];
     //
     // 4x4 matrix: 0   1   2   3
     //             4   5   6   7
@@ -331,33 +362,33 @@ static inline void xorSalsa2(State * state) {
         x14 ^= rotateLeft(x13+x12, 13);
         x15 ^= rotateLeft(x14+x13, 18);
     }
-    state->X[0] += x00;   state->X[1] += x01;
-    state->X[2] += x02;   state->X[3] += x03;
-    state->X[4] += x04;   state->X[5] += x05;
-    state->X[6] += x06;   state->X[7] += x07;
-    state->X[8] += x08;   state->X[9] += x09;
-    state->X[10] += x10;  state->X[11] += x11;
-    state->X[12] += x12;  state->X[13] += x13;
-    state->X[14] += x14;  state->X[15] += x15;
+    X[0] += x00;   X[1] += x01;
+    X[2] += x02;   X[3] += x03;
+    X[4] += x04;   X[5] += x05;
+    X[6] += x06;   X[7] += x07;
+    X[8] += x08;   X[9] += x09;
+    X[10] += x10;  X[11] += x11;
+    X[12] += x12;  X[13] += x13;
+    X[14] += x14;  X[15] += x15;
     //
     //  Process X[16]-X[31] and X[0]-X[15]
     //
-    x00 = state->X[16+0] ^= state->X[0];
-    x01 = state->X[16+1] ^= state->X[1];
-    x02 = state->X[16+2] ^= state->X[2];
-    x03 = state->X[16+3] ^= state->X[3];
-    x04 = state->X[16+4] ^= state->X[4];
-    x05 = state->X[16+5] ^= state->X[5];
-    x06 = state->X[16+6] ^= state->X[6];
-    x07 = state->X[16+7] ^= state->X[7];
-    x08 = state->X[16+8] ^= state->X[8];
-    x09 = state->X[16+9] ^= state->X[9];
-    x10 = state->X[16+10] ^= state->X[10];
-    x11 = state->X[16+11] ^= state->X[11];
-    x12 = state->X[16+12] ^= state->X[12];
-    x13 = state->X[16+13] ^= state->X[13];
-    x14 = state->X[16+14] ^= state->X[14];
-    x15 = state->X[16+15] ^= state->X[15];
+    x00 = X[16+0] ^= X[0];
+    x01 = X[16+1] ^= X[1];
+    x02 = X[16+2] ^= X[2];
+    x03 = X[16+3] ^= X[3];
+    x04 = X[16+4] ^= X[4];
+    x05 = X[16+5] ^= X[5];
+    x06 = X[16+6] ^= X[6];
+    x07 = X[16+7] ^= X[7];
+    x08 = X[16+8] ^= X[8];
+    x09 = X[16+9] ^= X[9];
+    x10 = X[16+10] ^= X[10];
+    x11 = X[16+11] ^= X[11];
+    x12 = X[16+12] ^= X[12];
+    x13 = X[16+13] ^= X[13];
+    x14 = X[16+14] ^= X[14];
+    x15 = X[16+15] ^= X[15];
     for (i=0; i<8; i+=2) {
             // Column 0-4-8-12
         x04 ^= rotateLeft(x00+x12, 7);
@@ -400,231 +431,126 @@ static inline void xorSalsa2(State * state) {
         x14 ^= rotateLeft(x13+x12, 13);
         x15 ^= rotateLeft(x14+x13, 18);
     }
-    state->X[16+0] += x00;  state->X[16+1] += x01;
-    state->X[16+2] += x02;  state->X[16+3] += x03;
-    state->X[16+4] += x04;  state->X[16+5] += x05;
-    state->X[16+6] += x06;  state->X[16+7] += x07;
-    state->X[16+8] += x08;  state->X[16+9] += x09;
-    state->X[16+10] += x10; state->X[16+11] += x11;
-    state->X[16+12] += x12; state->X[16+13] += x13;
-    state->X[16+14] += x14; state->X[16+15] += x15;
+    X[16+0] += x00;  X[16+1] += x01;
+    X[16+2] += x02;  X[16+3] += x03;
+    X[16+4] += x04;  X[16+5] += x05;
+    X[16+6] += x06;  X[16+7] += x07;
+    X[16+8] += x08;  X[16+9] += x09;
+    X[16+10] += x10; X[16+11] += x11;
+    X[16+12] += x12; X[16+13] += x13;
+    X[16+14] += x14; X[16+15] += x15;
 }
 
 /**
  * Initialize the MAC
  *
+ * The 40-byte key is shorter than the SHA-256 block size, so it is padded
+ * with zeroes and each pad is a single block.
+ *
  * @param       state           SCRYPT state
  */
 static void initMac(State *state) {
-    BYTE        inputPad[64];
-    BYTE        outputBuf[64];
-    //
-    // Reset the SHA-256 digest
-    //
-    resetDigest(&state->digest);
-    //
-    // Initialize the HMAC buffers
-    //
     int i;
-    for (i=0; i<40; i++) {
-        outputBuf[i] = state->B[i] ^ (BYTE)0x5c;
-        inputPad[i] = state->B[i] ^ (BYTE)0x36;
-    }
-    for (i=40; i<64; i++) {
-        outputBuf[i] = (BYTE)0x5c;
-        inputPad[i] = (BYTE)0x36;
-    }
-    //
-    // Save the output digest to improve HMAC reset performance
-    //
-    memcpy(&state->opadDigest, &state->digest, sizeof(Digest));
-    updateDigest(outputBuf, 0, 64, &state->opadDigest);
     //
-    // Save the input digest to improve HMAC reset performance
-    //
-    updateDigest(inputPad, 0, 64, &state->digest);
-    memcpy(&state->ipadDigest, &state->digest, sizeof(Digest));
+    // Save the input pad digest
+    //
+    for (i=0; i<8; i++)
+        state->H[i] = VUINT_BROADCAST(H0[i]);
+    for (i=0; i<10; i++)
+        state->W[i] = state->keyWords[i] ^ 0x36363636U;
+    for (i=10; i<16; i++)
+        state->W[i] = VUINT_BROADCAST(0x36363636U);
+    processBlock(state);
+    memcpy(state->ipadState, state->H, 8*sizeof(VUINT));
+    //
+    // Save the output pad digest
+    //
+    for (i=0; i<8; i++)
+        state->H[i] = VUINT_BROADCAST(H0[i]);
+    for (i=0; i<10; i++)
+        state->W[i] = state->keyWords[i] ^ 0x5c5c5c5cU;
+    for (i=10; i<16; i++)
+        state->W[i] = VUINT_BROADCAST(0x5c5c5c5cU);
+    processBlock(state);
+    memcpy(state->opadState, state->H, 8*sizeof(VUINT));
 }
 
 /**
  * Finish the MAC
  *
- * @param       out             32-byte output buffer
- * @param       state           SCRYPT state
- */
-static void finishMac(BYTE *out, State *state) {
-    //
-    // Finish the current digest
-    //
-    finishDigest(out, &state->digest);
-    //
-    // Hash the digest output using the saved opad digest
-    //
-    memcpy(&state->digest, &state->opadDigest, sizeof(Digest));
-    updateDigest(out, 0, 32, &state->digest);
-    //
-    // Finish the MAC digest
-    //
-    finishDigest(out, &state->digest);
-    //
-    // Reset the MAC digest from the saved ipad digest
-    //
-    memcpy(&state->digest, &state->ipadDigest, sizeof(Digest));
-}
-
-/**
- * Reset the SHA-256 digest
- *
- * @param       digest          SHA-256 digest
- */
-static void resetDigest(Digest *digest) {
-    digest->DH[0] = 0x6a09e667;
-    digest->DH[1] = 0xbb67ae85;
-    digest->DH[2] = 0x3c6ef372;
-    digest->DH[3] = 0xa54ff53a;
-    digest->DH[4] = 0x510e527f;
-    digest->DH[5] = 0x9b05688c;
-    digest->DH[6] = 0x1f83d9ab;
-    digest->DH[7] = 0x5be0cd19;
-    digest->xOff = 0;
-    memset(digest->DX, 0, 64*sizeof(UINT));
-    digest->xByteCount = 0;
-}
-
-/**
- * Update the digest
+ * The inner digest is in the hash state and is replaced by the HMAC result
  *
- * @param       buffer          Data buffer
- * @param       inOff           Offset to start of data
- * @param       inLen           Data length (must be multiple of 4)
- * @param       digest          SHA-256 digest
- */
-static void updateDigest(BYTE *buffer, int inOff, int inLen, Digest *digest) {
-    int len = inLen;
-    int offset = inOff;
-    //
-    // Process whole words
-    //
-    while (len>0) {
-        digest->DX[digest->xOff++] = (((UINT)buffer[offset]&0xff)<<24) |
-                                     (((UINT)buffer[offset+1]&0xff)<<16) |
-                                     (((UINT)buffer[offset+2]&0xff)<<8) |
-                                     ((UINT)buffer[offset+3]&0xff);
-        if (digest->xOff == 16)
-            processBlock(digest);
-        offset += 4;
-        len -= 4;
-        digest->xByteCount += 4;
-    }
-}
-
-/**
- * Finish the digest
- *
- * @param       out         Digest output buffer (32 bytes)
- * @param       digest      SHA-256 digest
+ * @param       state           SCRYPT state
  */
-static void finishDigest(BYTE *out, Digest *digest) {
-    LONG bitLength = ((LONG)digest->xByteCount<<3);
-    //
-    // Add the pad bytes
-    //
-    // The first byte is 0x80 followed by 0x00.  The last two bytes
-    // contain the data length in bits
-    //
-    digest->DX[digest->xOff++] = 0x80000000U;
-    if (digest->xOff > 14)
-        processBlock(digest);
-    digest->DX[14] = (UINT)(bitLength >> 32);
-    digest->DX[15] = (UINT)bitLength;
-    //
-    // Process the last block
-    //
-    processBlock(digest);
-    //
-    // Convert the digest to bytes in big-endian format
-    //
+static void finishMac(State *state) {
     int i;
-    for (i=0; i<8; i++) {
-        out[i*4] =   (BYTE)(digest->DH[i] >> 24);
-        out[i*4+1] = (BYTE)(digest->DH[i] >> 16);
-        out[i*4+2] = (BYTE)(digest->DH[i] >> 8);
-        out[i*4+3] = (BYTE)(digest->DH[i]);
-    }
-    //
-    // Reset the digest
-    //
-    resetDigest(digest);
+    memcpy(state->W, state->H, 8*sizeof(VUINT));
+    state->W[8] = VUINT_BROADCAST(0x80000000U);
+    for (i=9; i<15; i++)
+        state->W[i] = VUINT_BROADCAST(0);
+    state->W[15] = VUINT_BROADCAST((64 + 32) * 8);
+    memcpy(state->H, state->opadState, 8*sizeof(VUINT));
+    processBlock(state);
 }
 
 /**
  * Process a 16-word block
  *
- * @param       digest          SHA-256 digest
+ * @param       state           SCRYPT state
  */
-static void processBlock(Digest *digest) {
-    int t, i;
+static void processBlock(State *state) {
+    VUINT *W = state->W;
+    int t;
     for (t=16; t<64; t++) {
-        UINT x = digest->DX[t-15];
-        UINT r0 = ((x>>7) | (x<<25)) ^ ((x>>18) | (x<<14)) ^ (x>>3);
-        x = digest->DX[t-2];
-        UINT r1 = ((x>>17) | (x<<15)) ^ ((x>>19) | (x<<13)) ^ (x>>10);
-        digest->DX[t] = r1 + digest->DX[t-7] + r0 + digest->DX[t-16];
+        VUINT x = W[t-15];
+        VUINT r0 = ((x>>7) | (x<<25)) ^ ((x>>18) | (x<<14)) ^ (x>>3);
+        x = W[t-2];
+        VUINT r1 = ((x>>17) | (x<<15)) ^ ((x>>19) | (x<<13)) ^ (x>>10);
+        W[t] = r1 + W[t-7] + r0 + W[t-16];
     }
-    UINT a = digest->DH[0];  UINT b = digest->DH[1];
-    UINT c = digest->DH[2];  UINT d = digest->DH[3];
-    UINT e = digest->DH[4];  UINT f = digest->DH[5];
-    UINT g = digest->DH[6];  UINT h = digest->DH[7];
-    t = 0;
-    for(i=0; i<8; i ++) {
-        h += Sum1(e) + Ch(e, f, g) + K[t] + digest->DX[t];
+    VUINT a = state->H[0];  VUINT b = state->H[1];
+    VUINT c = state->H[2];  VUINT d = state->H[3];
+    VUINT e = state->H[4];  VUINT f = state->H[5];
+    VUINT g = state->H[6];  VUINT h = state->H[7];
+    for (t=0; t<64; t+=8) {
+        h += Sum1(e) + Ch(e, f, g) + K[t] + W[t];
         d += h;
         h += Sum0(a) + Maj(a, b, c);
-        ++t;
 
-        g += Sum1(d) + Ch(d, e, f) + K[t] + digest->DX[t];
+        g += Sum1(d) + Ch(d, e, f) + K[t+1] + W[t+1];
         c += g;
         g += Sum0(h) + Maj(h, a, b);
-        ++t;
 
-        f += Sum1(c) + Ch(c, d, e) + K[t] + digest->DX[t];
+        f += Sum1(c) + Ch(c, d, e) + K[t+2] + W[t+2];
         b += f;
         f += Sum0(g) + Maj(g, h, a);
-        ++t;
 
-        e += Sum1(b) + Ch(b, c, d) + K[t] + digest->DX[t];
+        e += Sum1(b) + Ch(b, c, d) + K[t+3] + W[t+3];
         a += e;
         e += Sum0(f) + Maj(f, g, h);
-        ++t;
 
-        d += Sum1(a) + Ch(a, b, c) + K[t] + digest->DX[t];
+        d += Sum1(a) + Ch(a, b, c) + K[t+4] + W[t+4];
         h += d;
         d += Sum0(e) + Maj(e, f, g);
-        ++t;
 
-        c += Sum1(h) + Ch(h, a, b) + K[t] + digest->DX[t];
+        c += Sum1(h) + Ch(h, a, b) + K[t+5] + W[t+5];
         g += c;
         c += Sum0(d) + Maj(d, e, f);
-        ++t;
 
-        b += Sum1(g) + Ch(g, h, a) + K[t] + digest->DX[t];
+        b += Sum1(g) + Ch(g, h, a) + K[t+6] + W[t+6];
         f += b;
         b += Sum0(c) + Maj(c, d, e);
-        ++t;
 
-        a += Sum1(f) + Ch(f, g, h) + K[t] + digest->DX[t];
+        a += Sum1(f) + Ch(f, g, h) + K[t+7] + W[t+7];
         e += a;
         a += Sum0(b) + Maj(b, c, d);
-        ++t;
     }
-    digest->DH[0] += a;
-    digest->DH[1] += b;
-    digest->DH[2] += c;
-    digest->DH[3] += d;
-    digest->DH[4] += e;
-    digest->DH[5] += f;
-    digest->DH[6] += g;
-    digest->DH[7] += h;
-    digest->xOff = 0;
-    memset(digest->DX, 0, 16*sizeof(UINT));
+    state->H[0] += a;
+    state->H[1] += b;
+    state->H[2] += c;
+    state->H[3] += d;
+    state->H[4] += e;
+    state->H[5] += f;
+    state->H[6] += g;
+    state->H[7] += h;
 }
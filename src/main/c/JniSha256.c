@@ -0,0 +1,228 @@
+/*
+ * Copyright 2015 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * SHA-256 hash algorithm for Monetary System currencies
+ *
+ * The 40-byte input data fits in a single SHA-256 block and only the first
+ * 8 bytes (the nonce) change for each hash.  So the padded message schedule
+ * is built once and just W[0] and W[1] are replaced for each nonce.
+ */
+#include <stdlib.h>
+#include <stdio.h>
+#include <memory.h>
+#include "JniLoad.h"
+#include "org_ScripterRon_NxtMint_HashSha256.h"
+
+/** Addition Java<->C definitions */
+typedef unsigned char      BYTE;
+typedef int                INT;
+typedef unsigned int       UINT;
+typedef long long          LONG;
+typedef unsigned long long ULONG;
+typedef unsigned char      BOOLEAN;
+
+#define TRUE  1
+#define FALSE 0
+
+/** SHA-256 constants */
+static const UINT K[] = {
+    0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+    0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+    0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+    0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+    0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+    0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+    0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+    0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+};
+
+/** SHA-256 initial hash values */
+static const UINT H[] = {
+    0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+};
+
+/** Hash function */
+static BOOLEAN doHash(UINT *W, UINT *target);
+
+/** SHA-256 helper functions */
+#define rotateRight(x, c) (((x)>>(c)) | ((x)<<(32-(c))))
+#define byteSwap(x) ((((x)&0xff)<<24) | (((x)&0xff00)<<8) | (((x)>>8)&0xff00) | ((x)>>24))
+#define Ch(x, y, z)  (((x) & (y)) ^ ((~(x)) & (z)))
+#define Maj(x, y, z) (((x) & (y)) ^ ((x) & (z)) ^ ((y) & (z)))
+#define Sum0(x) (rotateRight(x, 2) ^ rotateRight(x, 13) ^ rotateRight(x, 22))
+#define Sum1(x) (rotateRight(x, 6) ^ rotateRight(x, 11) ^ rotateRight(x, 25))
+#define sigma0(x) (rotateRight(x, 7) ^ rotateRight(x, 18) ^ ((x)>>3))
+#define sigma1(x) (rotateRight(x, 17) ^ rotateRight(x, 19) ^ ((x)>>10))
+
+/**
+ * Native SHA-256 hash function
+ *
+ * @param       inputBytes      Input bytes
+ * @param       targetBytes     Target bytes
+ * @param       initialNonce    Initial nonce
+ * @param       count           Iteration count
+ * @param       epoch           Target epoch for this work
+ * @param       result          Returned nonce and hash count
+ * @return                      TRUE if the target was met
+*/
+JNIEXPORT jboolean JNICALL Java_org_ScripterRon_NxtMint_HashSha256_JniHash(JNIEnv *envp, jobject this,
+                                jbyteArray jniInputBytes, jbyteArray jniTargetBytes,
+                                jlong initialNonce, jint count, jlong epoch, jlongArray jniResult) {
+    UINT W[64];
+    UINT target[8];
+    ULONG nonce = (ULONG)initialNonce;
+    jbyte inputBytes[40];
+    jbyte targetBytes[32];
+    int i, loop;
+    //
+    // Get the input data
+    //
+    if ((*envp)->GetArrayLength(envp, jniInputBytes) != 40) {
+        (*envp)->ThrowNew(envp, illegalArgumentException, "Input length is not 40 bytes");
+        return JNI_FALSE;
+    }
+    (*envp)->GetByteArrayRegion(envp, jniInputBytes, 0, 40, inputBytes);
+    //
+    // Get the target
+    //
+    if ((*envp)->GetArrayLength(envp, jniTargetBytes) != 32) {
+        (*envp)->ThrowNew(envp, illegalArgumentException, "Target length is not 32 bytes");
+        return JNI_FALSE;
+    }
+    (*envp)->GetByteArrayRegion(envp, jniTargetBytes, 0, 32, targetBytes);
+    //
+    // Build the constant part of the message schedule (the SHA-256 algorithm is big-endian)
+    //
+    // SHA-256 processes data in 64-byte blocks where the data bit count
+    // is stored in the last 8 bytes in big-endian format.  The first pad
+    // byte is 0x80 and the remaining pad bytes are 0x00.  Since we have
+    // 40 bytes of data, the data bit count is 320 (0x140).
+    //
+    for (i=2; i<10; i++)
+        W[i] = (((UINT)inputBytes[i*4]&0xff)<<24) | (((UINT)inputBytes[i*4+1]&0xff)<<16) |
+               (((UINT)inputBytes[i*4+2]&0xff)<<8) | ((UINT)inputBytes[i*4+3]&0xff);
+    W[10] = 0x80000000U;
+    W[11] = 0;  W[12] = 0;  W[13] = 0;  W[14] = 0;
+    W[15] = 320;
+    //
+    // The digest and the target are treated as 32-byte unsigned numbers in little-endian format
+    //
+    for (i=0; i<8; i++)
+        target[i] = ((UINT)targetBytes[i*4]&0xff) | (((UINT)targetBytes[i*4+1]&0xff)<<8) |
+                    (((UINT)targetBytes[i*4+2]&0xff)<<16) | (((UINT)targetBytes[i*4+3]&0xff)<<24);
+    //
+    // Iterate until we find a solution, the maximum loop count is reached or
+    // the target epoch changes
+    //
+    // The nonce is stored in the first 8 bytes of the input data in
+    // little-endian format.  We will increment it for each hash pass.
+    //
+    int hashCount = 0;
+    BOOLEAN meetsTarget = FALSE;
+    for (loop=0; loop<count && !meetsTarget && *targetEpoch==epoch; loop++) {
+        nonce++;
+        W[0] = byteSwap((UINT)nonce);
+        W[1] = byteSwap((UINT)(nonce>>32));
+        meetsTarget = doHash(W, target);
+        hashCount++;
+    }
+    //
+    // Return the nonce and the hash count
+    //
+    jlong result[2];
+    result[0] = (jlong)nonce;
+    result[1] = (jlong)hashCount;
+    (*envp)->SetLongArrayRegion(envp, jniResult, 0, 2, result);
+    return (jboolean)meetsTarget;
+}
+
+/**
+ * Perform a single hash
+ *
+ * @param       W               Message schedule with W[0]-W[15] set
+ * @param       target          Target words
+ * @return                      TRUE if the target was met
+ */
+static BOOLEAN doHash(UINT *W, UINT *target) {
+    int t, i;
+    //
+    // Expand the message schedule
+    //
+    for (t=16; t<64; t++)
+        W[t] = sigma1(W[t-2]) + W[t-7] + sigma0(W[t-15]) + W[t-16];
+    //
+    // Compress the block
+    //
+    UINT a = H[0];  UINT b = H[1];
+    UINT c = H[2];  UINT d = H[3];
+    UINT e = H[4];  UINT f = H[5];
+    UINT g = H[6];  UINT h = H[7];
+    for (t=0; t<64; t+=8) {
+        h += Sum1(e) + Ch(e, f, g) + K[t] + W[t];
+        d += h;
+        h += Sum0(a) + Maj(a, b, c);
+
+        g += Sum1(d) + Ch(d, e, f) + K[t+1] + W[t+1];
+        c += g;
+        g += Sum0(h) + Maj(h, a, b);
+
+        f += Sum1(c) + Ch(c, d, e) + K[t+2] + W[t+2];
+        b += f;
+        f += Sum0(g) + Maj(g, h, a);
+
+        e += Sum1(b) + Ch(b, c, d) + K[t+3] + W[t+3];
+        a += e;
+        e += Sum0(f) + Maj(f, g, h);
+
+        d += Sum1(a) + Ch(a, b, c) + K[t+4] + W[t+4];
+        h += d;
+        d += Sum0(e) + Maj(e, f, g);
+
+        c += Sum1(h) + Ch(h, a, b) + K[t+5] + W[t+5];
+        g += c;
+        c += Sum0(d) + Maj(d, e, f);
+
+        b += Sum1(g) + Ch(g, h, a) + K[t+6] + W[t+6];
+        f += b;
+        b += Sum0(c) + Maj(c, d, e);
+
+        a += Sum1(f) + Ch(f, g, h) + K[t+7] + W[t+7];
+        e += a;
+        a += Sum0(b) + Maj(b, c, d);
+    }
+    UINT digest[8];
+    digest[0] = a + H[0];  digest[1] = b + H[1];
+    digest[2] = c + H[2];  digest[3] = d + H[3];
+    digest[4] = e + H[4];  digest[5] = f + H[5];
+    digest[6] = g + H[6];  digest[7] = h + H[7];
+    //
+    // Check if we met the target.  Each digest word is big-endian, so it needs to be
+    // byte-swapped before comparing it to the little-endian target word.
+    //
+    BOOLEAN isSolved = TRUE;
+    BOOLEAN keepChecking = TRUE;
+    for (i=7; i>=0 && keepChecking; i--) {
+        UINT check = byteSwap(digest[i]);
+        if (check < target[i]) {
+            keepChecking = FALSE;
+        } else if (check > target[i]) {
+            isSolved = FALSE;
+            keepChecking = FALSE;
+        }
+    }
+    return isSolved;
+}
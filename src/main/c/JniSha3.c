@@ -21,11 +21,15 @@
  * from http://keccak.noekeon.org/
  *
  * The code has been optimized for SHA3-256 with rate=1088 and capacity=512.
- * It will not work for any other values.
+ * It will not work for any other values.  The permutation is unrolled in the
+ * same way as the KECCAK25 hash function and the first round is precomputed
+ * for the input data.
  */
 #include <stdlib.h>
 #include <stdio.h>
 #include <memory.h>
+#include "JniVector.h"
+#include "JniLoad.h"
 #include "org_ScripterRon_NxtMint_HashSha3.h"
 
 /** Addition Java<->C definitions */
@@ -60,11 +64,10 @@ static const UINT KeccakRhoOffsets[] = {
     0x00000012U, 0x00000002U, 0x0000003DU, 0x00000038U, 0x0000000EU
 };
 
-/** Hash function */
-static BOOLEAN doHash(BYTE *input, BYTE *target);
-
-/** Helper functions */
-#define rotateLeft(x, c) (((x)<<(c)) ^ ((x)>>(64-(c))))
+/** Hash functions */
+static void precompute(ULONG *input, ULONG *lanes);
+static int doHash(VULONG nonce, VULONG *round0, BYTE *target);
+static BOOLEAN checkTarget(ULONG *digest, BYTE *target);
 
 /**
  * Native SHA3-256 hash function
@@ -72,164 +75,325 @@ static BOOLEAN doHash(BYTE *input, BYTE *target);
  * @param       inputBytes          Input bytes
  * @param       targetBytes         Target bytes
  * @param       initialNonce        Initial nonce
- * @Param       count               Iteration count
- * @return                          Hash result
+ * @param       count               Iteration count
+ * @param       epoch               Target epoch for this work
+ * @param       result              Returned nonce and hash count
+ * @return                          TRUE if the target was met
 */
-JNIEXPORT jobject JNICALL Java_org_ScripterRon_NxtMint_HashSha3_JniHash(JNIEnv *envp, jclass this,
-                                jobjectArray jniInputBytes, jobjectArray jniTargetBytes,
-                                jlong initialNonce, jint count) {
+JNIEXPORT jboolean JNICALL Java_org_ScripterRon_NxtMint_HashSha3_JniHash(JNIEnv *envp, jobject this,
+                                jbyteArray jniInputBytes, jbyteArray jniTargetBytes,
+                                jlong initialNonce, jint count, jlong epoch, jlongArray jniResult) {
+    ULONG input[5];
+    ULONG round0[25];
+    VULONG vround0[25];
     ULONG nonce = (ULONG)initialNonce;
+    jbyte inputBytes[40];
+    ULONG target[4];
+    jbyte *targetBytes = (jbyte *)target;
+    int i, offset, loop, lane;
     //
     // Get the input data
     //
-    jsize inputLength = (*envp)->GetArrayLength(envp, jniInputBytes);
-    if (inputLength != 40) {
-        printf("Input length is not 40 bytes\n");
-        return NULL;
+    if ((*envp)->GetArrayLength(envp, jniInputBytes) != 40) {
+        (*envp)->ThrowNew(envp, illegalArgumentException, "Input length is not 40 bytes");
+        return JNI_FALSE;
     }
-    jbyte *inputBytes = (*envp)->GetByteArrayElements(envp, jniInputBytes, NULL);
-    if (inputBytes == NULL) {
-        printf("Unable to create input buffer\n");
-        return NULL;
-    }
-    BYTE input[40];
-    memcpy(input, inputBytes, 40);
+    (*envp)->GetByteArrayRegion(envp, jniInputBytes, 0, 40, inputBytes);
     //
     // Get the target
     //
-    jsize targetLength = (*envp)->GetArrayLength(envp, jniTargetBytes);
-    if (targetLength != 32) {
-        printf("Target length is not 32 bytes\n");
-        return NULL;
+    if ((*envp)->GetArrayLength(envp, jniTargetBytes) != 32) {
+        (*envp)->ThrowNew(envp, illegalArgumentException, "Target length is not 32 bytes");
+        return JNI_FALSE;
     }
-    jbyte *targetBytes = (*envp)->GetByteArrayElements(envp, jniTargetBytes, NULL);
-    if (targetBytes == NULL) {
-        printf("Unable to create trget buffer\n");
-        return NULL;
+    (*envp)->GetByteArrayRegion(envp, jniTargetBytes, 0, 32, targetBytes);
+    //
+    // Convert the input data to an array of unsigned longs and precompute the first round
+    //
+    for (i=0, offset=0; i<5; i++, offset+=8) {
+        input[i] = ((ULONG)inputBytes[offset]&0xFF) |
+                       (((ULONG)inputBytes[offset+1]&0xFF) << 8) |
+                       (((ULONG)inputBytes[offset+2]&0xFF) << 16) |
+                       (((ULONG)inputBytes[offset+3]&0xFF) << 24) |
+                       (((ULONG)inputBytes[offset+4]&0xFF) << 32) |
+                       (((ULONG)inputBytes[offset+5]&0xFF) << 40) |
+                       (((ULONG)inputBytes[offset+6]&0xFF) << 48) |
+                       (((ULONG)inputBytes[offset+7]&0xFF) << 56);
     }
+    precompute(input, round0);
+    for (i=0; i<25; i++)
+        vround0[i] = VULONG_BROADCAST(round0[i]);
     //
-    // Iterate until we find a solution or the maximum loop count is reached
+    // Iterate until we find a solution, the maximum loop count is reached or
+    // the target epoch changes
     //
     // The nonce is stored in the first 8 bytes of the input data in
-    // little-endian format.  We will increment it for each hash pass.
+    // little-endian format.  We will increment it for each hash pass and
+    // each pass hashes ULONG_LANES consecutive nonces.  The lanes past the end of the
+    // batch are not checked since their nonces belong to the next nonce range.
     //
     int hashCount = 0;
-    BOOLEAN meetsTarget = FALSE;
-    int loop;
-    for (loop=0; loop<count && !meetsTarget; loop++) {
-        nonce++;
-        input[0] = (BYTE)(nonce);
-        input[1] = (BYTE)(nonce>>8);
-        input[2] = (BYTE)(nonce>>16);
-        input[3] = (BYTE)(nonce>>24);
-        input[4] = (BYTE)(nonce>>32);
-        input[5] = (BYTE)(nonce>>40);
-        input[6] = (BYTE)(nonce>>48);
-        input[7] = (BYTE)(nonce>>56);
-        meetsTarget = doHash(input, targetBytes);
-        hashCount++;
+    lane = -1;
+    VULONG nonces = {0};
+    for (loop=0; loop<count && lane<0 && *targetEpoch==epoch; loop+=ULONG_LANES) {
+        int laneCount = (count-loop < ULONG_LANES ? count-loop : ULONG_LANES);
+        for (i=0; i<ULONG_LANES; i++)
+            nonces[i] = nonce + i + 1;
+        lane = doHash(nonces, vround0, targetBytes);
+        if (lane >= laneCount)
+            lane = -1;
+        if (lane >= 0) {
+            nonce += lane + 1;
+            hashCount += lane + 1;
+        } else {
+            nonce += laneCount;
+            hashCount += laneCount;
+        }
     }
+    BOOLEAN meetsTarget = (lane >= 0);
     //
-    // Release the input parameters
-    //
-    (*envp)->ReleaseByteArrayElements(envp, jniInputBytes, inputBytes, 0);
-    (*envp)->ReleaseByteArrayElements(envp, jniTargetBytes, targetBytes, 0);
-    //
-    // Return the result as a JniHashResult object
+    // Return the nonce and the hash count
     //
-    jclass class = (*envp)->FindClass(envp, "org/ScripterRon/NxtMint/JniHashResult");
-    if (class == NULL) {
-        printf("JniHashResult class not found");
-        return NULL;
-    }
-    jmethodID mid = (*envp)->GetMethodID(envp, class, "<init>", "(ZJI)V");
-    if (mid == NULL) {
-        printf("JniHashResult method not found");
-        return NULL;
-    }
-    jobject result = (*envp)->NewObject(envp, class, mid,
-                     (jboolean)meetsTarget, (jlong)nonce, (jint)hashCount);
-    return result;
+    jlong result[2];
+    result[0] = (jlong)nonce;
+    result[1] = (jlong)hashCount;
+    (*envp)->SetLongArrayRegion(envp, jniResult, 0, 2, result);
+    return (jboolean)meetsTarget;
 }
 
 /**
- * Perform a single SHA3-256 hash.  The Keccak rate is 1088 and the
- * capacity is 512 (yielding a 32-byte digest).
+ * Precompute the first round lanes for the input data
  *
- * @param       input               Input data
- * @param       target              Target data
- * @return                          TRUE if the target was met
+ * Only lane 0 (the nonce) changes for each hash.  The theta, rho and pi steps
+ * are linear, so the lanes are computed with a zero nonce and doHash() adds the
+ * rotated nonce to the lanes that depend on it (see KeccakRound0.java).
+ *
+ * @param       input           Input data lanes
+ * @param       lanes           Precomputed lanes in pi order
  */
-static BOOLEAN doHash(BYTE *input, BYTE *target) {
-    ULONG state[25];
-    //
-    // Initialize the state from the input data
-    //
-    int i;
-    for (i=0; i<5; i++)
-        state[i] =  ((ULONG)input[i*8+0]&0xff)      | (((ULONG)input[i*8+1]&0xff)<<8) |
-                   (((ULONG)input[i*8+2]&0xff)<<16) | (((ULONG)input[i*8+3]&0xff)<<24) |
-                   (((ULONG)input[i*8+4]&0xff)<<32) | (((ULONG)input[i*8+5]&0xff)<<40) |
-                   (((ULONG)input[i*8+6]&0xff)<<48) | (((ULONG)input[i*8+7]&0xff)<<56);
-    for (i=5; i<25; i++)
+static void precompute(ULONG *input, ULONG *lanes) {
+    ULONG state[25], C[5];
+    int i, x, y;
+    for (i=0; i<25; i++)
         state[i] = 0;
-    state[5]  = 0x0000000000000001UL;
-    state[16] = 0x8000000000000000UL;
-    //
-    // Perform the Keccak permutations
-    //
-    for (i=0; i<24; i++) {
-        // theta(state))
-        ULONG C[5];
-        int x, y;
-        for (x=0; x<5; x++) {
-            C[x] = 0;
-            for (y=0; y<5; y++)
-                C[x] ^= state[x+5*y];
-        }
-        for (x=0; x<5; x++) {
-            ULONG dX = rotateLeft(C[(x+1)%5], 1) ^ C[(x+4)%5];
-            for (y=0; y<5; y++)
-                state[x+5*y] ^= dX;
-        }
-        // rho(state)
-        for (x=0; x<5; x++) {
-            for (y=0; y<5; y++) {
-                int index = x+5*y;
-                state[index] = (KeccakRhoOffsets[index]!=0 ?
-                    rotateLeft(state[index], KeccakRhoOffsets[index]) : state[index]);
-            }
-        }
-        // pi(state)
-        ULONG tempA[25];
-        memcpy(tempA, state, 25*sizeof(ULONG));
-        for (x=0; x<5; x++) {
-            for (y=0; y<5; y++)
-                state[y+5 * ((2*x + 3*y) % 5)] = tempA[x+5*y];
-        }
-        // chi(state)
-        ULONG chiC[5];
+    for (i=1; i<5; i++)
+        state[i] = input[i];
+    state[5]  = 1;
+    state[16] = 0x8000000000000000ULL;
+    // theta(state)
+    for (x=0; x<5; x++)
+        C[x] = state[x] ^ state[x+5] ^ state[x+10] ^ state[x+15] ^ state[x+20];
+    for (x=0; x<5; x++) {
+        ULONG dX = ((C[(x+1)%5] << 1) | (C[(x+1)%5] >> 63)) ^ C[(x+4)%5];
+        for (y=0; y<5; y++)
+            state[x+5*y] ^= dX;
+    }
+    // rho(state) and pi(state)
+    for (x=0; x<5; x++) {
         for (y=0; y<5; y++) {
-            for (x=0; x<5; x++)
-                chiC[x] = state[x+5*y] ^ ((~state[(((x+1)%5)+5*y)]) & state[(((x+2)%5)+5*y)]);
-            for (x=0; x<5; x++)
-                state[x+5*y] = chiC[x];
+            int index = x+5*y;
+            int offset = KeccakRhoOffsets[index];
+            lanes[y+5*((2*x+3*y)%5)] = (offset!=0 ?
+                (state[index] << offset) | (state[index] >> (64-offset)) : state[index]);
         }
-        // iota(state, i)
-        state[0] ^= KeccakRoundConstants[i];
     }
+}
+
+/**
+ * Perform SHA3-256 hashes for the nonces in each vector lane.  The Keccak
+ * rate is 1088 and the capacity is 512 (yielding a 32-byte digest).
+ *
+ * @param       nonce               Nonces
+ * @param       round0              Precomputed first round lanes
+ * @param       target              Target data
+ * @return                          Index of the first lane that met the target or -1
+ */
+static int doHash(VULONG nonce, VULONG *round0, BYTE *target) {
+    VULONG c0, c1, c2, c3, c4;
+    int i;
+    c0 = round0[0] ^ nonce;
+    c1 = round0[1] ^ ((nonce << 44) | (nonce >> (64-44)));
+    c2 = round0[2];
+    c3 = round0[3];
+    c4 = round0[4] ^ ((nonce << 15) | (nonce >> (64-15)));
+    VULONG state0 = c0 ^ (~c1 & c2) ^ KeccakRoundConstants[0];
+    VULONG state1 = c1 ^ (~c2 & c3);
+    VULONG state2 = c2 ^ (~c3 & c4);
+    VULONG state3 = c3 ^ (~c4 & c0);
+    VULONG state4 = c4 ^ (~c0 & c1);
+
+    c0 = round0[5];
+    c1 = round0[6] ^ ((nonce << 21) | (nonce >> (64-21)));
+    c2 = round0[7];
+    c3 = round0[8] ^ ((nonce << 45) | (nonce >> (64-45)));
+    c4 = round0[9];
+    VULONG state5 = c0 ^ (~c1 & c2);
+    VULONG state6 = c1 ^ (~c2 & c3);
+    VULONG state7 = c2 ^ (~c3 & c4);
+    VULONG state8 = c3 ^ (~c4 & c0);
+    VULONG state9 = c4 ^ (~c0 & c1);
+
+    c0 = round0[10] ^ ((nonce << 1) | (nonce >> (64-1)));
+    c1 = round0[11];
+    c2 = round0[12];
+    c3 = round0[13] ^ ((nonce << 9) | (nonce >> (64-9)));
+    c4 = round0[14];
+    VULONG state10 = c0 ^ (~c1 & c2);
+    VULONG state11 = c1 ^ (~c2 & c3);
+    VULONG state12 = c2 ^ (~c3 & c4);
+    VULONG state13 = c3 ^ (~c4 & c0);
+    VULONG state14 = c4 ^ (~c0 & c1);
+
+    c0 = round0[15] ^ ((nonce << 28) | (nonce >> (64-28)));
+    c1 = round0[16];
+    c2 = round0[17] ^ ((nonce << 10) | (nonce >> (64-10)));
+    c3 = round0[18];
+    c4 = round0[19];
+    VULONG state15 = c0 ^ (~c1 & c2);
+    VULONG state16 = c1 ^ (~c2 & c3);
+    VULONG state17 = c2 ^ (~c3 & c4);
+    VULONG state18 = c3 ^ (~c4 & c0);
+    VULONG state19 = c4 ^ (~c0 & c1);
+
+    c0 = round0[20];
+    c1 = round0[21];
+    c2 = round0[22] ^ ((nonce << 40) | (nonce >> (64-40)));
+    c3 = round0[23];
+    c4 = round0[24] ^ ((nonce << 2) | (nonce >> (64-2)));
+    VULONG state20 = c0 ^ (~c1 & c2);
+    VULONG state21 = c1 ^ (~c2 & c3);
+    VULONG state22 = c2 ^ (~c3 & c4);
+    VULONG state23 = c3 ^ (~c4 & c0);
+    VULONG state24 = c4 ^ (~c0 & c1);
+    for (i=1; i<24;) {
+        VULONG t1, t2, t3, t4, t5, t6, t7, t8, t9, t10, t11, t12, t13, t14, t15, t16, t17, t18, t19;            
+        t1 = state0 ^ state5 ^ state10 ^ state15 ^ state20;
+        t2 = state2 ^ state7 ^ state12 ^ state17 ^ state22;
+        t3 = t1 ^ ((t2 << 1) | (t2 >> (64-1)));
+        t12 = state1 ^ t3;
+
+        t4 = state1 ^ state6 ^ state11 ^ state16 ^ state21;
+        t5 = state3 ^ state8 ^ state13 ^ state18 ^ state23;
+        t6 = t4 ^ ((t5 << 1) | (t5 >> (64-1)));
+        t13 = state2 ^ t6;
+
+        t7 = state4 ^ state9 ^ state14 ^ state19 ^ state24;
+        t8 = ((t4 << 1) | (t4 >> (64-1))) ^ t7;
+        t16 = state6 ^ t3;
+        t16 = ((t16 << 44) | (t16 >> (64-44)));
+        state2 = state12 ^ t6;
+        state2 = (state2 << 43) | (state2 >> (64-43));
+        t9 = state0 ^ t8;
+        state0 = t9 ^ (~t16 & state2) ^ KeccakRoundConstants[i++];
+
+        t10 = ((t7 << 1) | (t7 >> (64-1))) ^ t2;
+        t14 = state3 ^ t10;
+        state3 = state18 ^ t10;
+        state3 = (state3 << 21) | (state3 >> (64-21));
+        state1 = t16 ^ (~state2 & state3);
+
+        t11 = ((t1 << 1) | (t1 >> (64-1))) ^ t5;
+        t15 = state4 ^ t11;
+        state4 = state24 ^ t11;
+        state4 = (state4 << 14) | (state4 >> (64-14));
+        state2 ^= ((~state3) & state4);
+
+        state3 ^= ((~state4) & t9);
+        state4 ^= ((~t9) & t16);
+        t16 = state5 ^ t8;
+        t17 = state7 ^ t6;
+        t19 = state9 ^ t11;
+        t19 = (t19 << 20) | (t19 >> (64-20));
+        t14 = (t14 << 28) | (t14 >> (64-28));
+        state7 = state10 ^ t8;
+        state7 = (state7 << 3) | (state7 >> (64-3));
+        state5 = t14 ^ (~t19 & state7);
+
+        t18 = state8 ^ t10;
+        state8 = state16 ^ t3;
+        state8 = (state8 << 45) | (state8 >> (64-45));
+        state6 = t19 ^ (~state7 & state8);
+
+        state9 = state22 ^ t6;
+        state9 = (state9 << 61) | (state9 >> (64-61));
+        state7 ^= ((~state8) & state9);
+
+        state8 ^= ((~state9) & t14);
+        state9 ^= ((~t14) & t19);
+        t19 = state11 ^ t3;
+
+        t12 = (t12 << 1) | (t12 >> (64-1));
+        t17 = (t17 << 6) | (t17 >> (64-6));
+        state12 = state13 ^ t10;
+        state12 = (state12 << 25) | (state12 >> (64-25));
+        state10 = t12 ^ (~t17 & state12);
+
+        state13 = state19 ^ t11;
+        state13 = (state13 << 8) | (state13 >> (64-8));
+        state11 = t17 ^ (~state12 & state13);
+
+        t14 = state14 ^ t11;
+        state14 = state20 ^ t8;
+        state14 = (state14 << 18) | (state14 >> (64-18));
+        state12 ^= ((~state13) & state14);
+
+        state13 ^= ((~state14) & t12);
+        state14 ^= ((~t12) & t17);
+        t12 = state15 ^ t8;
+        t17 = state17 ^ t6;
+
+        t16 = (t16 << 36) | (t16 >> (64-36));
+        t15 = (t15 << 27) | (t15 >> (64-27));
+        state17 = (t19 << 10) | (t19 >> (64-10));
+        state15 = t15 ^ (~t16 & state17);
+
+        state18 = (t17 << 15) | (t17 >> (64-15));
+        state16 = t16 ^ (~state17 & state18);
+
+        state19 = state23 ^ t10;
+        state19 = (state19 << 56) | (state19 >> (64-56));
+        state17 ^= ((~state18) & state19);
+
+        state18 ^= ((~state19) & t15);
+        state19 ^= ((~t15) & t16);
+        t19 = state21 ^ t3;
+
+        t13 = (t13 << 62) | (t13 >> (64-62));
+        t18 = (t18 << 55) | (t18 >> (64-55));
+        state22 = (t14 << 39) | (t14 >> (64-39));
+        state20 = t13 ^ (~t18 & state22);
+
+        state23 = (t12 << 41) | (t12 >> (64-41));
+        state21 = t18 ^ (~state22 & state23);
+
+        state24 = (t19 << 2) | (t19 >> (64-2));
+        state22 ^= ((~state23) & state24);
+        state23 ^= ((~state24) & t13);
+        state24 ^= ((~t13) & t18);
+    }    
     //
-    // Check if we met the target
+    // Check if any of the lanes met the target
     //
-    BOOLEAN isSolved = TRUE;
-    BOOLEAN keepChecking = TRUE;
-    for (i=3; i>=0 && keepChecking; i--) {
-        if (state[i] < ((ULONG *)target)[i]) {
-            keepChecking = FALSE;
-        } else if (state[i] > ((ULONG *)target)[i]) {
-            isSolved = FALSE;
-            keepChecking = FALSE;
-        }
+    for (i=0; i<ULONG_LANES; i++) {
+        ULONG digest[4] = {state0[i], state1[i], state2[i], state3[i]};
+        if (checkTarget(digest, target))
+            return i;
     }
+    return -1;
+}
+
+/**
+ * Check if the digest meets the target
+ *
+ * @param       digest              First 4 digest lanes
+ * @param       target              Target data
+ * @return                          TRUE if the target was met
+ */
+static BOOLEAN checkTarget(ULONG *digest, BYTE *target) {
+    ULONG *check = (ULONG *)target;
+    BOOLEAN isSolved = (digest[3]<check[3] ? TRUE : digest[3]>check[3] ? FALSE :
+                        digest[2]<check[2] ? TRUE : digest[2]>check[2] ? FALSE :
+                        digest[1]<check[1] ? TRUE : digest[1]>check[1] ? FALSE :
+                        digest[0]<check[0] ? TRUE : digest[0]>check[0] ? FALSE : TRUE);
     return isSolved;
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Vector types for the multi-buffer hash functions
+ *
+ * The KECCAK25, SHA3 and SCRYPT hash functions hash several consecutive nonces
+ * at the same time, with one nonce in each vector lane.  The GCC vector extensions
+ * are used so the same source is compiled for each instruction set and the vector
+ * width is selected by the compiler options:
+ *
+ *     -mavx512f        512-bit vectors (8 Keccak lanes, 16 Scrypt lanes)
+ *     -mavx2           256-bit vectors (4 Keccak lanes, 8 Scrypt lanes)
+ *     (default)        128-bit vectors (2 Keccak lanes, 4 Scrypt lanes)
+ */
+#ifndef JNI_VECTOR_H
+#define JNI_VECTOR_H
+
+#if defined(__AVX512F__)
+#define VECTOR_SIZE 64
+#elif defined(__AVX2__)
+#define VECTOR_SIZE 32
+#else
+#define VECTOR_SIZE 16
+#endif
+
+/** Vector of 64-bit lanes */
+typedef unsigned long long VULONG __attribute__((vector_size(VECTOR_SIZE)));
+
+/** Vector of 32-bit lanes */
+typedef unsigned int VUINT __attribute__((vector_size(VECTOR_SIZE)));
+
+/** Number of lanes in each vector */
+#define ULONG_LANES (VECTOR_SIZE/8)
+#define UINT_LANES  (VECTOR_SIZE/4)
+
+/** Copy a scalar value to each vector lane */
+#define VULONG_BROADCAST(x) ((VULONG){0} + (unsigned long long)(x))
+#define VUINT_BROADCAST(x)  ((VUINT){0} + (unsigned int)(x))
+
+#endif
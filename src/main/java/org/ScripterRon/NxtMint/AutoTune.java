@@ -0,0 +1,231 @@
+/*
+ * Copyright 2015 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.NxtMint;
+import static org.ScripterRon.NxtMint.Main.log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CPU hashing auto-tuner
+ *
+ * When 'autotune' is enabled, the CPU hash function for the currency algorithm is
+ * benchmarked at startup using the native, Java Vector API and Java engines with an
+ * increasing number of worker threads (and each lane count for the Java Scrypt engine).
+ * The thread count is increased until the total hash rate stops improving.  The best
+ * configuration replaces the 'cpuThreads', 'scryptLanes' and 'vectorApi' values from
+ * NxtMint.conf.
+ *
+ * The result is saved in NxtMint.properties and reused on later starts as long as the
+ * host (operating system, architecture, processor count, native library and Vector API
+ * availability) is the same.
+ * The batch size does not need to be tuned since each hash function already sizes its
+ * batches to the 'batchTime' time slice.
+ */
+public class AutoTune {
+
+    /** Warm-up time for each configuration (milliseconds) */
+    private static final long WARMUP_TIME = 500;
+
+    /** Measurement time for each configuration (milliseconds) */
+    private static final long MEASURE_TIME = 1500;
+
+    /**
+     * Select the CPU hashing configuration
+     *
+     * @param       algorithm       Currency algorithm
+     * @throws      InterruptedException    Tuning interrupted
+     */
+    public static void tune(int algorithm) throws InterruptedException {
+        HashFunction.loadNativeLibrary();
+        String jniLibrary = HashFunction.getJniLibraryName();
+        boolean vectorAvailable = (Main.vectorApi && HashFunction.isVectorAvailable(algorithm));
+        int processors = Runtime.getRuntime().availableProcessors();
+        String host = String.format("%s/%s/%d/%s%s", System.getProperty("os.name"), System.getProperty("os.arch"),
+                                    processors, jniLibrary!=null ? jniLibrary : "java",
+                                    vectorAvailable ? "/vector" : "");
+        String prefix = "autotune."+algorithm+".";
+        //
+        // Use the saved configuration if it was tuned on this host
+        //
+        if (host.equals(Main.properties.getProperty(prefix+"host"))) {
+            try {
+                Config config = new Config(Boolean.valueOf(Main.properties.getProperty(prefix+"jni")),
+                                           Boolean.valueOf(Main.properties.getProperty(prefix+"vector")),
+                                           Integer.valueOf(Main.properties.getProperty(prefix+"cpuThreads")),
+                                           Integer.valueOf(Main.properties.getProperty(prefix+"scryptLanes")));
+                apply(config);
+                log.info(String.format("Using saved auto-tune configuration: %s", config));
+                return;
+            } catch (NumberFormatException exc) {
+                log.warn("Saved auto-tune configuration is not valid - tuning again");
+            }
+        }
+        //
+        // Benchmark the engines
+        //
+        log.info(String.format("Auto-tuning CPU hashing for algorithm %d on %s", algorithm, host));
+        List<Config> engines = new ArrayList<>();
+        if (jniLibrary != null)
+            engines.add(new Config(true, false, 1, 1));
+        if (vectorAvailable)
+            engines.add(new Config(false, true, 1, 1));
+        if (algorithm == 5) {
+            for (int lanes : new int[] {1, 2, 4})
+                engines.add(new Config(false, false, 1, lanes));
+        } else {
+            engines.add(new Config(false, false, 1, 1));
+        }
+        Config best = null;
+        for (Config engine : engines) {
+            Config engineBest = null;
+            for (int threads=1; ; threads=(threads*2<processors ? threads*2 : processors)) {
+                Config config = new Config(engine.jni, engine.vector, threads, engine.lanes);
+                config.rate = measure(algorithm, config);
+                log.info(String.format("Auto-tune: %s: %,.0f H/s", config, config.rate));
+                if (engineBest != null && config.rate < engineBest.rate)
+                    break;
+                engineBest = config;
+                if (threads == processors)
+                    break;
+            }
+            if (best == null || engineBest.rate > best.rate)
+                best = engineBest;
+        }
+        apply(best);
+        log.info(String.format("Auto-tune selected %s: %,.0f H/s", best, best.rate));
+        //
+        // Save the configuration
+        //
+        Main.properties.setProperty(prefix+"host", host);
+        Main.properties.setProperty(prefix+"jni", String.valueOf(best.jni));
+        Main.properties.setProperty(prefix+"vector", String.valueOf(best.vector));
+        Main.properties.setProperty(prefix+"cpuThreads", String.valueOf(best.threads));
+        Main.properties.setProperty(prefix+"scryptLanes", String.valueOf(best.lanes));
+        Main.saveProperties();
+    }
+
+    /**
+     * Apply a configuration
+     *
+     * @param       config          Configuration
+     */
+    private static void apply(Config config) {
+        HashFunction.setJniEnabled(config.jni);
+        Main.vectorApi = config.vector;
+        Main.cpuThreads = config.threads;
+        Main.scryptLanes = config.lanes;
+    }
+
+    /**
+     * Measure the total hash rate for a configuration
+     *
+     * @param       algorithm       Currency algorithm
+     * @param       config          Configuration
+     * @return                      Hash rate
+     * @throws      InterruptedException    Tuning interrupted
+     */
+    private static double measure(int algorithm, Config config) throws InterruptedException {
+        apply(config);
+        AtomicLong hashes = new AtomicLong();
+        long startTime = System.currentTimeMillis();
+        long measureStart = startTime + WARMUP_TIME;
+        long measureEnd = measureStart + MEASURE_TIME;
+        List<Thread> threads = new ArrayList<>(config.threads);
+        for (int i=0; i<config.threads; i++) {
+            Thread thread = new Thread(() -> {
+                //
+                // An all-zero target is never met, so each call hashes a full batch
+                // unless the thread is interrupted
+                //
+                HashFunction hashFunction = HashFunction.factory(algorithm);
+                byte[] inputBytes = new byte[40];
+                byte[] targetBytes = new byte[32];
+                ThreadLocalRandom.current().nextBytes(inputBytes);
+                long nonce = ThreadLocalRandom.current().nextLong();
+                long epoch = HashFunction.getTargetEpoch();
+                while (!Thread.currentThread().isInterrupted()) {
+                    long time = System.currentTimeMillis();
+                    if (time >= measureEnd)
+                        break;
+                    hashFunction.hash(inputBytes, targetBytes, nonce, epoch);
+                    nonce += hashFunction.getCount();
+                    if (time >= measureStart)
+                        hashes.addAndGet(hashFunction.getCount());
+                }
+                hashFunction.dispose();
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        try {
+            for (Thread thread : threads)
+                thread.join();
+        } finally {
+            threads.forEach((thread) -> thread.interrupt());
+        }
+        return (double)hashes.get()*1000.0/(double)MEASURE_TIME;
+    }
+
+    /**
+     * CPU hashing configuration
+     */
+    private static class Config {
+
+        /** Use the JNI hash functions */
+        private final boolean jni;
+
+        /** Use the Java Vector API hash functions */
+        private final boolean vector;
+
+        /** Number of CPU worker threads */
+        private final int threads;
+
+        /** Number of Java Scrypt lanes */
+        private final int lanes;
+
+        /** Measured hash rate */
+        private double rate;
+
+        /**
+         * Create a configuration
+         *
+         * @param       jni             Use the JNI hash functions
+         * @param       vector          Use the Java Vector API hash functions
+         * @param       threads         Number of CPU worker threads
+         * @param       lanes           Number of Java Scrypt lanes
+         */
+        private Config(boolean jni, boolean vector, int threads, int lanes) {
+            this.jni = jni;
+            this.vector = vector;
+            this.threads = threads;
+            this.lanes = lanes;
+        }
+
+        /**
+         * Return a description of the configuration
+         *
+         * @return                      Description
+         */
+        @Override
+        public String toString() {
+            return String.format("%s engine, %d CPU threads%s", jni ? "native" : (vector ? "Java vector" : "Java"),
+                                 threads, !jni && !vector && lanes>1 ? String.format(", %d Scrypt lanes", lanes) : "");
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.NxtMint;
+import static org.ScripterRon.NxtMint.Main.log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Local control interface
+ *
+ * When 'controlPort' is set, NxtMint accepts text commands on that port from the
+ * local host.  Each command is a single line and each reply is a single line
+ * starting with "OK" or "ERROR":
+ *     cputhreads n     Change the number of CPU workers
+ *     status           Return the number of CPU and GPU workers, the total hash rate
+ *                      and the current CPU duty cycle
+ *     quit             Close the connection
+ */
+public class ControlServer implements Runnable {
+
+    /** Server socket */
+    private final ServerSocket serverSocket;
+
+    /**
+     * Start the control server
+     *
+     * @param       port            Local port
+     * @throws      IOException     Unable to create the server socket
+     */
+    public static void start(int port) throws IOException {
+        ControlServer server = new ControlServer(port);
+        Thread thread = new Thread(server, "NxtMint control server");
+        thread.setDaemon(true);
+        thread.start();
+        log.info(String.format("Control server listening on port %d", port));
+    }
+
+    /**
+     * Create the control server
+     *
+     * @param       port            Local port
+     * @throws      IOException     Unable to create the server socket
+     */
+    private ControlServer(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 5, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Process connections until the application exits
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try (Socket socket = serverSocket.accept()) {
+                processConnection(socket);
+            } catch (IOException exc) {
+                log.error("Control connection failed", exc);
+            } catch (Exception exc) {
+                log.error("Exception while processing control command", exc);
+            }
+        }
+    }
+
+    /**
+     * Process commands from a control connection
+     *
+     * @param       socket          Connection socket
+     * @throws      IOException     I/O error occurred
+     */
+    private void processConnection(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] words = line.trim().split("\\s+");
+            String reply;
+            switch (words[0].toLowerCase()) {
+                case "":
+                    continue;
+                case "quit":
+                    return;
+                case "cputhreads":
+                    try {
+                        if (words.length != 2)
+                            throw new IllegalArgumentException("Usage: cputhreads n");
+                        int count = Integer.valueOf(words[1]);
+                        Mint.setCpuThreads(count);
+                        reply = String.format("OK %d", count);
+                    } catch (IllegalArgumentException exc) {
+                        reply = String.format("ERROR %s", exc.getMessage());
+                    }
+                    break;
+                case "status":
+                    List<MintWorker> workers = Mint.getWorkers();
+                    int cpuWorkers = 0;
+                    double rate = 0;
+                    for (MintWorker worker : workers) {
+                        if (worker.getCpuSlot() >= 0)
+                            cpuWorkers++;
+                        rate += worker.getRate();
+                    }
+                    reply = String.format("OK cpu=%d gpu=%d rate=%.0f H/s duty=%.0f%%",
+                                          cpuWorkers, workers.size()-cpuWorkers, rate,
+                                          Throttle.getDutyCycle()*100.0);
+                    break;
+                default:
+                    reply = String.format("ERROR Unknown command '%s'", words[0]);
+            }
+            out.println(reply);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2015 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.NxtMint;
+import static org.ScripterRon.NxtMint.Main.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * CPU worker thread placement
+ *
+ * The 'cpuAffinity' configuration option selects how the CPU worker threads are
+ * bound to logical processors:
+ *     none         The operating system schedules the threads (default)
+ *     spread       One thread per physical core, alternating between NUMA nodes.
+ *                  SMT siblings are used only when there are more threads than cores.
+ *     compact      One thread per physical core, filling a NUMA node before moving
+ *                  to the next node.  SMT siblings are used only when there are more
+ *                  threads than cores.
+ *     n,n,...      Worker i is bound to the i'th logical processor in the list
+ *
+ * The layout wraps around when there are more workers than logical processors
+ * (including workers added while minting).
+ *
+ * The processor topology is read from /sys/devices/system/cpu on Linux.  Each
+ * logical processor is treated as a separate core on a single node when the
+ * topology is not available.  The threads are bound using the native library.
+ *
+ * A worker binds itself before it creates its hash function, so the scratch
+ * memory allocated by the native hash function is touched first (and allocated
+ * by the operating system) on the local NUMA node.
+ */
+public class CpuAffinity {
+
+    /** Logical processors in assignment order (null if the workers are not bound) */
+    private static List<Cpu> layout;
+
+    /**
+     * Bind the current thread to a logical processor
+     *
+     * @param       cpu             Logical processor
+     * @return                      TRUE if the thread was bound
+     */
+    private static native boolean JniSetAffinity(int cpu);
+
+    /**
+     * Build the CPU worker layout
+     *
+     * This is called by Mint before the workers are started
+     */
+    public static void init() {
+        String option = Main.cpuAffinity.toLowerCase();
+        if (option.equals("none"))
+            return;
+        HashFunction.loadNativeLibrary();
+        if (!HashFunction.jniAvailable) {
+            log.warn("The native library is not available - CPU affinity ignored");
+            return;
+        }
+        List<Cpu> cpus = getTopology();
+        List<Cpu> cpuLayout = new ArrayList<>();
+        if (option.equals("spread") || option.equals("compact")) {
+            //
+            // Use the first logical processor on each core before using the SMT siblings.
+            // The cores are taken from each node in turn for 'spread' and one node at a
+            // time for 'compact'.
+            //
+            Map<String, List<Cpu>> cores = new LinkedHashMap<>();
+            cpus.forEach((cpu) -> cores.computeIfAbsent(cpu.node+":"+cpu.packageId+":"+cpu.coreId,
+                                                        (k) -> new ArrayList<>()).add(cpu));
+            List<Cpu> ordered = cpuLayout;
+            for (int sibling=0; ordered.size()<cpus.size(); sibling++) {
+                Map<Integer, List<Cpu>> nodes = new TreeMap<>();
+                for (List<Cpu> core : cores.values())
+                    if (sibling < core.size())
+                        nodes.computeIfAbsent(core.get(sibling).node, (k) -> new ArrayList<>()).add(core.get(sibling));
+                if (option.equals("compact")) {
+                    nodes.values().forEach((nodeCpus) -> ordered.addAll(nodeCpus));
+                } else {
+                    for (int i=0; ; i++) {
+                        boolean added = false;
+                        for (List<Cpu> nodeCpus : nodes.values()) {
+                            if (i < nodeCpus.size()) {
+                                ordered.add(nodeCpus.get(i));
+                                added = true;
+                            }
+                        }
+                        if (!added)
+                            break;
+                    }
+                }
+            }
+        } else {
+            //
+            // Use the logical processors in the configured order
+            //
+            String[] ids = option.split(",");
+            for (String idString : ids) {
+                int id = Integer.valueOf(idString.trim());
+                Cpu cpu = cpus.stream().filter((c) -> c.id==id).findFirst().orElse(null);
+                if (cpu == null)
+                    throw new IllegalArgumentException(String.format("CPU %d is not available", id));
+                cpuLayout.add(cpu);
+            }
+        }
+        log.info(String.format("CPU affinity layout: %s", Main.cpuAffinity));
+        for (int i=0; i<Main.cpuThreads; i++) {
+            Cpu cpu = cpuLayout.get(i%cpuLayout.size());
+            log.info(String.format("CPU worker %d: CPU %d (node %d, package %d, core %d)",
+                                   i, cpu.id, cpu.node, cpu.packageId, cpu.coreId));
+        }
+        layout = cpuLayout;
+    }
+
+    /**
+     * Bind the current thread to the logical processor assigned to a CPU worker
+     *
+     * @param       cpuSlot         CPU worker slot
+     */
+    public static void bindWorker(int cpuSlot) {
+        if (layout == null)
+            return;
+        int cpu = layout.get(cpuSlot%layout.size()).id;
+        if (!JniSetAffinity(cpu))
+            log.warn(String.format("Unable to bind CPU worker %d to CPU %d", cpuSlot, cpu));
+    }
+
+    /**
+     * Get the logical processors
+     *
+     * @return                      Logical processors sorted by identifier
+     */
+    private static List<Cpu> getTopology() {
+        List<Cpu> cpus = new ArrayList<>();
+        File[] cpuDirs = new File("/sys/devices/system/cpu").listFiles((dir, name) -> name.matches("cpu[0-9]+"));
+        if (cpuDirs != null) {
+            try {
+                for (File cpuDir : cpuDirs) {
+                    File topologyDir = new File(cpuDir, "topology");
+                    if (!topologyDir.isDirectory())
+                        continue;
+                    int id = Integer.valueOf(cpuDir.getName().substring(3));
+                    int packageId = readValue(new File(topologyDir, "physical_package_id"));
+                    int coreId = readValue(new File(topologyDir, "core_id"));
+                    int node = 0;
+                    String[] nodeNames = cpuDir.list((dir, name) -> name.matches("node[0-9]+"));
+                    if (nodeNames != null && nodeNames.length > 0)
+                        node = Integer.valueOf(nodeNames[0].substring(4));
+                    cpus.add(new Cpu(id, node, packageId, coreId));
+                }
+            } catch (IOException | NumberFormatException exc) {
+                log.warn("Unable to read the CPU topology", exc);
+                cpus.clear();
+            }
+        }
+        if (cpus.isEmpty()) {
+            log.info("CPU topology is not available - each logical processor is treated as a core");
+            int count = Runtime.getRuntime().availableProcessors();
+            for (int i=0; i<count; i++)
+                cpus.add(new Cpu(i, 0, 0, i));
+        }
+        cpus.sort(Comparator.comparingInt((cpu) -> cpu.id));
+        return cpus;
+    }
+
+    /**
+     * Read an integer value from a system file
+     *
+     * @param       file            File
+     * @return                      Value
+     * @throws      IOException     Unable to read the file
+     */
+    private static int readValue(File file) throws IOException {
+        return Integer.valueOf(new String(Files.readAllBytes(file.toPath())).trim());
+    }
+
+    /**
+     * Logical processor
+     */
+    private static class Cpu {
+
+        /** Logical processor identifier */
+        private final int id;
+
+        /** NUMA node */
+        private final int node;
+
+        /** Physical package */
+        private final int packageId;
+
+        /** Core within the package */
+        private final int coreId;
+
+        /**
+         * Create a logical processor
+         *
+         * @param       id              Logical processor identifier
+         * @param       node            NUMA node
+         * @param       packageId       Physical package
+         * @param       coreId          Core within the package
+         */
+        private Cpu(int id, int node, int packageId, int coreId) {
+            this.id = id;
+            this.node = node;
+            this.packageId = packageId;
+            this.coreId = coreId;
+        }
+    }
+}
@@ -50,6 +50,15 @@ public class GpuDevice {
     /** Work group count */
     private int workGroupCount;
     
+    /** GPU intensity */
+    private int intensity;
+    
+    /** Scrypt lookup gap (0 to select the lookup gap based on the allocation size) */
+    private int lookupGap;
+    
+    /** GPU command profile */
+    private final GpuProfile profile = new GpuProfile();
+    
     /**
      * Create the GPU device
      * 
@@ -72,6 +81,8 @@ public class GpuDevice {
         this.maxWorkGroupSize = maxWorkGroupSize;
         this.workGroupSize = Math.min(256, maxWorkGroupSize);
         this.workGroupCount = computeUnits;
+        this.intensity = Main.gpuIntensity;
+        this.lookupGap = Main.scryptLookupGap;
     }
     
     /**
@@ -172,4 +183,49 @@ public class GpuDevice {
     public void setWorkGroupCount(int count) {
         workGroupCount = count;
     }
+    
+    /**
+     * Return the GPU intensity
+     * 
+     * @return                          Number of work items per execution divided by 1024
+     */
+    public int getIntensity() {
+        return intensity;
+    }
+    
+    /**
+     * Set the GPU intensity
+     * 
+     * @param       intensity           Number of work items per execution divided by 1024
+     */
+    public void setIntensity(int intensity) {
+        this.intensity = intensity;
+    }
+    
+    /**
+     * Return the Scrypt lookup gap
+     * 
+     * @return                          Lookup gap or 0 to select the lookup gap
+     */
+    public int getLookupGap() {
+        return lookupGap;
+    }
+    
+    /**
+     * Set the Scrypt lookup gap
+     * 
+     * @param       lookupGap           Lookup gap or 0 to select the lookup gap
+     */
+    public void setLookupGap(int lookupGap) {
+        this.lookupGap = lookupGap;
+    }
+    
+    /**
+     * Return the GPU command profile
+     * 
+     * @return                          GPU command profile
+     */
+    public GpuProfile getProfile() {
+        return profile;
+    }
 }
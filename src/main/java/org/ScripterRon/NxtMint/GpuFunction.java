@@ -22,18 +22,31 @@ import org.jocl.cl_command_queue;
 import org.jocl.cl_context;
 import org.jocl.cl_context_properties;
 import org.jocl.cl_device_id;
+import org.jocl.cl_event;
 import org.jocl.cl_kernel;
 import org.jocl.cl_mem;
 import org.jocl.cl_program;
+import org.jocl.Pointer;
+import org.jocl.Sizeof;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Currency minting hash functions using the GPU
  */
 public abstract class GpuFunction {
 
+    /** Number of kernel passes queued on the GPU at the same time */
+    public static final int PIPELINE_DEPTH = 2;
+
+    /** Kernel profiling is enabled for new hash functions */
+    private static volatile boolean profilingEnabled;
+
     /** GPU device */
     protected GpuDevice gpuDevice;
 
@@ -43,6 +56,9 @@ public abstract class GpuFunction {
     /** Execution passes */
     protected int passes;
 
+    /** Passes completed by the last execution */
+    protected int completedPasses;
+
     /** Global size */
     protected int globalSize;
 
@@ -76,6 +92,33 @@ public abstract class GpuFunction {
     /** OpenCL resources allocated */
     protected boolean resourcesAllocated;
 
+    /** Solution nonce read for each queued pass */
+    private final ByteBuffer[] solutionBuffers = new ByteBuffer[PIPELINE_DEPTH];
+
+    /** Read completion event for each queued pass */
+    private final cl_event[] readEvents = new cl_event[PIPELINE_DEPTH];
+
+    /** Kernel profiling is enabled for the command queue */
+    private final boolean profiling;
+
+    /** Kernel events for each queued pass (profiling only) */
+    private final List<List<cl_event>> kernelEvents = new ArrayList<>(PIPELINE_DEPTH);
+
+    /** Kernel names for each queued pass (profiling only) */
+    private final List<List<String>> kernelEventNames = new ArrayList<>(PIPELINE_DEPTH);
+
+    /** Kernel names */
+    private final String[] kernelNames;
+
+    /** End time of the last profiled command (nanoseconds) */
+    private long lastEndTime;
+
+    /** Pipeline slot for the pass being queued */
+    private int enqueueSlot;
+
+    /** GPU kernel time for the last execution (nanoseconds) */
+    private long kernelTime;
+
     /**
      * Private constructor for use by subclasses
      *
@@ -86,6 +129,12 @@ public abstract class GpuFunction {
      */
     protected GpuFunction(GpuDevice gpuDevice, String... pgmNames) throws CLException, IOException {
         this.gpuDevice = gpuDevice;
+        this.profiling = profilingEnabled;
+        for (int i=0; i<PIPELINE_DEPTH; i++) {
+            solutionBuffers[i] = ByteBuffer.allocateDirect(8).order(ByteOrder.LITTLE_ENDIAN);
+            kernelEvents.add(new ArrayList<>());
+            kernelEventNames.add(new ArrayList<>());
+        }
         //
         // Get compiler options based on the platform name
         //
@@ -97,6 +146,9 @@ public abstract class GpuFunction {
         } else {
             log.debug(String.format("GPU %d: Using shift operations for rotate", gpuDevice.getGpuId()));
         }
+        String programOptions = getProgramOptions(gpuDevice);
+        if (!programOptions.isEmpty())
+            compilerOptions = (compilerOptions.isEmpty() ? programOptions : compilerOptions+" "+programOptions);
         //
         // Create the OpenCL context and associated command queue
         //
@@ -104,8 +156,10 @@ public abstract class GpuFunction {
         contextProperties.addProperty(CL.CL_CONTEXT_PLATFORM, gpuDevice.getPlatform());
         context = CL.clCreateContext(contextProperties, 1, new cl_device_id[]{gpuDevice.getDevice()},
                                      null, null, null);
-        commandQueue = CL.clCreateCommandQueue(context, gpuDevice.getDevice(), 0, null);
+        commandQueue = CL.clCreateCommandQueue(context, gpuDevice.getDevice(),
+                                               profiling ? CL.CL_QUEUE_PROFILING_ENABLE : 0, null);
         kernels = new cl_kernel[pgmNames.length];
+        kernelNames = new String[pgmNames.length];
         //
         // Build each kernel
         //
@@ -127,14 +181,14 @@ public abstract class GpuFunction {
                 pgmSource = new String(pgmBuffer, "UTF-8");
             }
             //
-            // Compile and build the CL program
+            // Build the CL program (the program binary is cached by ProgramCache)
             //
-            cl_program program = CL.clCreateProgramWithSource(context, 1, new String[]{pgmSource}, null, null);
-            CL.clBuildProgram(program, 0, null, compilerOptions, null, null);
+            cl_program program = ProgramCache.build(context, gpuDevice, pgmName, pgmSource, compilerOptions);
             //
             // Create the kernel
             //
             kernels[k] = CL.clCreateKernel(program, "run", null);
+            kernelNames[k] = pgmName.endsWith(".cl") ? pgmName.substring(0, pgmName.length()-3) : pgmName;
             CL.clReleaseProgram(program);
         }
         //
@@ -145,6 +199,20 @@ public abstract class GpuFunction {
                                                  CL.CL_KERNEL_PREFERRED_WORK_GROUP_SIZE_MULTIPLE);
     }
 
+    /**
+     * Return the compiler options for the hash function programs
+     *
+     * This is called by the GpuFunction constructor before the subclass has been
+     * initialized, so it must only use the GPU device.
+     *
+     * @param       gpuDevice       GPU device
+     * @return                      Compiler options or an empty string
+     * @throws      CLException     OpenCL error occurred
+     */
+    protected String getProgramOptions(GpuDevice gpuDevice) throws CLException {
+        return "";
+    }
+
     /**
      * Create a hash function for the specified algorithm
      *
@@ -185,6 +253,18 @@ public abstract class GpuFunction {
         return (algorithm==2 || algorithm==3 || algorithm==5 || algorithm==25);
     }
 
+    /**
+     * Enable or disable kernel profiling
+     *
+     * The new setting is used by hash functions created after this call.  The commands
+     * for a profiled hash function are added to the GpuProfile for the GPU device.
+     *
+     * @param       enable          TRUE to enable kernel profiling
+     */
+    public static void setProfiling(boolean enable) {
+        profilingEnabled = enable;
+    }
+
     /**
      * Check if we found a solution
      *
@@ -203,13 +283,43 @@ public abstract class GpuFunction {
         return nonce;
     }
 
+    /**
+     * Return the batch size
+     *
+     * @return                      Number of nonces hashed by each execution
+     */
+    public int getBatchSize() {
+        return count;
+    }
+
     /**
      * Return the execution count
      *
-     * @return                      Kernel execution count
+     * @return                      Kernel executions performed by the last execution
      */
     public int getCount() {
-        return count;
+        return completedPasses*globalSize;
+    }
+
+    /**
+     * Return the preferred work group size multiple
+     *
+     * @return                      Preferred work group size multiple
+     */
+    public int getPreferredLocalSize() {
+        return preferredLocalSize;
+    }
+
+    /**
+     * Return the GPU kernel time
+     *
+     * This is the time the GPU spent running the kernels for the last execution and is
+     * available only when kernel profiling is enabled
+     *
+     * @return                      Kernel time (nanoseconds)
+     */
+    public long getKernelTime() {
+        return kernelTime;
     }
 
     /**
@@ -233,9 +343,218 @@ public abstract class GpuFunction {
     /**
      * Execute the kernel
      *
+     * The kernel passes stop when a solution is found or the target epoch changes
+     *
+     * @param       epoch           Target epoch for this work
      * @return                      TRUE if the kernel was executed
      */
-    public abstract boolean execute();
+    public abstract boolean execute(long epoch);
+
+    /**
+     * Queue the kernels for a pass
+     *
+     * @param       pass            Pass identifier
+     * @throws      CLException     OpenCL error occurred
+     */
+    protected abstract void enqueuePass(int pass) throws CLException;
+
+    /**
+     * Write the kernel data to memObjects[0]
+     *
+     * @param       kernelData      Kernel data
+     * @throws      CLException     OpenCL error occurred
+     */
+    protected void writeKernelData(byte[] kernelData) throws CLException {
+        cl_event event = (profiling ? new cl_event() : null);
+        CL.clEnqueueWriteBuffer(commandQueue, memObjects[0], CL.CL_TRUE, 0,
+                                Sizeof.cl_uchar*kernelData.length, Pointer.to(kernelData),
+                                0, null, event);
+        if (event != null) {
+            try {
+                lastEndTime = 0;
+                recordCommand("Write", event);
+            } finally {
+                CL.clReleaseEvent(event);
+            }
+        }
+    }
+
+    /**
+     * Queue a kernel for the current pass
+     *
+     * @param       kernel          Kernel
+     * @param       globalWorkSize  Global work size
+     * @param       localWorkSize   Local work size
+     * @throws      CLException     OpenCL error occurred
+     */
+    protected void enqueueKernel(cl_kernel kernel, long[] globalWorkSize, long[] localWorkSize)
+                                        throws CLException {
+        cl_event event = (profiling ? new cl_event() : null);
+        CL.clEnqueueNDRangeKernel(commandQueue, kernel, 1, null, globalWorkSize, localWorkSize, 0, null, event);
+        if (event != null) {
+            String name = "Kernel";
+            for (int i=0; i<kernels.length; i++) {
+                if (kernels[i] == kernel) {
+                    name = kernelNames[i];
+                    break;
+                }
+            }
+            kernelEvents.get(enqueueSlot).add(event);
+            kernelEventNames.get(enqueueSlot).add(name);
+        }
+    }
+
+    /**
+     * Run the kernel passes
+     *
+     * The kernel data must already have been written to memObjects[0].  The kernel stores
+     * the solution nonce in the kernel data and the nonce stays set for the remaining
+     * passes, so just the 8-byte solution is read after each pass.
+     *
+     * Up to PIPELINE_DEPTH passes are queued at the same time using non-blocking reads,
+     * so the GPU starts the next pass as soon as the current pass completes instead of
+     * waiting for us to check the solution and queue another pass.  The command queue
+     * is in-order, so each read completes after its own pass and before the next pass.
+     *
+     * No more passes are queued once a solution is found or the target epoch changes.
+     * Passes that are still queued at that point are allowed to complete.
+     *
+     * @param       epoch           Target epoch for this work
+     * @param       solutionOffset  Offset of the solution nonce in the kernel data
+     * @throws      CLException     OpenCL error occurred
+     */
+    protected void runPasses(long epoch, int solutionOffset) throws CLException {
+        int queuedPasses = 0;
+        completedPasses = 0;
+        kernelTime = 0;
+        meetsTarget = false;
+        try {
+            while (true) {
+                //
+                // Fill the pipeline
+                //
+                while (queuedPasses < passes && queuedPasses-completedPasses < PIPELINE_DEPTH &&
+                                                HashFunction.getTargetEpoch() == epoch) {
+                    int slot = queuedPasses%PIPELINE_DEPTH;
+                    enqueueSlot = slot;
+                    enqueuePass(queuedPasses);
+                    readEvents[slot] = new cl_event();
+                    CL.clEnqueueReadBuffer(commandQueue, memObjects[0], CL.CL_FALSE, solutionOffset, 8,
+                                           Pointer.to(solutionBuffers[slot]), 0, null, readEvents[slot]);
+                    CL.clFlush(commandQueue);
+                    queuedPasses++;
+                }
+                if (completedPasses == queuedPasses)
+                    break;
+                //
+                // Wait for the oldest pass to complete and check for a solution
+                //
+                int slot = completedPasses%PIPELINE_DEPTH;
+                CL.clWaitForEvents(1, new cl_event[] {readEvents[slot]});
+                completedPasses++;
+                nonce = solutionBuffers[slot].getLong(0);
+                finishPass(slot);
+                meetsTarget = (nonce!=0);
+                if (meetsTarget)
+                    break;
+            }
+            //
+            // Wait for the passes that are still queued
+            //
+            if (completedPasses < queuedPasses) {
+                CL.clFinish(commandQueue);
+                while (completedPasses < queuedPasses)
+                    finishPass(completedPasses++%PIPELINE_DEPTH);
+            }
+        } finally {
+            //
+            // Release the events for passes that did not complete because of an error
+            //
+            if (completedPasses < queuedPasses) {
+                completedPasses = queuedPasses;
+                for (int i=0; i<PIPELINE_DEPTH; i++)
+                    releaseEvents(i);
+            }
+        }
+    }
+
+    /**
+     * Finish a completed pass
+     *
+     * When profiling, the kernel time for the pass (from the start of the first kernel
+     * to the end of the last kernel) is added to the execution kernel time and the
+     * pass commands are added to the device profile.  The pass events are then released.
+     *
+     * @param       slot            Pipeline slot
+     * @throws      CLException     OpenCL error occurred
+     */
+    private void finishPass(int slot) throws CLException {
+        List<cl_event> events = kernelEvents.get(slot);
+        List<String> names = kernelEventNames.get(slot);
+        try {
+            if (!events.isEmpty()) {
+                kernelTime += getProfilingTime(events.get(events.size()-1), CL.CL_PROFILING_COMMAND_END) -
+                              getProfilingTime(events.get(0), CL.CL_PROFILING_COMMAND_START);
+                for (int i=0; i<events.size(); i++)
+                    recordCommand(names.get(i), events.get(i));
+                if (readEvents[slot] != null)
+                    recordCommand("Read", readEvents[slot]);
+            }
+        } finally {
+            releaseEvents(slot);
+        }
+    }
+
+    /**
+     * Release the events for a pass
+     *
+     * @param       slot            Pipeline slot
+     */
+    private void releaseEvents(int slot) {
+        if (readEvents[slot] != null) {
+            CL.clReleaseEvent(readEvents[slot]);
+            readEvents[slot] = null;
+        }
+        kernelEvents.get(slot).forEach((event) -> CL.clReleaseEvent(event));
+        kernelEvents.get(slot).clear();
+        kernelEventNames.get(slot).clear();
+    }
+
+    /**
+     * Add a completed command to the device profile
+     *
+     * The time the GPU was idle since the end of the previous command in the same
+     * execution is added as well
+     *
+     * @param       name            Stage name
+     * @param       event           Command event
+     * @throws      CLException     OpenCL error occurred
+     */
+    private void recordCommand(String name, cl_event event) throws CLException {
+        long queued = getProfilingTime(event, CL.CL_PROFILING_COMMAND_QUEUED);
+        long submit = getProfilingTime(event, CL.CL_PROFILING_COMMAND_SUBMIT);
+        long start = getProfilingTime(event, CL.CL_PROFILING_COMMAND_START);
+        long end = getProfilingTime(event, CL.CL_PROFILING_COMMAND_END);
+        GpuProfile profile = gpuDevice.getProfile();
+        if (lastEndTime != 0 && start > lastEndTime)
+            profile.recordIdle(start-lastEndTime);
+        profile.record(name, queued, submit, start, end);
+        lastEndTime = end;
+    }
+
+    /**
+     * Return a profiling time for a command
+     *
+     * @param       event           Command event
+     * @param       paramName       Profiling parameter name
+     * @return                      Device time (nanoseconds)
+     * @throws      CLException     OpenCL error occurred
+     */
+    private static long getProfilingTime(cl_event event, int paramName) throws CLException {
+        long[] time = new long[1];
+        CL.clGetEventProfilingInfo(event, paramName, Sizeof.cl_ulong, Pointer.to(time), null);
+        return time[0];
+    }
 
     /**
      * Release OpenCL resources
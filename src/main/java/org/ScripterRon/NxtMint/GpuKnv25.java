@@ -44,9 +44,13 @@ public class GpuKnv25 extends GpuFunction {
     private final int inputOffset = 0;
     private final int targetOffset = 40;
     private final int solutionOffset = 72;
+    private final int round0Offset = 80;
     
     /** Kernel data buffer */
-    private final byte[] kernelData = new byte[40+32+8];
+    private final byte[] kernelData = new byte[40+32+8+25*8];
+
+    /** Precomputed first round lanes */
+    private final long[] round0 = new long[25];
 
     /**
      * Create the GPU hash function
@@ -60,7 +64,7 @@ public class GpuKnv25 extends GpuFunction {
         //
         // Calculate the local and global sizes
         //
-        count = Main.gpuIntensity*1024;
+        count = gpuDevice.getIntensity()*1024;
         localSize = gpuDevice.getWorkGroupSize();
         if (localSize%preferredLocalSize != 0)
             log.warn(String.format("GPU %d: Preferred work group size multiple is %d",
@@ -103,6 +107,9 @@ public class GpuKnv25 extends GpuFunction {
      *     Bytes 24-31: Minting counter
      *     Bytes 32-39: Account identifier
      * 
+     * The first Keccak round is precomputed for the input data and passed to the kernel
+     * following the solution nonce.
+     *
      * The hash target and hash digest are unsigned 32-byte numbers in little-endian format.
      * The digest must be less than the target in order to be a solution.
      * 
@@ -124,6 +131,15 @@ public class GpuKnv25 extends GpuFunction {
         //
         System.arraycopy(targetBytes, 0, kernelData, targetOffset, 32);
         //
+        // Set the precomputed first round lanes
+        //
+        KeccakRound0.precompute(inputBytes, round0);
+        for (int i=0, offset=round0Offset; i<25; i++, offset+=8) {
+            long lane = round0[i];
+            for (int j=0; j<8; j++)
+                kernelData[offset+j] = (byte)(lane >> (j*8));
+        }
+        //
         // Indicate no solution has been found
         //
         Arrays.fill(kernelData, solutionOffset, solutionOffset+8, (byte)0);
@@ -132,46 +148,27 @@ public class GpuKnv25 extends GpuFunction {
     /**
      * Execute the kernel
      * 
+     * @param       epoch           Target epoch for this work
      * @return                      TRUE if the kernel was executed
      */
     @Override
-    public boolean execute() {
+    public boolean execute(long epoch) {
         boolean executed = false;
         try {
             //
             // Write the kernel data to the GPU
             //
-            CL.clEnqueueWriteBuffer(commandQueue, memObjects[0], CL.CL_TRUE, 0,
-                                    Sizeof.cl_uchar*kernelData.length, Pointer.to(kernelData),
-                                    0, null, null);
+            writeKernelData(kernelData);
             //
-            // Execute the kernel, updating the passId for each pass.  The kernels
+            // Execute the kernel passes, updating the passId for each pass.  The kernels
             // will be executed sequentially, so the value chosen for global size 
             // should be large enough to keep the GPU compute units busy.  All work
             // items in the same work group will share local memory, which implies
             // that they will all be executed by the same compute unit.
             //
-            for (int i=0; i<passes; i++) {
-                passId[0] = i;
-                CL.clSetKernelArg(kernels[0], 1, Sizeof.cl_int, Pointer.to(passId));
-                CL.clEnqueueNDRangeKernel(commandQueue, kernels[0], 1, null, 
-                                          kernelGlobalSize, kernelLocalSize, 
-                                          0, null, null);
-                CL.clEnqueueReadBuffer(commandQueue, memObjects[0], CL.CL_TRUE, 0,
-                                       Sizeof.cl_uchar*kernelData.length, Pointer.to(kernelData),
-                                       0, null, null);
-                nonce = ((long)kernelData[solutionOffset]&255) |
-                        (((long)kernelData[solutionOffset+1]&255) << 8) |
-                        (((long)kernelData[solutionOffset+2]&255) << 16) |
-                        (((long)kernelData[solutionOffset+3]&255) << 24) |
-                        (((long)kernelData[solutionOffset+4]&255) << 32) |
-                        (((long)kernelData[solutionOffset+5]&255) << 40) |
-                        (((long)kernelData[solutionOffset+6]&255) << 48) |
-                        (((long)kernelData[solutionOffset+7]&255) << 56);
-                meetsTarget = (nonce!=0);
-                if (meetsTarget)
-                    break;
-            }
+            // Up to PIPELINE_DEPTH passes are queued at a time (see GpuFunction.runPasses()).
+            //
+            runPasses(epoch, solutionOffset);
             executed = true;
         } catch (CLException exc) {
             log.error("Unable to execute OpenCL kernel", exc);
@@ -179,6 +176,19 @@ public class GpuKnv25 extends GpuFunction {
         return executed;
     }
     
+    /**
+     * Queue the kernels for a pass
+     *
+     * @param       pass            Pass identifier
+     * @throws      CLException     OpenCL error occurred
+     */
+    @Override
+    protected void enqueuePass(int pass) throws CLException {
+        passId[0] = pass;
+        CL.clSetKernelArg(kernels[0], 1, Sizeof.cl_int, Pointer.to(passId));
+        enqueueKernel(kernels[0], kernelGlobalSize, kernelLocalSize);
+    }
+
     /**
      * Release OpenCL resources when we are finished using the GPU
      */
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2015 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.NxtMint;
+import static org.ScripterRon.NxtMint.Main.log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * GPU command profile
+ *
+ * When 'gpuProfile' is enabled, the OpenCL command queue for each GPU hash function
+ * is created with profiling enabled and the queued, submit, start and end times of
+ * every command are added to the profile for the GPU device.  There is a stage for
+ * each kernel (for example, ScryptP1, ScryptP2 and ScryptP3), for the kernel data
+ * write ('Write') and for the solution read ('Read').  The 'Idle' stage is the time
+ * the GPU waited between the end of one command and the start of the next command,
+ * which is the host overhead that was not hidden by the pass pipeline.
+ *
+ * The run times (end - start) for each stage are counted in a histogram where each
+ * bucket is twice as wide as the previous bucket.
+ */
+public class GpuProfile {
+
+    /** Number of histogram buckets (the first bucket is less than 1 microsecond) */
+    private static final int BUCKETS = 24;
+
+    /** Idle stage name */
+    public static final String IDLE = "Idle";
+
+    /** Profile stages */
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+
+    /**
+     * Add a command to the profile
+     *
+     * @param       name            Stage name
+     * @param       queued          Time the command was queued by the host (nanoseconds)
+     * @param       submit          Time the command was submitted to the device (nanoseconds)
+     * @param       start           Time the command started (nanoseconds)
+     * @param       end             Time the command ended (nanoseconds)
+     */
+    public synchronized void record(String name, long queued, long submit, long start, long end) {
+        Stage stage = stages.get(name);
+        if (stage == null) {
+            stage = new Stage();
+            stages.put(name, stage);
+        }
+        long runTime = Math.max(0, end-start);
+        stage.count++;
+        stage.queueTime += Math.max(0, submit-queued);
+        stage.waitTime += Math.max(0, start-submit);
+        stage.runTime += runTime;
+        long micros = runTime/1000;
+        int bucket = (micros == 0 ? 0 : Math.min(BUCKETS-1, 64-Long.numberOfLeadingZeros(micros)));
+        stage.histogram[bucket]++;
+    }
+
+    /**
+     * Discard the profile
+     */
+    public synchronized void reset() {
+        stages.clear();
+    }
+
+    /**
+     * Add GPU idle time to the profile
+     *
+     * @param       idleTime        Idle time (nanoseconds)
+     */
+    public void recordIdle(long idleTime) {
+        record(IDLE, 0, 0, 0, idleTime);
+    }
+
+    /**
+     * Return a one-line summary for each stage
+     *
+     * The summary has the number of commands, the average and 95th percentile run times,
+     * the average time waiting for the device and the percentage of the total GPU time
+     *
+     * @return                      Stage summaries
+     */
+    public synchronized List<String> getSummary() {
+        List<String> summary = new ArrayList<>(stages.size());
+        long totalTime = stages.values().stream().mapToLong((stage) -> stage.runTime).sum();
+        stages.forEach((name, stage) -> {
+            summary.add(String.format("%s: %,d, avg %.3f ms, p95 < %s, wait %.3f ms, %.1f%%", name, stage.count,
+                                      (double)stage.runTime/(double)stage.count/1000000.0,
+                                      bucketLimit(stage.getPercentileBucket(0.95)),
+                                      (double)(stage.queueTime+stage.waitTime)/(double)stage.count/1000000.0,
+                                      totalTime>0 ? (double)stage.runTime*100.0/(double)totalTime : 0.0));
+        });
+        return summary;
+    }
+
+    /**
+     * Return the run time histogram for each stage
+     *
+     * Empty buckets are not included
+     *
+     * @return                      Stage histograms (one line per bucket)
+     */
+    public synchronized Map<String, List<String>> getHistograms() {
+        Map<String, List<String>> histograms = new LinkedHashMap<>();
+        stages.forEach((name, stage) -> {
+            List<String> lines = new ArrayList<>();
+            for (int i=0; i<BUCKETS; i++) {
+                if (stage.histogram[i] != 0)
+                    lines.add(String.format("%s - %s: %,d (%.1f%%)", i==0 ? "0" : bucketLimit(i-1),
+                                            bucketLimit(i), stage.histogram[i],
+                                            (double)stage.histogram[i]*100.0/(double)stage.count));
+            }
+            histograms.put(name, lines);
+        });
+        return histograms;
+    }
+
+    /**
+     * Write the profile to the log
+     *
+     * @param       gpuId           GPU identifier
+     */
+    public void log(int gpuId) {
+        List<String> summary = getSummary();
+        if (summary.isEmpty())
+            return;
+        StringBuilder sb = new StringBuilder(1024);
+        sb.append(String.format("GPU %d profile:", gpuId));
+        summary.forEach((line) -> sb.append("\n  ").append(line));
+        getHistograms().forEach((name, lines) -> {
+            sb.append(String.format("\n  %s run times:", name));
+            lines.forEach((line) -> sb.append("\n    ").append(line));
+        });
+        log.info(sb.toString());
+    }
+
+    /**
+     * Return the upper limit for a histogram bucket
+     *
+     * @param       bucket          Histogram bucket
+     * @return                      Formatted time
+     */
+    private static String bucketLimit(int bucket) {
+        long micros = 1L<<bucket;
+        if (micros < 1000)
+            return String.format("%d us", micros);
+        if (micros < 1000000)
+            return String.format("%.3g ms", (double)micros/1000.0);
+        return String.format("%.3g s", (double)micros/1000000.0);
+    }
+
+    /**
+     * Profile stage
+     */
+    private static class Stage {
+
+        /** Number of commands */
+        private long count;
+
+        /** Total time between queued and submitted (nanoseconds) */
+        private long queueTime;
+
+        /** Total time between submitted and started (nanoseconds) */
+        private long waitTime;
+
+        /** Total time between started and ended (nanoseconds) */
+        private long runTime;
+
+        /** Run time histogram */
+        private final long[] histogram = new long[BUCKETS];
+
+        /**
+         * Return the histogram bucket containing a percentile
+         *
+         * @param       percentile      Percentile (0.0 to 1.0)
+         * @return                      Histogram bucket
+         */
+        private int getPercentileBucket(double percentile) {
+            long limit = (long)Math.ceil((double)count*percentile);
+            long total = 0;
+            for (int i=0; i<BUCKETS; i++) {
+                total += histogram[i];
+                if (total >= limit)
+                    return i;
+            }
+            return BUCKETS-1;
+        }
+    }
+}
@@ -28,9 +28,24 @@ import java.util.Arrays;
 
 /**
  * SCRYPT hash algorithm for Monetary System currencies
+ *
+ * Each work item needs a 128KB pad cache.  A lookup gap of N stores every Nth pad cache
+ * entry and recomputes the missing entries in ScryptP2, so N times as many work items
+ * fit in the same amount of memory at the cost of more Salsa computations.  The lookup
+ * gap is set by 'scryptLookupGap'.  When it is 0, the smallest lookup gap that lets the
+ * work items for the GPU intensity fit in the pad cache allocation is used.
  */
 public class GpuScrypt extends GpuFunction {
 
+    /** Maximum lookup gap selected for the device */
+    public static final int MAX_LOOKUP_GAP = 16;
+
+    /** Kernel state size for each work item */
+    private static final int STATE_SIZE = 3*296+8+2*64;
+
+    /** Lookup gap */
+    private final int lookupGap;
+
     /** Pass identifier */
     private final int[] passId = new int[1];
 
@@ -61,24 +76,21 @@ public class GpuScrypt extends GpuFunction {
         // Calculate the local and global sizes
         //
         // We need to allocate global memory for the Scrypt V array.  Each work item
-        // requires 128KB for this array.  We will need to adjust the global size
-        // if the required memory exceeds the maximum allocation size for the device.
+        // requires 128KB divided by the lookup gap for this array.  We will need to
+        // adjust the global size if the required memory exceeds the maximum allocation
+        // size for the device.
         //
         // Some cards have a problem access large global memory buffers.  So we will
         // restrict the pad cache buffer to 1/4 of the maximum allocation amount.
         //
-        count = Main.gpuIntensity*1024;
+        lookupGap = selectLookupGap(gpuDevice);
+        count = gpuDevice.getIntensity()*1024;
         localSize = gpuDevice.getWorkGroupSize();
         if (localSize%preferredLocalSize != 0)
             log.info(String.format("GPU %d: Preferred work group size multiple is %d",
                                    gpuDevice.getGpuId(), preferredLocalSize));
-        if (gpuDevice.getWorkGroupCount() != 0)
-            globalSize = gpuDevice.getWorkGroupCount()*localSize;
-        else
-            globalSize = (count/localSize)*localSize;
-        if (count < globalSize)
-            globalSize = ((count+localSize-1)/localSize)*localSize;
-        long allocationSize = 4*32*1024;        // V is INT[4*1024] for each work item
+        globalSize = getRequestedGlobalSize(gpuDevice);
+        long allocationSize = getAllocationSize(lookupGap);
         if (globalSize*allocationSize > maxAllocationSize/4) {
             log.warn(String.format("GPU %d: Maximum allocation size of %,dKB exceeded - reducing global size",
                                    gpuDevice.getGpuId(), maxAllocationSize/(4*1024)));
@@ -89,8 +101,8 @@ public class GpuScrypt extends GpuFunction {
         passes = count/globalSize;
         kernelGlobalSize[0] = globalSize;
         kernelLocalSize[0] = localSize;
-        log.debug(String.format("GPU %d: Local size %d, Global size %d, Passes %d",
-                                gpuDevice.getGpuId(), localSize, globalSize, passes));
+        log.debug(String.format("GPU %d: Local size %d, Global size %d, Passes %d, Lookup gap %d",
+                                gpuDevice.getGpuId(), localSize, globalSize, passes, lookupGap));
         //
         // Allocate the memory objects for the kernel data
         //
@@ -98,9 +110,9 @@ public class GpuScrypt extends GpuFunction {
         memObjects[0] = CL.clCreateBuffer(context, CL.CL_MEM_READ_WRITE,
                                           Sizeof.cl_uchar*kernelData.length, null, null);
         memObjects[1] = CL.clCreateBuffer(context, CL.CL_MEM_READ_WRITE,
-                                          Sizeof.cl_uchar*(3*296+8+2*64), null, null);
+                                          (long)Sizeof.cl_uchar*STATE_SIZE*globalSize, null, null);
         memObjects[2] = CL.clCreateBuffer(context, CL.CL_MEM_READ_WRITE,
-                                          Sizeof.cl_uint*32*1024*globalSize, null, null);
+                                          allocationSize*globalSize, null, null);
         //
         // Set the Phase 1 kernel arguments
         //
@@ -123,6 +135,79 @@ public class GpuScrypt extends GpuFunction {
         resourcesAllocated = true;
     }
 
+    /**
+     * Return the compiler options for the hash function programs
+     *
+     * @param       gpuDevice       GPU device
+     * @return                      Compiler options
+     * @throws      CLException     OpenCL error occurred
+     */
+    @Override
+    protected String getProgramOptions(GpuDevice gpuDevice) throws CLException {
+        return String.format("-DLOOKUP_GAP=%d", selectLookupGap(gpuDevice));
+    }
+
+    /**
+     * Return the lookup gap for a GPU device
+     *
+     * The configured lookup gap is used if it is not 0.  Otherwise, the lookup gap
+     * is doubled until the pad cache for the requested global size fits in 1/4 of the
+     * maximum allocation size or the lookup gap reaches MAX_LOOKUP_GAP.
+     *
+     * @param       gpuDevice       GPU device
+     * @return                      Lookup gap
+     * @throws      CLException     OpenCL error occurred
+     */
+    public static int selectLookupGap(GpuDevice gpuDevice) throws CLException {
+        int gap = gpuDevice.getLookupGap();
+        if (gap == 0) {
+            long maxAllocationSize = OpenCL.getLong(gpuDevice.getDevice(), CL.CL_DEVICE_MAX_MEM_ALLOC_SIZE);
+            long requestedSize = getRequestedGlobalSize(gpuDevice);
+            gap = 1;
+            while (gap < MAX_LOOKUP_GAP && requestedSize*getAllocationSize(gap) > maxAllocationSize/4)
+                gap *= 2;
+        }
+        return gap;
+    }
+
+    /**
+     * Return the global size needed for the GPU intensity
+     *
+     * @param       gpuDevice       GPU device
+     * @return                      Global size
+     */
+    private static int getRequestedGlobalSize(GpuDevice gpuDevice) {
+        int count = gpuDevice.getIntensity()*1024;
+        int localSize = gpuDevice.getWorkGroupSize();
+        int requestedSize;
+        if (gpuDevice.getWorkGroupCount() != 0)
+            requestedSize = gpuDevice.getWorkGroupCount()*localSize;
+        else
+            requestedSize = (count/localSize)*localSize;
+        if (count < requestedSize)
+            requestedSize = ((count+localSize-1)/localSize)*localSize;
+        return requestedSize;
+    }
+
+    /**
+     * Return the pad cache size for each work item
+     *
+     * @param       gap             Lookup gap
+     * @return                      Pad cache size in bytes
+     */
+    private static long getAllocationSize(int gap) {
+        return 4L*32*((1024+gap-1)/gap);     // V is INT[32*1024/gap] for each work item
+    }
+
+    /**
+     * Return the lookup gap
+     *
+     * @return                      Lookup gap
+     */
+    public int getLookupGap() {
+        return lookupGap;
+    }
+
     /**
      * Set the input data and the hash target
      *
@@ -162,54 +247,27 @@ public class GpuScrypt extends GpuFunction {
     /**
      * Execute the kernel
      *
+     * @param       epoch           Target epoch for this work
      * @return                      TRUE if the kernel was executed
      */
     @Override
-    public boolean execute() {
+    public boolean execute(long epoch) {
         boolean executed = false;
         try {
             //
             // Write the kernel data to the GPU
             //
-            CL.clEnqueueWriteBuffer(commandQueue, memObjects[0], CL.CL_TRUE, 0,
-                                    Sizeof.cl_uchar*kernelData.length, Pointer.to(kernelData),
-                                    0, null, null);
+            writeKernelData(kernelData);
             //
-            // Execute the kernel, updating the passId for each pass.  The kernels
+            // Execute the kernel passes, updating the passId for each pass.  The kernels
             // will be executed sequentially, so the value chosen for global size
             // should be large enough to keep the GPU compute units busy.  All work
             // items in the same work group will share local memory, which implies
             // that they will all be executed by the same compute unit.
             //
-            for (int i=0; i<passes; i++) {
-                passId[0] = i;
-                CL.clSetKernelArg(kernels[0], 2, Sizeof.cl_int, Pointer.to(passId));
-                CL.clSetKernelArg(kernels[1], 3, Sizeof.cl_int, Pointer.to(passId));
-                CL.clSetKernelArg(kernels[2], 2, Sizeof.cl_int, Pointer.to(passId));
-                CL.clEnqueueNDRangeKernel(commandQueue, kernels[0], 1, null,
-                                          kernelGlobalSize, kernelLocalSize,
-                                          0, null, null);
-                CL.clEnqueueNDRangeKernel(commandQueue, kernels[1], 1, null,
-                                          kernelGlobalSize, kernelLocalSize,
-                                          0, null, null);
-                CL.clEnqueueNDRangeKernel(commandQueue, kernels[2], 1, null,
-                                          kernelGlobalSize, kernelLocalSize,
-                                          0, null, null);
-                CL.clEnqueueReadBuffer(commandQueue, memObjects[0], CL.CL_TRUE, 0,
-                                       Sizeof.cl_uchar*kernelData.length, Pointer.to(kernelData),
-                                       0, null, null);
-                nonce = ((long)kernelData[solutionOffset]&255) |
-                        (((long)kernelData[solutionOffset+1]&255) << 8) |
-                        (((long)kernelData[solutionOffset+2]&255) << 16) |
-                        (((long)kernelData[solutionOffset+3]&255) << 24) |
-                        (((long)kernelData[solutionOffset+4]&255) << 32) |
-                        (((long)kernelData[solutionOffset+5]&255) << 40) |
-                        (((long)kernelData[solutionOffset+6]&255) << 48) |
-                        (((long)kernelData[solutionOffset+7]&255) << 56);
-                meetsTarget = (nonce!=0);
-                if (meetsTarget)
-                    break;
-            }
+            // Up to PIPELINE_DEPTH passes are queued at a time (see GpuFunction.runPasses()).
+            //
+            runPasses(epoch, solutionOffset);
             executed = true;
         } catch (CLException exc) {
             log.error("Unable to execute OpenCL kernel", exc);
@@ -217,6 +275,23 @@ public class GpuScrypt extends GpuFunction {
         return executed;
     }
 
+    /**
+     * Queue the kernels for a pass
+     *
+     * @param       pass            Pass identifier
+     * @throws      CLException     OpenCL error occurred
+     */
+    @Override
+    protected void enqueuePass(int pass) throws CLException {
+        passId[0] = pass;
+        CL.clSetKernelArg(kernels[0], 2, Sizeof.cl_int, Pointer.to(passId));
+        CL.clSetKernelArg(kernels[1], 3, Sizeof.cl_int, Pointer.to(passId));
+        CL.clSetKernelArg(kernels[2], 2, Sizeof.cl_int, Pointer.to(passId));
+        enqueueKernel(kernels[0], kernelGlobalSize, kernelLocalSize);
+        enqueueKernel(kernels[1], kernelGlobalSize, kernelLocalSize);
+        enqueueKernel(kernels[2], kernelGlobalSize, kernelLocalSize);
+    }
+
     /**
      * Release OpenCL resources when we are finished using the GPU
      */
@@ -41,12 +41,21 @@ public class GpuSha256 extends GpuFunction {
     private final long[] kernelLocalSize = new long[1];
 
     /** Kernel data offsets */
-    private final int inputOffset = 0;
-    private final int targetOffset = 64;
-    private final int solutionOffset = 96;
+    private final int dataOffset = 0;
+    private final int targetOffset = 140;
+    private final int solutionOffset = 172;
 
     /** Kernel data buffer */
-    private final byte[] kernelData = new byte[64+32+8];
+    private final byte[] kernelData = new byte[140+32+8];
+
+    /** Precomputed input data (see Sha256.cl for the layout) */
+    private final int[] data = new int[35];
+
+    /** Message schedule */
+    private final int[] W = new int[32];
+
+    /** Message schedule words that depend on message word 0 */
+    private final boolean[] nonceDependent = new boolean[32];
 
     /**
      * Create the GPU hash function
@@ -60,7 +69,7 @@ public class GpuSha256 extends GpuFunction {
         //
         // Calculate the local and global sizes
         //
-        count = Main.gpuIntensity*1024;
+        count = gpuDevice.getIntensity()*1024;
         localSize = gpuDevice.getWorkGroupSize();
         if (localSize%preferredLocalSize != 0)
             log.warn(String.format("GPU %d: Preferred work group size multiple is %d",
@@ -106,6 +115,11 @@ public class GpuSha256 extends GpuFunction {
      * The hash target and hash digest are unsigned 32-byte numbers in little-endian format.
      * The digest must be less than the target in order to be a solution.
      *
+     * Only bytes 0-3 of the nonce are modified by the kernel, so the message schedule and
+     * round values that don't depend on them are computed here and passed to the kernel
+     * in little-endian format.  The caller must make sure the nonce range for an execution
+     * doesn't cross a 32-bit boundary (see Mint.allocateNonces()).
+     *
      * @param       inputBytes      Bytes to be hashed (40 bytes)
      * @param       targetBytes     Hash target (32 bytes)
      */
@@ -116,20 +130,72 @@ public class GpuSha256 extends GpuFunction {
         if (targetBytes.length != 32)
             throw new IllegalArgumentException("Target data length must be 32 bytes");
         //
-        // Copy the input data
-        //
-        System.arraycopy(inputBytes, 0, kernelData, inputOffset, inputBytes.length);
-        //
-        // Pad the buffer
+        // Build the message block (the SHA-256 algorithm is big-endian)
         //
         // SHA-256 processes data in 64-byte blocks where the data bit count
         // is stored in the last 8 bytes in big-endian format.  The first pad
         // byte is 0x80 and the remaining pad bytes are 0x00.  Since we have
         // 40 bytes of data, the data bit count is 320 (0x140).
         //
-        kernelData[inputOffset+40] = (byte)0x80;
-        kernelData[inputOffset+62] = (byte)0x01;
-        kernelData[inputOffset+63] = (byte)0x40;
+        // The kernel modifies W[0] for each execution instance, so everything that
+        // doesn't depend on W[0] is computed here.
+        //
+        for (int i=0; i<10; i++)
+            W[i] = ((inputBytes[i*4]&0xff)<<24) | ((inputBytes[i*4+1]&0xff)<<16) |
+                   ((inputBytes[i*4+2]&0xff)<<8) | (inputBytes[i*4+3]&0xff);
+        W[10] = 0x80000000;
+        W[11] = 0;
+        W[12] = 0;
+        W[13] = 0;
+        W[14] = 0;
+        W[15] = 320;
+        data[0] = Integer.reverseBytes(W[0]);
+        data[1] = W[1];
+        //
+        // The part of round 0 that doesn't depend on W[0]
+        //
+        data[2] = HashSha256.H7 + HashSha256.Sum1(HashSha256.H4) +
+                        HashSha256.Ch(HashSha256.H4, HashSha256.H5, HashSha256.H6) + HashSha256.K[0];
+        data[3] = HashSha256.Sum0(HashSha256.H0) + HashSha256.Maj(HashSha256.H0, HashSha256.H1, HashSha256.H2);
+        //
+        // Round constant plus message word for rounds 1-15
+        //
+        for (int i=1; i<16; i++)
+            data[4+i-1] = HashSha256.K[i] + W[i];
+        //
+        // Part of message words 16-31 that doesn't depend on W[0].  Words that don't
+        // depend on W[0] at all are computed completely.
+        //
+        nonceDependent[0] = true;
+        for (int t=16; t<32; t++) {
+            int sum = 0;
+            boolean dependent = false;
+            if (nonceDependent[t-2])
+                dependent = true;
+            else
+                sum += HashSha256.sigma1(W[t-2]);
+            if (nonceDependent[t-7])
+                dependent = true;
+            else
+                sum += W[t-7];
+            if (nonceDependent[t-15])
+                dependent = true;
+            else
+                sum += HashSha256.sigma0(W[t-15]);
+            if (nonceDependent[t-16])
+                dependent = true;
+            else
+                sum += W[t-16];
+            nonceDependent[t] = dependent;
+            W[t] = sum;
+            data[19+t-16] = sum;
+        }
+        for (int i=0, offset=dataOffset; i<data.length; i++, offset+=4) {
+            kernelData[offset] = (byte)data[i];
+            kernelData[offset+1] = (byte)(data[i]>>8);
+            kernelData[offset+2] = (byte)(data[i]>>16);
+            kernelData[offset+3] = (byte)(data[i]>>24);
+        }
         //
         // Set the hash target
         //
@@ -143,46 +209,28 @@ public class GpuSha256 extends GpuFunction {
     /**
      * Execute the kernel
      *
+     * @param       epoch           Target epoch for this work
      * @return                      TRUE if the kernel was executed
      */
     @Override
-    public boolean execute() {
+    public boolean execute(long epoch) {
         boolean executed = false;
         try {
             //
             // Write the kernel data to the GPU
             //
-            CL.clEnqueueWriteBuffer(commandQueue, memObjects[0], CL.CL_TRUE, 0,
-                                    Sizeof.cl_uchar*kernelData.length, Pointer.to(kernelData),
-                                    0, null, null);
+            writeKernelData(kernelData);
             //
-            // Execute the kernel, updating the passId for each pass.  The kernels
+            // Execute the kernel passes, updating the passId for each pass.  Each pass hashes the
+            // next globalSize nonces.  The kernels
             // will be executed sequentially, so the value chosen for global size
             // should be large enough to keep the GPU compute units busy.  All work
             // items in the same work group will share local memory, which implies
             // that they will all be executed by the same compute unit.
             //
-            for (int i=0; i<passes; i++) {
-                passId[0] = i;
-                CL.clSetKernelArg(kernels[0], 1, Sizeof.cl_int, Pointer.to(passId));
-                CL.clEnqueueNDRangeKernel(commandQueue, kernels[0], 1, null,
-                                          kernelGlobalSize, kernelLocalSize,
-                                          0, null, null);
-                CL.clEnqueueReadBuffer(commandQueue, memObjects[0], CL.CL_TRUE, 0,
-                                       Sizeof.cl_uchar*kernelData.length, Pointer.to(kernelData),
-                                       0, null, null);
-                nonce = ((long)kernelData[solutionOffset]&255) |
-                        (((long)kernelData[solutionOffset+1]&255) << 8) |
-                        (((long)kernelData[solutionOffset+2]&255) << 16) |
-                        (((long)kernelData[solutionOffset+3]&255) << 24) |
-                        (((long)kernelData[solutionOffset+4]&255) << 32) |
-                        (((long)kernelData[solutionOffset+5]&255) << 40) |
-                        (((long)kernelData[solutionOffset+6]&255) << 48) |
-                        (((long)kernelData[solutionOffset+7]&255) << 56);
-                meetsTarget = (nonce!=0);
-                if (meetsTarget)
-                    break;
-            }
+            // Up to PIPELINE_DEPTH passes are queued at a time (see GpuFunction.runPasses()).
+            //
+            runPasses(epoch, solutionOffset);
             executed = true;
         } catch (CLException exc) {
             log.error("Unable to execute OpenCL kernel", exc);
@@ -190,6 +238,19 @@ public class GpuSha256 extends GpuFunction {
         return executed;
     }
 
+    /**
+     * Queue the kernels for a pass
+     *
+     * @param       pass            Pass identifier
+     * @throws      CLException     OpenCL error occurred
+     */
+    @Override
+    protected void enqueuePass(int pass) throws CLException {
+        passId[0] = pass;
+        CL.clSetKernelArg(kernels[0], 1, Sizeof.cl_int, Pointer.to(passId));
+        enqueueKernel(kernels[0], kernelGlobalSize, kernelLocalSize);
+    }
+
     /**
      * Release OpenCL resources when we are finished using the GPU
      */
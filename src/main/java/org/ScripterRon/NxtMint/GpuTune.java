@@ -0,0 +1,334 @@
+/*
+ * Copyright 2015 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.NxtMint;
+import static org.ScripterRon.NxtMint.Main.log;
+
+import org.jocl.CL;
+import org.jocl.CLException;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * GPU auto-tuner
+ *
+ * When 'gputune' is enabled, the work group size, work group count and intensity are
+ * selected at startup for each GPU device used for minting.  The work group size is
+ * tried for each multiple of the preferred kernel work group size multiple (doubling
+ * each time) up to the device maximum.  For each work group size, the intensity is
+ * doubled until the hash rate stops improving or an execution takes longer than
+ * MAX_EXECUTION_TIME.  Splitting the best intensity into several kernel passes (a
+ * smaller work group count) is then tried.  For the Scrypt algorithm, the other lookup
+ * gaps are then tried unless 'scryptLookupGap' is set in NxtMint.conf.
+ *
+ * Each configuration is measured using the sustained hash rate (the hashes completed
+ * divided by the elapsed time, including the host processing between executions).
+ * OpenCL profiling events are used to report how busy the GPU was while measuring.
+ *
+ * The result replaces the 'gpuIntensity', 'gpuDevice' and 'scryptLookupGap' values from
+ * NxtMint.conf.  It is saved in NxtMint.properties for each device and algorithm and is
+ * reused on later starts as long as the platform, device name and driver version are
+ * the same.
+ */
+public class GpuTune {
+
+    /** Warm-up time for each configuration (milliseconds) */
+    private static final long WARMUP_TIME = 500;
+
+    /** Measurement time for each configuration (milliseconds) */
+    private static final long MEASURE_TIME = 2000;
+
+    /** Maximum time for an execution (milliseconds) */
+    private static final long MAX_EXECUTION_TIME = 1000;
+
+    /** Minimum hash rate improvement to keep increasing the intensity */
+    private static final double MIN_IMPROVEMENT = 1.02;
+
+    /** Maximum GPU intensity */
+    private static final int MAX_INTENSITY = 1048576;
+
+    /**
+     * Select the GPU configuration for each GPU device used for minting
+     *
+     * @param       algorithm       Currency algorithm
+     * @throws      InterruptedException    Tuning interrupted
+     */
+    public static void tune(int algorithm) throws InterruptedException {
+        Set<Integer> devnums = new LinkedHashSet<>(Main.gpuDevices);
+        GpuFunction.setProfiling(true);
+        try {
+            for (Integer devnum : devnums) {
+                GpuDevice gpuDevice = Main.gpuDeviceList.get(devnum);
+                tuneDevice(algorithm, gpuDevice);
+                gpuDevice.getProfile().reset();
+            }
+        } finally {
+            GpuFunction.setProfiling(Main.gpuProfile);
+        }
+    }
+
+    /**
+     * Select the GPU configuration for a device
+     *
+     * @param       algorithm       Currency algorithm
+     * @param       gpuDevice       GPU device
+     * @throws      InterruptedException    Tuning interrupted
+     */
+    private static void tuneDevice(int algorithm, GpuDevice gpuDevice) throws InterruptedException {
+        int gpuId = gpuDevice.getGpuId();
+        String device = String.format("%s/%s/%s",
+                            OpenCL.getString(gpuDevice.getPlatform(), CL.CL_PLATFORM_NAME),
+                            OpenCL.getString(gpuDevice.getDevice(), CL.CL_DEVICE_NAME),
+                            OpenCL.getString(gpuDevice.getDevice(), CL.CL_DRIVER_VERSION));
+        String prefix = "gputune."+algorithm+"."+gpuId+".";
+        int lookupGap = (algorithm == 5 ? Main.scryptLookupGap : 0);
+        //
+        // Use the saved configuration if it was tuned for this device and driver
+        //
+        if (device.equals(Main.properties.getProperty(prefix+"device"))) {
+            try {
+                Config config = new Config(Integer.valueOf(Main.properties.getProperty(prefix+"workGroupSize")),
+                                           Integer.valueOf(Main.properties.getProperty(prefix+"workGroupCount")),
+                                           Integer.valueOf(Main.properties.getProperty(prefix+"intensity")),
+                                           lookupGap != 0 ? lookupGap :
+                                                Integer.valueOf(Main.properties.getProperty(prefix+"lookupGap", "0")));
+                apply(gpuDevice, config);
+                log.info(String.format("GPU %d: Using saved GPU tuning configuration: %s", gpuId, config));
+                return;
+            } catch (NumberFormatException exc) {
+                log.warn(String.format("GPU %d: Saved GPU tuning configuration is not valid - tuning again", gpuId));
+            }
+        }
+        //
+        // Get the preferred work group size multiple for the kernel
+        //
+        log.info(String.format("GPU %d: Tuning algorithm %d on %s", gpuId, algorithm, device));
+        int preferredSize;
+        GpuFunction gpuFunction = null;
+        try {
+            gpuFunction = GpuFunction.factory(algorithm, gpuDevice);
+            preferredSize = Math.max(1, gpuFunction.getPreferredLocalSize());
+        } catch (CLException | IOException exc) {
+            log.error(String.format("GPU %d: Unable to create the GPU hash function - tuning skipped", gpuId), exc);
+            return;
+        } finally {
+            if (gpuFunction != null)
+                gpuFunction.dispose();
+        }
+        //
+        // Increase the intensity for each work group size until the hash rate stops improving
+        //
+        Config best = null;
+        for (int size=preferredSize; size<=gpuDevice.getMaxWorkGroupSize(); size*=2) {
+            int intensity = Math.max(1, (gpuDevice.getComputeUnits()*size)/1024);
+            Config sizeBest = null;
+            while (intensity <= MAX_INTENSITY) {
+                Config config = new Config(size, 0, intensity, lookupGap);
+                if (!measure(algorithm, gpuDevice, config))
+                    break;
+                if (sizeBest != null && config.rate < sizeBest.rate*MIN_IMPROVEMENT) {
+                    if (config.rate > sizeBest.rate)
+                        sizeBest = config;
+                    break;
+                }
+                sizeBest = config;
+                if (config.executionTime > MAX_EXECUTION_TIME)
+                    break;
+                intensity *= 2;
+            }
+            if (sizeBest != null && (best == null || sizeBest.rate > best.rate))
+                best = sizeBest;
+        }
+        if (best == null) {
+            log.error(String.format("GPU %d: No GPU configuration could be measured - tuning skipped", gpuId));
+            apply(gpuDevice, new Config(gpuDevice.getWorkGroupSize(), gpuDevice.getWorkGroupCount(),
+                                        Main.gpuIntensity, lookupGap));
+            return;
+        }
+        //
+        // Try splitting the executions into multiple kernel passes
+        //
+        int groups = (best.intensity*1024)/best.workGroupSize;
+        for (int passes=2; passes<=8; passes*=2) {
+            int count = groups/passes;
+            if (count < gpuDevice.getComputeUnits())
+                break;
+            Config config = new Config(best.workGroupSize, count, best.intensity, best.lookupGap);
+            if (measure(algorithm, gpuDevice, config) && config.rate > best.rate*MIN_IMPROVEMENT)
+                best = config;
+        }
+        //
+        // Try the other Scrypt lookup gaps.  A smaller lookup gap reduces the global size
+        // and a larger lookup gap trades memory bandwidth for Salsa computations.
+        //
+        if (algorithm == 5 && lookupGap == 0) {
+            try {
+                apply(gpuDevice, best);
+                int selectedGap = GpuScrypt.selectLookupGap(gpuDevice);
+                Config gapBest = best;
+                for (int gap=1; gap<=GpuScrypt.MAX_LOOKUP_GAP; gap*=2) {
+                    if (gap == selectedGap)
+                        continue;
+                    Config config = new Config(best.workGroupSize, best.workGroupCount, best.intensity, gap);
+                    if (measure(algorithm, gpuDevice, config) && config.rate > gapBest.rate*MIN_IMPROVEMENT)
+                        gapBest = config;
+                }
+                best = gapBest;
+            } catch (CLException exc) {
+                log.error(String.format("GPU %d: Unable to select the lookup gap", gpuId), exc);
+            }
+        }
+        apply(gpuDevice, best);
+        log.info(String.format("GPU %d: GPU tuning selected %s: %,.0f H/s", gpuId, best, best.rate));
+        //
+        // Save the configuration
+        //
+        Main.properties.setProperty(prefix+"device", device);
+        Main.properties.setProperty(prefix+"workGroupSize", String.valueOf(best.workGroupSize));
+        Main.properties.setProperty(prefix+"workGroupCount", String.valueOf(best.workGroupCount));
+        Main.properties.setProperty(prefix+"intensity", String.valueOf(best.intensity));
+        Main.properties.setProperty(prefix+"lookupGap", String.valueOf(best.lookupGap));
+        Main.saveProperties();
+    }
+
+    /**
+     * Apply a configuration
+     *
+     * @param       gpuDevice       GPU device
+     * @param       config          Configuration
+     */
+    private static void apply(GpuDevice gpuDevice, Config config) {
+        gpuDevice.setWorkGroupSize(config.workGroupSize);
+        gpuDevice.setWorkGroupCount(config.workGroupCount);
+        gpuDevice.setIntensity(config.intensity);
+        gpuDevice.setLookupGap(config.lookupGap);
+    }
+
+    /**
+     * Measure the sustained hash rate for a configuration
+     *
+     * @param       algorithm       Currency algorithm
+     * @param       gpuDevice       GPU device
+     * @param       config          Configuration
+     * @return                      TRUE if the configuration was measured
+     * @throws      InterruptedException    Tuning interrupted
+     */
+    private static boolean measure(int algorithm, GpuDevice gpuDevice, Config config)
+                                        throws InterruptedException {
+        int gpuId = gpuDevice.getGpuId();
+        apply(gpuDevice, config);
+        GpuFunction gpuFunction = null;
+        try {
+            gpuFunction = GpuFunction.factory(algorithm, gpuDevice);
+            //
+            // An all-zero target is never met, so each execution runs all of the passes
+            //
+            byte[] inputBytes = new byte[40];
+            byte[] targetBytes = new byte[32];
+            ThreadLocalRandom.current().nextBytes(inputBytes);
+            long epoch = HashFunction.getTargetEpoch();
+            long startTime = System.currentTimeMillis();
+            long measureStart = 0;
+            long hashes = 0;
+            long kernelTime = 0;
+            int executions = 0;
+            while (true) {
+                if (Thread.interrupted())
+                    throw new InterruptedException("GPU tuning interrupted");
+                long time = System.currentTimeMillis();
+                if (measureStart == 0 && time-startTime >= WARMUP_TIME)
+                    measureStart = time;
+                if (measureStart != 0 && time-measureStart >= MEASURE_TIME)
+                    break;
+                gpuFunction.setInput(inputBytes, targetBytes);
+                if (!gpuFunction.execute(epoch))
+                    return false;
+                if (measureStart != 0) {
+                    hashes += gpuFunction.getCount();
+                    kernelTime += gpuFunction.getKernelTime();
+                    executions++;
+                }
+                inputBytes[0]++;
+            }
+            long elapsedTime = Math.max(1, System.currentTimeMillis()-measureStart);
+            config.rate = (double)hashes*1000.0/(double)elapsedTime;
+            config.executionTime = (executions > 0 ? elapsedTime/executions : elapsedTime);
+            log.info(String.format("GPU %d: GPU tuning: %s: %,.0f H/s, %d ms per execution, GPU busy %.0f%%",
+                                   gpuId, config, config.rate, config.executionTime,
+                                   Math.min(100.0, (double)kernelTime/(double)(elapsedTime*10000))));
+            return true;
+        } catch (CLException | IOException exc) {
+            log.info(String.format("GPU %d: GPU tuning: %s: %s", gpuId, config, exc.getMessage()));
+            return false;
+        } finally {
+            if (gpuFunction != null)
+                gpuFunction.dispose();
+        }
+    }
+
+    /**
+     * GPU configuration
+     */
+    private static class Config {
+
+        /** Work group size */
+        private final int workGroupSize;
+
+        /** Work group count (0 to execute in a single pass) */
+        private final int workGroupCount;
+
+        /** GPU intensity */
+        private final int intensity;
+
+        /** Scrypt lookup gap (0 to select the lookup gap) */
+        private final int lookupGap;
+
+        /** Measured hash rate */
+        private double rate;
+
+        /** Average execution time (milliseconds) */
+        private long executionTime;
+
+        /**
+         * Create a configuration
+         *
+         * @param       workGroupSize   Work group size
+         * @param       workGroupCount  Work group count
+         * @param       intensity       GPU intensity
+         * @param       lookupGap       Scrypt lookup gap
+         */
+        private Config(int workGroupSize, int workGroupCount, int intensity, int lookupGap) {
+            this.workGroupSize = workGroupSize;
+            this.workGroupCount = workGroupCount;
+            this.intensity = intensity;
+            this.lookupGap = lookupGap;
+        }
+
+        /**
+         * Return a description of the configuration
+         *
+         * @return                      Description
+         */
+        @Override
+        public String toString() {
+            String desc = String.format("intensity %d, work group size %d, work group count %d",
+                                        intensity, workGroupSize, workGroupCount);
+            return (lookupGap != 0 ? String.format("%s, lookup gap %d", desc, lookupGap) : desc);
+        }
+    }
+}
@@ -16,6 +16,15 @@
 package org.ScripterRon.NxtMint;
 import static org.ScripterRon.NxtMint.Main.log;
 
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
 /**
  * Currency minting hash functions using the CPU
  */
@@ -26,6 +35,27 @@ public abstract class HashFunction {
     
     /** JNI load attempted */
     private static boolean jniAttempted = false;
+
+    /** Loaded JNI library name */
+    private static String jniLibraryName;
+
+    /** Vector API load attempted */
+    private static boolean vectorAttempted = false;
+
+    /** Vector API hash function factory (null if the Vector API is not available) */
+    private static Method vectorFactory;
+
+    /** Use the JNI hash functions when the JNI library is available */
+    private static volatile boolean jniEnabled = true;
+
+    /** Current target epoch (advanced each time new targets are dispatched to the workers) */
+    private static volatile long targetEpoch;
+
+    /** Time of the last target epoch change (System.nanoTime) */
+    private static volatile long targetEpochTime;
+
+    /** Target epoch shared with the native hash functions */
+    private static final ByteBuffer nativeEpoch = ByteBuffer.allocateDirect(8).order(ByteOrder.nativeOrder());
     
     /** Hash count */
     protected int hashCount;
@@ -35,55 +65,213 @@ public abstract class HashFunction {
     
     /** Hash digest */
     protected final byte[] digest = new byte[32];
+
+    /** JNI hash result (nonce and hash count) */
+    protected final long[] jniResult = new long[2];
+
+    /** Use the JNI hash function (set when the hash function is created) */
+    protected final boolean useJni;
+
+    /** Minimum batch size */
+    private static final int MIN_BATCH_SIZE = 16;
+
+    /** Maximum batch size */
+    private static final int MAX_BATCH_SIZE = 64*1024*1024;
+
+    /** Batch size (maximum number of hashes for each hash() call) */
+    private int batchSize = 256;
+
+    /** JNI initialization */
+    private static native void JniInit(ByteBuffer epoch);
     
     /**
      * Private constructor for use by subclasses
      */
     protected HashFunction() {
+        loadNativeLibrary();
+        useJni = jniAvailable && jniEnabled;
+    }
+
+    /**
+     * Load the JNI library
+     *
+     * This is done when the first hash function is created but it can be called
+     * earlier by code that needs to know if the native library is available.
+     */
+    static synchronized void loadNativeLibrary() {
         //
-        // Load the JNI library
+        // There are multiple builds of the 64-bit x86 library.  We will try them
+        // from fastest to slowest and a build will refuse to load if the processor
+        // doesn't support its instruction set.
         //
         if (!jniAttempted) {
             jniAttempted = true;
-            String libraryName = null;
+            String[] libraryNames = null;
             String osName = System.getProperty("os.name");
             if (osName != null) {
                 osName = osName.toLowerCase();
+                String osArch = System.getProperty("os.arch", "").toLowerCase();
                 String dataModel = System.getProperty("sun.arch.data.model");
                 if (dataModel == null)
                     dataModel = "32";
                 if (osName.contains("windows") || osName.contains("linux")) {
-                    if (dataModel.equals("64"))
-                        libraryName = "NxtMint_x86_64";
+                    if (osArch.equals("aarch64"))
+                        libraryNames = new String[] {"NxtMint_aarch64"};
+                    else if (dataModel.equals("64"))
+                        libraryNames = new String[] {"NxtMint_x86_64_avx512", "NxtMint_x86_64_avx2",
+                                                     "NxtMint_x86_64"};
                     else
-                        libraryName = "NxtMint_x86";
+                        libraryNames = new String[] {"NxtMint_x86"};
+                }
+            }
+            if (libraryNames != null) {
+                for (String libraryName : libraryNames) {
+                    if (loadLibrary(libraryName)) {
+                        JniInit(nativeEpoch);
+                        jniAvailable = true;
+                        jniLibraryName = libraryName;
+                        log.info(String.format("JNI library %s loaded - using native CPU hash routines",
+                                               libraryName));
+                        break;
+                    }
                 }
+                if (!jniAvailable)
+                    log.info(String.format("Native library %s is not available - using Java CPU hash routines",
+                                           libraryNames[libraryNames.length-1]));
             }
-            if (libraryName != null) {
+        }
+    }
+
+    /**
+     * Create a Java Vector API hash function
+     *
+     * The Vector API classes are loaded by name since they are not included when
+     * NxtMint is built with an earlier Java version and they can't be loaded unless
+     * the jdk.incubator.vector module was added to the JVM.
+     *
+     * @param       algorithm       Hash algorithm
+     * @return                      Hash function or null if the Vector API is not available
+     */
+    private static HashFunction vectorFactory(int algorithm) {
+        Method factory;
+        synchronized(HashFunction.class) {
+            if (!vectorAttempted) {
+                vectorAttempted = true;
                 try {
-                    System.loadLibrary(libraryName);
-                    jniAvailable = true;
-                    log.info(String.format("JNI library %s loaded - using native CPU hash routines", 
-                                           libraryName));
-                } catch (UnsatisfiedLinkError exc) {
-                    log.info(String.format("Native library %s is not available - using Java CPU hash routines", 
-                                           libraryName));
-                } catch (Exception exc) {
-                    log.error(String.format("Unable to load native library %s - using Java CPU hash routines",
-                                            libraryName), exc);
+                    Class.forName("jdk.incubator.vector.IntVector");
+                    Class<?> vectorClass = Class.forName("org.ScripterRon.NxtMint.VectorHash");
+                    vectorFactory = vectorClass.getMethod("factory", int.class);
+                    log.info(String.format("Java Vector API available - using %d-bit vector Java hash routines",
+                                           (Integer)vectorClass.getMethod("getVectorSize").invoke(null)));
+                } catch (ClassNotFoundException exc) {
+                    log.debug(String.format("Java Vector API is not available: %s", exc.getMessage()));
+                } catch (ReflectiveOperationException | LinkageError exc) {
+                    log.warn("Unable to load the Java Vector API hash routines", exc);
+                    vectorFactory = null;
                 }
             }
+            factory = vectorFactory;
+        }
+        if (factory == null)
+            return null;
+        try {
+            return (HashFunction)factory.invoke(null, algorithm);
+        } catch (ReflectiveOperationException exc) {
+            log.error("Unable to create the Java Vector API hash function", exc);
+            return null;
         }
     }
-    
+
+    /**
+     * Check if there is a Java Vector API hash function for an algorithm
+     *
+     * @param       algorithm       Hash algorithm
+     * @return                      TRUE if the Vector API hash function can be used
+     */
+    static boolean isVectorAvailable(int algorithm) {
+        HashFunction hashFunction = vectorFactory(algorithm);
+        if (hashFunction == null)
+            return false;
+        hashFunction.dispose();
+        return true;
+    }
+
+    /**
+     * Return the loaded JNI library name
+     *
+     * @return                      Library name or null if the JNI library is not available
+     */
+    static synchronized String getJniLibraryName() {
+        return jniLibraryName;
+    }
+
+    /**
+     * Enable or disable the JNI hash functions
+     *
+     * This affects hash functions created after the call.  The Java hash functions
+     * are used when the JNI hash functions are disabled.
+     *
+     * @param       enabled         TRUE to use the JNI hash functions if they are available
+     */
+    static void setJniEnabled(boolean enabled) {
+        jniEnabled = enabled;
+    }
+
+    /**
+     * Load a native library
+     *
+     * The library is loaded from the Java library path.  If it is not found there,
+     * it is extracted from the application jar to a temporary file and loaded from
+     * that file.
+     *
+     * @param       libraryName     Library name
+     * @return                      TRUE if the library was loaded
+     */
+    private static boolean loadLibrary(String libraryName) {
+        try {
+            System.loadLibrary(libraryName);
+            return true;
+        } catch (UnsatisfiedLinkError exc) {
+            log.debug(String.format("Unable to load %s from the library path: %s",
+                                    libraryName, exc.getMessage()));
+        }
+        String fileName = System.mapLibraryName(libraryName);
+        try (InputStream classStream = HashFunction.class.getClassLoader()
+                                                   .getResourceAsStream("jni/"+fileName)) {
+            if (classStream == null)
+                return false;
+            int sep = fileName.lastIndexOf('.');
+            File libraryFile = File.createTempFile(fileName.substring(0, sep)+"-", fileName.substring(sep));
+            libraryFile.deleteOnExit();
+            Files.copy(classStream, libraryFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            System.load(libraryFile.getPath());
+            return true;
+        } catch (UnsatisfiedLinkError exc) {
+            log.debug(String.format("Unable to load %s from the application jar: %s",
+                                    libraryName, exc.getMessage()));
+        } catch (IOException exc) {
+            log.error(String.format("Unable to extract %s from the application jar", libraryName), exc);
+        }
+        return false;
+    }
+
     /**
      * Create a hash function for the specified algorithm
+     *
+     * The native hash function is used if the native library is loaded.  Otherwise,
+     * the Java Vector API hash function is used if it is available for the algorithm.
      * 
      * @param       algorithm       Hash algorithm
      * @return                      Hash function
      */
     public static HashFunction factory(int algorithm) {
         HashFunction hashFunction;
+        loadNativeLibrary();
+        if (!(jniAvailable && jniEnabled) && Main.vectorApi) {
+            hashFunction = vectorFactory(algorithm);
+            if (hashFunction != null)
+                return hashFunction;
+        }
         switch (algorithm) {
             case 2:                 // SHA256
                 hashFunction = new HashSha256();
@@ -113,15 +301,88 @@ public abstract class HashFunction {
         return (algorithm==2 || algorithm==3 || algorithm==5 || algorithm==25);
     }
     
+    /**
+     * Advance the target epoch
+     *
+     * This is called after new targets have been queued for the workers.  The hash
+     * functions check the epoch while hashing and stop as soon as it no longer
+     * matches the epoch for their work.
+     */
+    public static synchronized void advanceTargetEpoch() {
+        long epoch = targetEpoch + 1;
+        nativeEpoch.putLong(0, epoch);
+        targetEpochTime = System.nanoTime();
+        targetEpoch = epoch;
+    }
+
+    /**
+     * Return the current target epoch
+     *
+     * @return                      Target epoch
+     */
+    public static long getTargetEpoch() {
+        return targetEpoch;
+    }
+
+    /**
+     * Return the time of the last target epoch change
+     *
+     * @return                      Epoch change time (System.nanoTime)
+     */
+    public static long getTargetEpochTime() {
+        return targetEpochTime;
+    }
+
     /**
      * Hash the input bytes
+     *
+     * Hashing stops when the target is met, the batch size is reached or the target
+     * epoch changes.  The batch size is then adjusted using the measured hash rate
+     * so that a full batch takes about 'batchTime' milliseconds.  We start with a
+     * small batch since the hash rate can differ by several orders of magnitude
+     * between algorithms and processors.
      * 
      * @param       input           Input bytes
      * @param       target          Target bytes
      * @param       nonce           Initial nonce
+     * @param       epoch           Target epoch for this work
      * @return                      TRUE if the target was met
      */
-    public abstract boolean hash(byte[] input, byte[] target, long nonce);
+    public boolean hash(byte[] input, byte[] target, long nonce, long epoch) {
+        long startTime = System.nanoTime();
+        boolean meetsTarget = hash(input, target, nonce, epoch, batchSize);
+        long elapsedTime = System.nanoTime() - startTime;
+        if (hashCount > 0 && elapsedTime > 0) {
+            //
+            // Move halfway to the calibrated size to smooth out timing noise
+            //
+            double size = (double)hashCount*(double)Main.batchTime*1000000.0/(double)elapsedTime;
+            size = (size + (double)batchSize)/2.0;
+            batchSize = (int)Math.max(MIN_BATCH_SIZE, Math.min(size, MAX_BATCH_SIZE));
+        }
+        return meetsTarget;
+    }
+
+    /**
+     * Hash the input bytes
+     *
+     * @param       input           Input bytes
+     * @param       target          Target bytes
+     * @param       nonce           Initial nonce
+     * @param       epoch           Target epoch for this work
+     * @param       count           Maximum number of hashes
+     * @return                      TRUE if the target was met
+     */
+    protected abstract boolean hash(byte[] input, byte[] target, long nonce, long epoch, int count);
+
+    /**
+     * Return the current batch size
+     *
+     * @return                      Maximum number of hashes for the next hash() call
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
     
     /**
      * Return the nonce used to solve the hash
@@ -140,4 +401,13 @@ public abstract class HashFunction {
     public int getCount() {
         return hashCount;
     }
+
+    /**
+     * Release the hash function resources
+     *
+     * This is called by the thread that used the hash function after it is
+     * finished with it.  The hash function must not be used after it is disposed.
+     */
+    public void dispose() {
+    }
 }
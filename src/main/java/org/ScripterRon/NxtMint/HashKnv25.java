@@ -14,7 +14,6 @@
  * limitations under the License.
  */
 package org.ScripterRon.NxtMint;
-import static org.ScripterRon.NxtMint.Main.log;
 
 /**
  * KECCAK25 hash algorithm for Monetary System currencies
@@ -32,14 +31,15 @@ public class HashKnv25 extends HashFunction {
         -9223372034707259263L, -9223372036854742912L, 2147483649L, -9223372034707259384L, 1L
     };
 
-    /** Input data */
-    private final byte[] input = new byte[40];
+    /** Precomputed first round lanes */
+    private final long[] round0 = new long[25];
 
     /** Target data */
     private final byte[] target = new byte[32];
 
     /** JNI hash function */
-    private native JniHashResult JniHash(byte[] input, byte[] target, long nonce, int count);
+    private native boolean JniHash(byte[] input, byte[] target, long nonce, int count, long epoch,
+                                   long[] result);
 
     /**
      * Create a new KECCAK25 hash function
@@ -53,39 +53,36 @@ public class HashKnv25 extends HashFunction {
      * @param       inputBytes      Input bytes (40 bytes)
      * @param       targetBytes     Target bytes (32 bytes)
      * @param       initialNonce    Initial nonce
+     * @param       epoch           Target epoch for this work
+     * @param       count           Maximum number of hashes
      * @return                      TRUE if the target is met
      */
     @Override
-    public boolean hash(byte[] inputBytes, byte[] targetBytes, long initialNonce) {
-        int count = 1024*1024;
+    protected boolean hash(byte[] inputBytes, byte[] targetBytes, long initialNonce, long epoch, int count) {
         boolean meetsTarget = false;
         //
         // Use the JNI hash function if it is available
         //
-        if (jniAvailable) {
-            JniHashResult result = JniHash(inputBytes, targetBytes, initialNonce, 2*count);
-            if (result != null) {
-                meetsTarget = result.isSolved();
-                nonce = result.getNonce();
-                hashCount = result.getCount();
-            } else {
-                log.error("No result returned by JniKnv25");
-            }
+        if (useJni) {
+            meetsTarget = JniHash(inputBytes, targetBytes, initialNonce, count, epoch, jniResult);
+            nonce = jniResult[0];
+            hashCount = (int)jniResult[1];
             return meetsTarget;
         }
         //
         // Use the Java hash function
         //
-        System.arraycopy(inputBytes, 0, input, 0, 40);
+        KeccakRound0.precompute(inputBytes, round0);
         System.arraycopy(targetBytes, 0, target, 0, 32);
         nonce = initialNonce;
         hashCount = 0;
         Thread thread = Thread.currentThread();
         //
-        // Keep hashing until we meet the target or the maximum loop count is reached
+        // Keep hashing until we meet the target, the maximum loop count is reached or
+        // the target epoch changes
         //
         for (int i=0; i<count && !meetsTarget; i++) {
-            if (thread.isInterrupted())
+            if (thread.isInterrupted() || getTargetEpoch() != epoch)
                 break;
             meetsTarget = doHash();
             hashCount++;
@@ -100,55 +97,72 @@ public class HashKnv25 extends HashFunction {
      */
     private boolean doHash() {
         //
-        // Initialize the hash state
+        // Perform the first round using the precomputed lanes
         //
         // Note that the nonce is stored in the first 8 bytes of the input data.  We will increment
         // it each time through the hash loop.
         //
         nonce++;
-        long state0 = nonce;
-        long state1 = ((long)input[8] & 0xFF) |
-                        (((long)input[9] & 0xFF) << 8) |
-                        (((long)input[10] & 0xFF) << 16) |
-                        (((long)input[11] & 0xFF) << 24) |
-                        (((long)input[12] & 0xFF) << 32) |
-                        (((long)input[13] & 0xFF) << 40) |
-                        (((long)input[14] & 0xFF) << 48) |
-                        (((long)input[15] & 0xFF) << 56);
-        long state2 = ((long)input[16] & 0xFF) |
-                        (((long)input[17] & 0xFF) << 8) |
-                        (((long)input[18] & 0xFF) << 16) |
-                        (((long)input[19] & 0xFF) << 24) |
-                        (((long)input[20] & 0xFF) << 32) |
-                        (((long)input[21] & 0xFF) << 40) |
-                        (((long)input[22] & 0xFF) << 48) |
-                        (((long)input[23] & 0xFF) << 56);
-        long state3 = ((long)input[24] & 0xFF) |
-                        (((long)input[25] & 0xFF) << 8) |
-                        (((long)input[26] & 0xFF) << 16) |
-                        (((long)input[27] & 0xFF) << 24) |
-                        (((long)input[28] & 0xFF) << 32) |
-                        (((long)input[29] & 0xFF) << 40) |
-                        (((long)input[30] & 0xFF) << 48) |
-                        (((long)input[31] & 0xFF) << 56);
-        long state4 = ((long)input[32] & 0xFF) |
-                        (((long)input[33] & 0xFF) << 8) |
-                        (((long)input[34] & 0xFF) << 16) |
-                        (((long)input[35] & 0xFF) << 24) |
-                        (((long)input[36] & 0xFF) << 32) |
-                        (((long)input[37] & 0xFF) << 40) |
-                        (((long)input[38] & 0xFF) << 48) |
-                        (((long)input[39] & 0xFF) << 56);
-        long state5 = 1;
-        long state16 = -9223372036854775808L;
-        long state6=0, state7=0, state8=0, state9=0, state10=0, state11=0, state12=0,
-                state13=0, state14=0, state15=0, state17=0, state18=0, state19=0,
-                state20=0, state21=0, state22=0, state23=0, state24=0;
+        long c0, c1, c2, c3, c4;
+        c0 = round0[0] ^ nonce;
+        c1 = round0[1] ^ ((nonce << 44) | (nonce >>> (64-44)));
+        c2 = round0[2];
+        c3 = round0[3];
+        c4 = round0[4] ^ ((nonce << 15) | (nonce >>> (64-15)));
+        long state0 = c0 ^ (~c1 & c2) ^ constants[0];
+        long state1 = c1 ^ (~c2 & c3);
+        long state2 = c2 ^ (~c3 & c4);
+        long state3 = c3 ^ (~c4 & c0);
+        long state4 = c4 ^ (~c0 & c1);
+
+        c0 = round0[5];
+        c1 = round0[6] ^ ((nonce << 21) | (nonce >>> (64-21)));
+        c2 = round0[7];
+        c3 = round0[8] ^ ((nonce << 45) | (nonce >>> (64-45)));
+        c4 = round0[9];
+        long state5 = c0 ^ (~c1 & c2);
+        long state6 = c1 ^ (~c2 & c3);
+        long state7 = c2 ^ (~c3 & c4);
+        long state8 = c3 ^ (~c4 & c0);
+        long state9 = c4 ^ (~c0 & c1);
+
+        c0 = round0[10] ^ ((nonce << 1) | (nonce >>> (64-1)));
+        c1 = round0[11];
+        c2 = round0[12];
+        c3 = round0[13] ^ ((nonce << 9) | (nonce >>> (64-9)));
+        c4 = round0[14];
+        long state10 = c0 ^ (~c1 & c2);
+        long state11 = c1 ^ (~c2 & c3);
+        long state12 = c2 ^ (~c3 & c4);
+        long state13 = c3 ^ (~c4 & c0);
+        long state14 = c4 ^ (~c0 & c1);
+
+        c0 = round0[15] ^ ((nonce << 28) | (nonce >>> (64-28)));
+        c1 = round0[16];
+        c2 = round0[17] ^ ((nonce << 10) | (nonce >>> (64-10)));
+        c3 = round0[18];
+        c4 = round0[19];
+        long state15 = c0 ^ (~c1 & c2);
+        long state16 = c1 ^ (~c2 & c3);
+        long state17 = c2 ^ (~c3 & c4);
+        long state18 = c3 ^ (~c4 & c0);
+        long state19 = c4 ^ (~c0 & c1);
+
+        c0 = round0[20];
+        c1 = round0[21];
+        c2 = round0[22] ^ ((nonce << 40) | (nonce >>> (64-40)));
+        c3 = round0[23];
+        c4 = round0[24] ^ ((nonce << 2) | (nonce >>> (64-2)));
+        long state20 = c0 ^ (~c1 & c2);
+        long state21 = c1 ^ (~c2 & c3);
+        long state22 = c2 ^ (~c3 & c4);
+        long state23 = c3 ^ (~c4 & c0);
+        long state24 = c4 ^ (~c0 & c1);
         //
         // Calculate the hash digest
         //
         int i;
-        for (i=0; i<25;) {
+        for (i=1; i<25;) {
             long t1, t2, t3, t4, t5, t6, t7, t8, t9, t10, t11, t12, t13, t14, t15, t16, t17, t18, t19;
             t1 = state0 ^ state5 ^ state10 ^ state15 ^ state20;
             t2 = state2 ^ state7 ^ state12 ^ state17 ^ state22;
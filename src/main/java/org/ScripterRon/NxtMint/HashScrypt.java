@@ -14,47 +14,110 @@
  * limitations under the License.
  */
 package org.ScripterRon.NxtMint;
-import static org.ScripterRon.NxtMint.Main.log;
 
-import javax.crypto.Mac;
-import javax.crypto.ShortBufferException;
-import javax.crypto.spec.SecretKeySpec;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
 
 /**
  * SCRYPT hash algorithm for Monetary System currencies
  *
  * Distributed as part of the Nxt reference software (NRS)
+ *
+ * The PBKDF2 steps use our own HMAC-SHA256.  The HMAC key is the 40-byte input
+ * data, so the input pad and output pad states are computed once for each nonce
+ * and then reused for the five HMAC operations, the same as the native version.
+ *
+ * The Java hash function can hash 2 or 4 consecutive nonces in lockstep (scryptLanes
+ * configuration option).  Each lane has its own scratchpad and the scratchpad reads
+ * for all of the lanes are issued before the block mixes, so the processor can
+ * overlap the cache misses instead of waiting for each one in turn.
  */
 public class HashScrypt extends HashFunction {
 
-    /** Input data */
-    private final byte[] input = new byte[40];
+    /** SHA-256 initial hash values */
+    private static final int[] H0 = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    /** Input data words in big-endian order (words 0 and 1 are replaced by the nonce) */
+    private final int[] keyWords = new int[10];
+
+    /** Target words in little-endian order */
+    private final int[] targetWords = new int[8];
+
+    /** Number of nonces hashed in lockstep */
+    protected final int lanes;
+
+    /** HMAC input pad state for each lane */
+    private final int[][] ipadState;
 
-    /** Target data */
-    private final byte[] target = new byte[32];
+    /** HMAC output pad state for each lane */
+    private final int[][] opadState;
 
-    /** Scrypt message digest */
-    private final Mac mac;
+    /** SHA-256 hash state */
+    private final int[] state = new int[8];
 
-    private final byte[] H = new byte[32];
-    private final byte[] B = new byte[128 + 4];
-    private final int[] X = new int[32];
-    private final int[] V = new int[32 * 1024];
+    /** SHA-256 message schedule */
+    private final int[] W = new int[64];
+
+    /** Block mix buffer for each lane */
+    protected final int[][] X;
+
+    /** Scratchpad for each lane */
+    private final int[][] V;
+
+    /** Native Scrypt state arena (reused for each JNI call) */
+    private final ScratchArena jniArena;
+
+    /** Native Scrypt state */
+    private final ByteBuffer jniState;
 
     /** JNI hash function */
-    private native JniHashResult JniHash(byte[] input, byte[] target, long nonce, int count);
+    private native boolean JniHash(byte[] input, byte[] target, long nonce, int count, long epoch,
+                                   long[] result, ByteBuffer state);
+
+    /** JNI state buffer size */
+    private static native int JniStateSize();
 
     /**
      * Create a Scrypt hash function
+     *
+     * The Java scratchpads are not allocated when the native hash function is used.
+     * The Java scratchpads are on the Java heap, where the JVM large page options
+     * (-XX:+UseTransparentHugePages or -XX:+UseLargePages) apply to them.
      */
     public HashScrypt() {
-        try {
-            mac = Mac.getInstance("HmacSHA256");
-        } catch (NoSuchAlgorithmException exc) {
-            throw new IllegalStateException("Unable to get HmacSHA256 message digest", exc);
+        this(Main.scryptLanes, true);
+    }
+
+    /**
+     * Create a Scrypt hash function for a subclass that provides its own scratchpads
+     *
+     * @param       javaLanes       Number of nonces hashed in lockstep by the Java hash function
+     * @param       scratchpads     TRUE to allocate the Java scratchpads
+     */
+    protected HashScrypt(int javaLanes, boolean scratchpads) {
+        if (useJni) {
+            jniArena = new ScratchArena(JniStateSize());
+            jniState = jniArena.getBuffer();
+            lanes = 0;
+        } else {
+            jniArena = null;
+            jniState = null;
+            lanes = javaLanes;
         }
+        ipadState = new int[lanes][8];
+        opadState = new int[lanes][8];
+        X = new int[lanes][32];
+        V = new int[scratchpads ? lanes : 0][32 * 1024];
+    }
+
+    /**
+     * Release the native Scrypt state
+     */
+    @Override
+    public void dispose() {
+        if (jniArena != null)
+            jniArena.free();
     }
 
     /**
@@ -62,145 +125,292 @@ public class HashScrypt extends HashFunction {
      * @param       inputBytes      Input (40 bytes)
      * @param       targetBytes     Target (32 bytes)
      * @param       initialNonce    Initial nonce
+     * @param       epoch           Target epoch for this work
+     * @param       count           Maximum number of hashes
      * @return                      TRUE if the target was met
      */
     @Override
-    public boolean hash(byte[] inputBytes, byte[] targetBytes, long initialNonce) {
-        int count = 32*1024;
+    protected boolean hash(byte[] inputBytes, byte[] targetBytes, long initialNonce, long epoch, int count) {
         boolean meetsTarget = false;
         //
         // Use the JNI hash function if it is available
         //
-        if (jniAvailable) {
-            JniHashResult result = JniHash(inputBytes, targetBytes, initialNonce, count);
-            if (result != null) {
-                meetsTarget = result.isSolved();
-                nonce = result.getNonce();
-                hashCount = result.getCount();
-            } else {
-                log.error("No result returned by JniScrypt");
-            }
+        if (useJni) {
+            meetsTarget = JniHash(inputBytes, targetBytes, initialNonce, count, epoch, jniResult, jniState);
+            nonce = jniResult[0];
+            hashCount = (int)jniResult[1];
             return meetsTarget;
         }
         //
         // Use the Java hash function
         //
-        System.arraycopy(inputBytes, 0, input, 0, 40);
-        System.arraycopy(targetBytes, 0, target, 0, 32);
+        // The HMAC key is the input data in big-endian format.  The digest and the
+        // target are treated as 32-byte unsigned numbers in little-endian format.
+        //
+        for (int i=2; i<10; i++)
+            keyWords[i] = ((inputBytes[i*4]&0xff)<<24) | ((inputBytes[i*4+1]&0xff)<<16) |
+                          ((inputBytes[i*4+2]&0xff)<<8) | (inputBytes[i*4+3]&0xff);
+        for (int i=0; i<8; i++)
+            targetWords[i] = (targetBytes[i*4]&0xff) | ((targetBytes[i*4+1]&0xff)<<8) |
+                             ((targetBytes[i*4+2]&0xff)<<16) | ((targetBytes[i*4+3]&0xff)<<24);
         nonce = initialNonce;
         hashCount = 0;
         Thread thread = Thread.currentThread();
         //
-        // Keep hashing until we meet the target or the maximum loop count is reached
+        // Keep hashing until we meet the target, the maximum loop count is reached or
+        // the target epoch changes.  The lanes past the end of the batch are not checked
+        // since their nonces belong to the next nonce range.
         //
-        for (int i=0; i<count && !meetsTarget; i++) {
-            if (thread.isInterrupted())
+        for (int i=0; i<count && !meetsTarget; i+=lanes) {
+            if (thread.isInterrupted() || getTargetEpoch() != epoch)
                 break;
-            meetsTarget = doHash();
-            hashCount++;
+            meetsTarget = doHash(Math.min(lanes, count-i));
+            hashCount = (int)(nonce-initialNonce);
         }
         return meetsTarget;
     }
 
     /**
-     * Perform a single hash
+     * Hash the next nonce for each lane
      *
+     * Every lane is hashed, but only the first 'laneCount' lanes are in the nonce range
+     * for the batch and are checked against the target.  The nonce is set to the first
+     * nonce that meets the target or to the nonce for the last checked lane if no lane
+     * meets the target.
+     *
+     * @param       laneCount       Number of lanes to check
      * @return                      TRUE if the target is met
      */
-    private boolean doHash() {
-        int i, j, k;
+    private boolean doHash(int laneCount) {
+        int i, j, lane;
+        //
+        // Note that the nonce is stored in the first 8 bytes of the input data in little-endian
+        // format.  We will increment it for each lane.
         //
-        // Note that the nonce is stored in the first 8 bytes of the input data.  We will increment
-        // it each time through the hash loop.
+        // B = PBKDF2(input, input || INT(i))
         //
-        nonce++;
-        B[0] = (byte)nonce;
-        B[1] = (byte)(nonce>>8);
-        B[2] = (byte)(nonce>>16);
-        B[3] = (byte)(nonce>>24);
-        B[4] = (byte)(nonce>>32);
-        B[5] = (byte)(nonce>>40);
-        B[6] = (byte)(nonce>>48);
-        B[7] = (byte)(nonce>>56);
-        System.arraycopy(input, 8, B, 8, 32);
-        try {
-            mac.init(new SecretKeySpec(B, 0, 40, "HmacSHA256"));
-        } catch (InvalidKeyException e) {
-            throw new IllegalStateException(e);
+        // Each message is the 40-byte input data followed by the 32-bit block index,
+        // so it fits in a single block following the 64-byte input pad.
+        //
+        for (lane=0; lane<lanes; lane++) {
+            long laneNonce = nonce + lane + 1;
+            keyWords[0] = Integer.reverseBytes((int)laneNonce);
+            keyWords[1] = Integer.reverseBytes((int)(laneNonce>>>32));
+            initMac(lane);
+            int[] x = X[lane];
+            for (i=0; i<4; i++) {
+                System.arraycopy(ipadState[lane], 0, state, 0, 8);
+                System.arraycopy(keyWords, 0, W, 0, 10);
+                W[10] = i + 1;
+                W[11] = 0x80000000;
+                W[12] = 0;
+                W[13] = 0;
+                W[14] = 0;
+                W[15] = (64 + 44) * 8;
+                processBlock();
+                finishMac(lane);
+                for (j=0; j<8; j++)
+                    x[i*8+j] = Integer.reverseBytes(state[j]);
+            }
         }
-        B[40] = 0;
-        B[41] = 0;
-        B[42] = 0;
-        for (i=0; i<4; i++) {
-            B[43] = (byte) (i + 1);
-            mac.update(B, 0, 44);
-            try {
-                mac.doFinal(H, 0);
-            } catch (ShortBufferException e) {
-                throw new IllegalStateException(e);
+        mixScratchpads();
+        //
+        // H = PBKDF2(input, X || INT(1))
+        //
+        // X is stored in little-endian format, so each word is byte-swapped to form
+        // the big-endian message words.  The 132-byte message needs 3 blocks.
+        //
+        boolean isSolved = false;
+        for (lane=0; lane<laneCount && !isSolved; lane++) {
+            int[] x = X[lane];
+            System.arraycopy(ipadState[lane], 0, state, 0, 8);
+            for (i=0; i<16; i++)
+                W[i] = Integer.reverseBytes(x[i]);
+            processBlock();
+            for (i=0; i<16; i++)
+                W[i] = Integer.reverseBytes(x[i+16]);
+            processBlock();
+            W[0] = 1;
+            W[1] = 0x80000000;
+            for (i=2; i<15; i++)
+                W[i] = 0;
+            W[15] = (64 + 132) * 8;
+            processBlock();
+            finishMac(lane);
+            //
+            // Check if we met the target
+            //
+            isSolved = true;
+            for (i=7; i>=0; i--) {
+                int cmp = Integer.compareUnsigned(Integer.reverseBytes(state[i]), targetWords[i]);
+                if (cmp < 0)
+                    break;
+                if (cmp > 0) {
+                    isSolved = false;
+                    break;
+                }
             }
-            for (j=0; j<8; j++) {
-                X[i*8+j] = (H[j*4] & 0xff)
-                        | (H[j*4+1] & 0xff) << 8
-                        | (H[j*4+2] & 0xff) << 16
-                        | (H[j*4+3] & 0xff) << 24;
+            //
+            // Set the nonce and the digest if we have a match
+            //
+            if (isSolved) {
+                nonce += lane + 1;
+                for (i=0; i<8; i++) {
+                    digest[i*4] = (byte)(state[i] >>> 24);
+                    digest[i*4+1] = (byte)(state[i] >>> 16);
+                    digest[i*4+2] = (byte)(state[i] >>> 8);
+                    digest[i*4+3] = (byte)state[i];
+                }
             }
         }
-        for (i=0; i<1024; i++) {
-            System.arraycopy(X, 0, V, i*32, 32);
-            xorSalsa8(0, 16);
-            xorSalsa8(16, 0);
-        }
-        for (i=0; i<1024; i++) {
-            k = (X[16] & 1023) * 32;
-            for (j=0; j<32; j++)
-                X[j] ^= V[k+j];
-            xorSalsa8(0, 16);
-            xorSalsa8(16, 0);
-        }
-        for (i=0; i<32; i++) {
-            B[i*4] = (byte)(X[i]);
-            B[i*4+1] = (byte)(X[i] >> 8);
-            B[i*4+2] = (byte)(X[i] >> 16);
-            B[i*4+3] = (byte)(X[i] >> 24);
-        }
-        B[128+3] = 1;
-        mac.update(B, 0, 128 + 4);
-        try {
-            mac.doFinal(H, 0);
-        } catch (ShortBufferException e) {
-            throw new IllegalStateException(e);
-        }
+        if (!isSolved)
+            nonce += laneCount;
+        return isSolved;
+    }
+
+    /**
+     * Fill and mix the scratchpads
+     *
+     * X = ROMix(X) for each lane
+     */
+    protected void mixScratchpads() {
+        int i, j, k, lane;
         //
-        // Check if we met the target
+        // Fill the scratchpads
         //
-        boolean isSolved = true;
-        long check;
-        for (i=31; i>=0; i--) {
-            int b0 = (int)H[i]&0xff;
-            int b1 = (int)target[i]&0xff;
-            if (b0 < b1)
-                break;
-            if (b0 > b1) {
-                isSolved = false;
-                break;
+        for (i=0; i<1024; i++) {
+
+            for (lane=0; lane<lanes; lane++) {
+                int[] x = X[lane];
+                System.arraycopy(x, 0, V[lane], i*32, 32);
+                xorSalsa8(x, 0, 16);
+                xorSalsa8(x, 16, 0);
             }
         }
         //
-        // Set the digest if we have a match
+        // Mix the scratchpads.  The scratchpad blocks for all of the lanes are read
+        // before any of the lanes are mixed.
         //
-        if (isSolved)
-            System.arraycopy(H, 0, digest, 0, 32);
-        return isSolved;
+        for (i=0; i<1024; i++) {
+            for (lane=0; lane<lanes; lane++) {
+                int[] x = X[lane];
+                int[] v = V[lane];
+                k = (x[16] & 1023) * 32;
+                for (j=0; j<32; j++)
+                    x[j] ^= v[k+j];
+            }
+            for (lane=0; lane<lanes; lane++) {
+                int[] x = X[lane];
+                xorSalsa8(x, 0, 16);
+                xorSalsa8(x, 16, 0);
+            }
+        }
+    }
+
+    /**
+     * Initialize the HMAC input pad and output pad states for the current key
+     *
+     * The 40-byte key is shorter than the SHA-256 block size, so it is padded
+     * with zeroes and each pad is a single block.
+     *
+     * @param       lane            Lane index
+     */
+    private void initMac(int lane) {
+        System.arraycopy(H0, 0, state, 0, 8);
+        for (int i=0; i<10; i++)
+            W[i] = keyWords[i] ^ 0x36363636;
+        for (int i=10; i<16; i++)
+            W[i] = 0x36363636;
+        processBlock();
+        System.arraycopy(state, 0, ipadState[lane], 0, 8);
+        System.arraycopy(H0, 0, state, 0, 8);
+        for (int i=0; i<10; i++)
+            W[i] = keyWords[i] ^ 0x5c5c5c5c;
+        for (int i=10; i<16; i++)
+            W[i] = 0x5c5c5c5c;
+        processBlock();
+        System.arraycopy(state, 0, opadState[lane], 0, 8);
+    }
+
+    /**
+     * Finish the HMAC operation
+     *
+     * The inner digest is in the hash state and is replaced by the HMAC result
+     *
+     * @param       lane            Lane index
+     */
+    private void finishMac(int lane) {
+        System.arraycopy(state, 0, W, 0, 8);
+        W[8] = 0x80000000;
+        for (int i=9; i<15; i++)
+            W[i] = 0;
+        W[15] = (64 + 32) * 8;
+        System.arraycopy(opadState[lane], 0, state, 0, 8);
+        processBlock();
+    }
+
+    /**
+     * Process a single SHA-256 block
+     *
+     * W[0]-W[15] contain the message block and the hash state is updated
+     */
+    private void processBlock() {
+        int i;
+        for (i=16; i<64; i++)
+            W[i] = HashSha256.sigma1(W[i-2]) + W[i-7] + HashSha256.sigma0(W[i-15]) + W[i-16];
+        int a = state[0], b = state[1], c = state[2], d = state[3];
+        int e = state[4], f = state[5], g = state[6], h = state[7];
+        for (i=0; i<64; i+=8) {
+            h += HashSha256.Sum1(e) + HashSha256.Ch(e, f, g) + HashSha256.K[i] + W[i];
+            d += h;
+            h += HashSha256.Sum0(a) + HashSha256.Maj(a, b, c);
+
+            g += HashSha256.Sum1(d) + HashSha256.Ch(d, e, f) + HashSha256.K[i+1] + W[i+1];
+            c += g;
+            g += HashSha256.Sum0(h) + HashSha256.Maj(h, a, b);
+
+            f += HashSha256.Sum1(c) + HashSha256.Ch(c, d, e) + HashSha256.K[i+2] + W[i+2];
+            b += f;
+            f += HashSha256.Sum0(g) + HashSha256.Maj(g, h, a);
+
+            e += HashSha256.Sum1(b) + HashSha256.Ch(b, c, d) + HashSha256.K[i+3] + W[i+3];
+            a += e;
+            e += HashSha256.Sum0(f) + HashSha256.Maj(f, g, h);
+
+            d += HashSha256.Sum1(a) + HashSha256.Ch(a, b, c) + HashSha256.K[i+4] + W[i+4];
+            h += d;
+            d += HashSha256.Sum0(e) + HashSha256.Maj(e, f, g);
+
+            c += HashSha256.Sum1(h) + HashSha256.Ch(h, a, b) + HashSha256.K[i+5] + W[i+5];
+            g += c;
+            c += HashSha256.Sum0(d) + HashSha256.Maj(d, e, f);
+
+            b += HashSha256.Sum1(g) + HashSha256.Ch(g, h, a) + HashSha256.K[i+6] + W[i+6];
+            f += b;
+            b += HashSha256.Sum0(c) + HashSha256.Maj(c, d, e);
+
+            a += HashSha256.Sum1(f) + HashSha256.Ch(f, g, h) + HashSha256.K[i+7] + W[i+7];
+            e += a;
+            a += HashSha256.Sum0(b) + HashSha256.Maj(b, c, d);
+        }
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+        state[5] += f;
+        state[6] += g;
+        state[7] += h;
     }
 
     /**
      * Block mix
      *
+     * @param       X           Block mix buffer
      * @param       di          First block start index
      * @param       xi          Second block start index
      */
-    private void xorSalsa8(int di, int xi) {
+    private static void xorSalsa8(int[] X, int di, int xi) {
         int x00 = (X[di + 0] ^= X[xi + 0]);
         int x01 = (X[di + 1] ^= X[xi + 1]);
         int x02 = (X[di + 2] ^= X[xi + 2]);
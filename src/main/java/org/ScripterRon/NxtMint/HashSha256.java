@@ -14,84 +14,422 @@
  * limitations under the License.
  */
 package org.ScripterRon.NxtMint;
+import static org.ScripterRon.NxtMint.Main.log;
 
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 /**
  * SHA-256 hash function
+ *
+ * The 40-byte input data fits in a single SHA-256 block and only the first 8 bytes
+ * (the nonce) change for each hash.  So we will build the padded message schedule
+ * once for each call and then just replace W[0] and W[1] for each nonce.
+ *
+ * Newer Java runtimes replace the JCA SHA-256 compression with the CPU SHA
+ * instructions when they are available.  That is faster than either our Java or
+ * our native compression, so we will time both implementations the first time a
+ * hash function is created and use the JCA digest if it wins.
  */
 public class HashSha256 extends HashFunction {
-    
-    /** SHA-256 message digest */
+
+    /** SHA-256 constants */
+    static final int[] K = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    /** SHA-256 initial hash values */
+    static final int H0 = 0x6a09e667;
+    static final int H1 = 0xbb67ae85;
+    static final int H2 = 0x3c6ef372;
+    static final int H3 = 0xa54ff53a;
+    static final int H4 = 0x510e527f;
+    static final int H5 = 0x9b05688c;
+    static final int H6 = 0x1f83d9ab;
+    static final int H7 = 0x5be0cd19;
+
+    /** Message schedule (W[2]-W[15] are constant for the current input data) */
+    private final int[] W = new int[64];
+
+    /** Nonce-independent part of W[16] and W[17] */
+    private int w16Partial, w17Partial;
+
+    /** Target words in little-endian order */
+    private final int[] targetWords = new int[8];
+
+    /** JCA SHA-256 message digest */
     private final MessageDigest md;
-        
+
+    /** Input data for the JCA message digest */
+    private final byte[] input = new byte[40];
+
+    /** Output data for the JCA message digest */
+    private final byte[] output = new byte[32];
+
+    /** Use the JCA message digest instead of our own compression */
+    private boolean useProvider;
+
+    /** JCA message digest is faster than our own Java or JNI compression (set by the first instance of each) */
+    private static final Boolean[] providerFaster = new Boolean[2];
+
+    /** JNI hash function */
+    private native boolean JniHash(byte[] input, byte[] target, long nonce, int count, long epoch,
+                                   long[] result);
+
     /**
      * Create a SHA-256 hash function
      */
     public HashSha256() {
+        super();
         try {
             md = MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException exc) {
             throw new IllegalStateException("Unable to get SHA-256 digest", exc);
         }
+        synchronized(HashSha256.class) {
+            int index = (useJni ? 1 : 0);
+            if (providerFaster[index] == null) {
+                useProvider = false;
+                long javaTime = calibrate();
+                useProvider = true;
+                long providerTime = calibrate();
+                providerFaster[index] = (providerTime < javaTime);
+                log.info(String.format("Using %s SHA-256 compression for CPU hashing",
+                                       providerFaster[index] ? "JCA provider" : useJni ? "native" : "Java"));
+            }
+            useProvider = providerFaster[index];
+        }
     }
-    
+
+    /**
+     * Time the current SHA-256 implementation
+     *
+     * @return                      Elapsed time (nanoseconds)
+     */
+    private long calibrate() {
+        byte[] inputBytes = new byte[40];
+        byte[] targetBytes = new byte[32];
+        long elapsedTime = 0;
+        for (int i=0; i<3; i++) {
+            long startTime = System.nanoTime();
+            if (useJni && !useProvider) {
+                JniHash(inputBytes, targetBytes, 0, 64*1024, getTargetEpoch(), jniResult);
+            } else {
+                setInput(inputBytes, targetBytes);
+                for (int j=0; j<64*1024; j++)
+                    doHash();
+            }
+            elapsedTime = System.nanoTime()-startTime;
+        }
+        return elapsedTime;
+    }
+
     /**
      * Hash the input bytes
-     * 
-     * @param       input           Input bytes (40 bytes)
-     * @param       target          Target (32 bytes)
+     *
+     * @param       inputBytes      Input bytes (40 bytes)
+     * @param       targetBytes     Target (32 bytes)
      * @param       initialNonce    Initial nonce
-     * @return                      Hash digest (32 bytes)
+     * @param       epoch           Target epoch for this work
+     * @param       count           Maximum number of hashes
+     * @return                      TRUE if the target was met
      */
     @Override
-    public boolean hash(byte[] input, byte[] target, long initialNonce) {
+    protected boolean hash(byte[] inputBytes, byte[] targetBytes, long initialNonce, long epoch, int count) {
+        boolean meetsTarget = false;
+        //
+        // Use the JNI hash function if it is available
+        //
+        if (useJni && !useProvider) {
+            meetsTarget = JniHash(inputBytes, targetBytes, initialNonce, count, epoch, jniResult);
+            nonce = jniResult[0];
+            hashCount = (int)jniResult[1];
+            return meetsTarget;
+        }
+        //
+        // Use the Java hash function
+        //
         nonce = initialNonce;
         hashCount = 0;
-        boolean meetsTarget = false;
         Thread thread = Thread.currentThread();
+        setInput(inputBytes, targetBytes);
         //
-        // Keep hashing until we meet the target or the maximum loop count is reached
+        // Keep hashing until we meet the target, the maximum loop count is reached or
+        // the target epoch changes
         //
-        for (int i=0; i<512*1024 && !meetsTarget; i++) {
-            if (thread.isInterrupted())
+        for (int i=0; i<count && !meetsTarget; i++) {
+            if (thread.isInterrupted() || getTargetEpoch() != epoch)
                 break;
-            //
-            // Note that the nonce is stored in the first 8 bytes of the input data.  We will increment
-            // it each time through the hash loop.
-            //
-            nonce++;
-            input[0] = (byte)nonce;
-            input[1] = (byte)(nonce>>8);
-            input[2] = (byte)(nonce>>16);
-            input[3] = (byte)(nonce>>24);
-            input[4] = (byte)(nonce>>32);
-            input[5] = (byte)(nonce>>40);
-            input[6] = (byte)(nonce>>48);
-            input[7] = (byte)(nonce>>56);
-            //
-            // Do the hash
-            //
-            byte[] output = md.digest(input);
+            meetsTarget = doHash();
             hashCount++;
-            //
-            // Check if we have met the target
-            //
-            meetsTarget = true;
-            for (int j=31; j>=0; j--) {
-                int b0 = (int)output[j]&0xff;
-                int b1 = (int)target[j]&0xff;
-                if (b0 < b1)
-                    break;
-                if (b0 > b1) {
-                    meetsTarget = false;
-                    break;
-                }
-            }
-            if (meetsTarget)
-                System.arraycopy(output, 0, digest, 0, 32);
         }
         return meetsTarget;
     }
+
+    /**
+     * Build the constant part of the message schedule
+     *
+     * SHA-256 processes data in 64-byte blocks where the data bit count
+     * is stored in the last 8 bytes in big-endian format.  The first pad
+     * byte is 0x80 and the remaining pad bytes are 0x00.  Since we have
+     * 40 bytes of data, the data bit count is 320 (0x140).
+     *
+     * @param       inputBytes      Input bytes (40 bytes)
+     * @param       targetBytes     Target (32 bytes)
+     */
+    private void setInput(byte[] inputBytes, byte[] targetBytes) {
+        int i;
+        for (i=2; i<10; i++)
+            W[i] = (((int)inputBytes[i*4]&0xff) << 24) |
+                    (((int)inputBytes[i*4+1]&0xff) << 16) |
+                    (((int)inputBytes[i*4+2]&0xff) << 8) |
+                    ((int)inputBytes[i*4+3]&0xff);
+        W[10] = 0x80000000;
+        for (i=11; i<15; i++)
+            W[i] = 0;
+        W[15] = 320;
+        //
+        // W[16] and W[17] depend on W[0] and W[1] respectively, so we can
+        // compute the rest of each sum now
+        //
+        w16Partial = sigma1(W[14]) + W[9];
+        w17Partial = sigma1(W[15]) + W[10] + sigma0(W[2]);
+        //
+        // The digest and the target are treated as 32-byte unsigned numbers in little-endian
+        // format, so each digest word (which is big-endian) is compared to the byte-reversed
+        // target word
+        //
+        for (i=0; i<8; i++)
+            targetWords[i] = ((int)targetBytes[i*4]&0xff) |
+                                (((int)targetBytes[i*4+1]&0xff) << 8) |
+                                (((int)targetBytes[i*4+2]&0xff) << 16) |
+                                (((int)targetBytes[i*4+3]&0xff) << 24);
+        if (useProvider)
+            System.arraycopy(inputBytes, 8, input, 8, 32);
+    }
+
+    /**
+     * Perform a single hash
+     *
+     * @return                      TRUE if the target is met
+     */
+    private boolean doHash() {
+        int i;
+        //
+        // Note that the nonce is stored in the first 8 bytes of the input data in little-endian
+        // format.  We will increment it each time through the hash loop.
+        //
+        nonce++;
+        if (useProvider)
+            return doProviderHash();
+        int w0 = Integer.reverseBytes((int)nonce);
+        int w1 = Integer.reverseBytes((int)(nonce>>>32));
+        W[0] = w0;
+        W[1] = w1;
+        W[16] = w16Partial + sigma0(w1) + w0;
+        W[17] = w17Partial + w1;
+        for (i=18; i<64; i++)
+            W[i] = sigma1(W[i-2]) + W[i-7] + sigma0(W[i-15]) + W[i-16];
+        //
+        // Compress the block
+        //
+        int a = H0, b = H1, c = H2, d = H3, e = H4, f = H5, g = H6, h = H7;
+        for (i=0; i<64; i+=8) {
+            h += Sum1(e) + Ch(e, f, g) + K[i] + W[i];
+            d += h;
+            h += Sum0(a) + Maj(a, b, c);
+
+            g += Sum1(d) + Ch(d, e, f) + K[i+1] + W[i+1];
+            c += g;
+            g += Sum0(h) + Maj(h, a, b);
+
+            f += Sum1(c) + Ch(c, d, e) + K[i+2] + W[i+2];
+            b += f;
+            f += Sum0(g) + Maj(g, h, a);
+
+            e += Sum1(b) + Ch(b, c, d) + K[i+3] + W[i+3];
+            a += e;
+            e += Sum0(f) + Maj(f, g, h);
+
+            d += Sum1(a) + Ch(a, b, c) + K[i+4] + W[i+4];
+            h += d;
+            d += Sum0(e) + Maj(e, f, g);
+
+            c += Sum1(h) + Ch(h, a, b) + K[i+5] + W[i+5];
+            g += c;
+            c += Sum0(d) + Maj(d, e, f);
+
+            b += Sum1(g) + Ch(g, h, a) + K[i+6] + W[i+6];
+            f += b;
+            b += Sum0(c) + Maj(c, d, e);
+
+            a += Sum1(f) + Ch(f, g, h) + K[i+7] + W[i+7];
+            e += a;
+            a += Sum0(b) + Maj(b, c, d);
+        }
+        a += H0;
+        b += H1;
+        c += H2;
+        d += H3;
+        e += H4;
+        f += H5;
+        g += H6;
+        h += H7;
+        //
+        // Check if we have met the target
+        //
+        boolean isSolved = true;
+        for (i=7; i>=0; i--) {
+            int check = Integer.reverseBytes(i==0 ? a : i==1 ? b : i==2 ? c : i==3 ? d :
+                                             i==4 ? e : i==5 ? f : i==6 ? g : h);
+            int cmp = Integer.compareUnsigned(check, targetWords[i]);
+            if (cmp < 0)
+                break;
+            if (cmp > 0) {
+                isSolved = false;
+                break;
+            }
+        }
+        //
+        // Set the digest if we have a match
+        //
+        if (isSolved) {
+            setDigest(0, a);
+            setDigest(4, b);
+            setDigest(8, c);
+            setDigest(12, d);
+            setDigest(16, e);
+            setDigest(20, f);
+            setDigest(24, g);
+            setDigest(28, h);
+        }
+        return isSolved;
+    }
+
+    /**
+     * Perform a single hash using the JCA message digest
+     *
+     * @return                      TRUE if the target is met
+     */
+    private boolean doProviderHash() {
+        input[0] = (byte)nonce;
+        input[1] = (byte)(nonce>>8);
+        input[2] = (byte)(nonce>>16);
+        input[3] = (byte)(nonce>>24);
+        input[4] = (byte)(nonce>>32);
+        input[5] = (byte)(nonce>>40);
+        input[6] = (byte)(nonce>>48);
+        input[7] = (byte)(nonce>>56);
+        md.update(input);
+        try {
+            md.digest(output, 0, 32);
+        } catch (DigestException exc) {
+            throw new IllegalStateException("Unable to finish SHA-256 digest", exc);
+        }
+        //
+        // Check if we have met the target
+        //
+        boolean isSolved = true;
+        for (int i=7; i>=0; i--) {
+            int check = ((int)output[i*4]&0xff) |
+                            (((int)output[i*4+1]&0xff) << 8) |
+                            (((int)output[i*4+2]&0xff) << 16) |
+                            (((int)output[i*4+3]&0xff) << 24);
+            int cmp = Integer.compareUnsigned(check, targetWords[i]);
+            if (cmp < 0)
+                break;
+            if (cmp > 0) {
+                isSolved = false;
+                break;
+            }
+        }
+        if (isSolved)
+            System.arraycopy(output, 0, digest, 0, 32);
+        return isSolved;
+    }
+
+    /**
+     * Store a digest word in big-endian format
+     *
+     * @param       offset          Digest offset
+     * @param       value           Digest word
+     */
+    private void setDigest(int offset, int value) {
+        digest[offset] = (byte)(value >>> 24);
+        digest[offset+1] = (byte)(value >>> 16);
+        digest[offset+2] = (byte)(value >>> 8);
+        digest[offset+3] = (byte)value;
+    }
+
+    /**
+     * SHA-256 Ch function
+     *
+     * @param       x               First word
+     * @param       y               Second word
+     * @param       z               Third word
+     * @return                      Function result
+     */
+    static int Ch(int x, int y, int z) {
+        return (x & y) ^ (~x & z);
+    }
+
+    /**
+     * SHA-256 Maj function
+     *
+     * @param       x               First word
+     * @param       y               Second word
+     * @param       z               Third word
+     * @return                      Function result
+     */
+    static int Maj(int x, int y, int z) {
+        return (x & y) ^ (x & z) ^ (y & z);
+    }
+
+    /**
+     * SHA-256 Sum0 function
+     *
+     * @param       x               Working variable
+     * @return                      Function result
+     */
+    static int Sum0(int x) {
+        return Integer.rotateRight(x, 2) ^ Integer.rotateRight(x, 13) ^ Integer.rotateRight(x, 22);
+    }
+
+    /**
+     * SHA-256 Sum1 function
+     *
+     * @param       x               Working variable
+     * @return                      Function result
+     */
+    static int Sum1(int x) {
+        return Integer.rotateRight(x, 6) ^ Integer.rotateRight(x, 11) ^ Integer.rotateRight(x, 25);
+    }
+
+    /**
+     * SHA-256 small sigma0 function
+     *
+     * @param       x               Schedule word
+     * @return                      Function result
+     */
+    static int sigma0(int x) {
+        return Integer.rotateRight(x, 7) ^ Integer.rotateRight(x, 18) ^ (x >>> 3);
+    }
+
+    /**
+     * SHA-256 small sigma1 function
+     *
+     * @param       x               Schedule word
+     * @return                      Function result
+     */
+    static int sigma1(int x) {
+        return Integer.rotateRight(x, 17) ^ Integer.rotateRight(x, 19) ^ (x >>> 10);
+    }
 }
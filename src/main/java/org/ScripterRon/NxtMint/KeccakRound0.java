@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.NxtMint;
+
+/**
+ * First Keccak round precomputation for the KECCAK25 and SHA3 hash functions
+ *
+ * The 40-byte input data is absorbed as a single block where only lane 0 (the nonce)
+ * changes for each hash.  The theta, rho and pi steps are linear, so the lanes after
+ * the pi step of the first round are the lanes computed with a zero nonce XOR'ed with
+ * the rotated nonce contributions:
+ *     Lane 0:                 nonce
+ *     Lanes 1, 8, 10, 17, 24: nonce rotated left 44, 45, 1, 10, 2
+ *     Lanes 4, 6, 13, 15, 22: nonce rotated left 15, 21, 9, 28, 40
+ *     Other lanes:            no nonce contribution
+ *
+ * The hash functions then just need to perform the chi and iota steps for the
+ * first round.  The same precomputed lanes are passed to the GPU kernels and the
+ * native hash functions use the same method.
+ */
+public class KeccakRound0 {
+
+    /** Rho rotation offsets */
+    private static final int[] rhoOffsets = {
+         0,  1, 62, 28, 27,
+        36, 44,  6, 55, 20,
+         3, 10, 43, 25, 39,
+        41, 45, 15, 21,  8,
+        18,  2, 61, 56, 14
+    };
+
+    /**
+     * Precompute the first round lanes for the input data
+     *
+     * The lanes are returned in the order produced by the pi step
+     *
+     * @param       inputBytes      Input data (40 bytes)
+     * @param       lanes           Precomputed lanes (25 longs)
+     */
+    public static void precompute(byte[] inputBytes, long[] lanes) {
+        if (inputBytes.length != 40)
+            throw new IllegalArgumentException("Input data length must be 40 bytes");
+        if (lanes.length != 25)
+            throw new IllegalArgumentException("Lane array length must be 25");
+        //
+        // Initialize the state with a zero nonce and the Keccak padding
+        //
+        long[] state = new long[25];
+        for (int i=1; i<5; i++)
+            state[i] = getLane(inputBytes, i*8);
+        state[5] = 1;
+        state[16] = 0x8000000000000000L;
+        //
+        // theta(state)
+        //
+        long[] C = new long[5];
+        for (int x=0; x<5; x++)
+            C[x] = state[x] ^ state[x+5] ^ state[x+10] ^ state[x+15] ^ state[x+20];
+        for (int x=0; x<5; x++) {
+            long dX = Long.rotateLeft(C[(x+1)%5], 1) ^ C[(x+4)%5];
+            for (int y=0; y<5; y++)
+                state[x+5*y] ^= dX;
+        }
+        //
+        // rho(state) and pi(state)
+        //
+        for (int x=0; x<5; x++) {
+            for (int y=0; y<5; y++) {
+                int index = x+5*y;
+                lanes[y+5*((2*x+3*y)%5)] = Long.rotateLeft(state[index], rhoOffsets[index]);
+            }
+        }
+    }
+
+    /**
+     * Get a little-endian lane from the input data
+     *
+     * @param       bytes           Input data
+     * @param       offset          Lane offset
+     * @return                      Lane value
+     */
+    public static long getLane(byte[] bytes, int offset) {
+        return ((long)bytes[offset] & 0xFF) |
+                (((long)bytes[offset+1] & 0xFF) << 8) |
+                (((long)bytes[offset+2] & 0xFF) << 16) |
+                (((long)bytes[offset+3] & 0xFF) << 24) |
+                (((long)bytes[offset+4] & 0xFF) << 32) |
+                (((long)bytes[offset+5] & 0xFF) << 40) |
+                (((long)bytes[offset+6] & 0xFF) << 48) |
+                (((long)bytes[offset+7] & 0xFF) << 56);
+    }
+}
@@ -136,6 +136,42 @@ public class Main {
     /** GPU intensity */
     public static int gpuIntensity = 0;
 
+    /** Scrypt GPU lookup gap (0 to select the lookup gap for each device) */
+    public static int scryptLookupGap = 0;
+
+    /** Number of nonces hashed in lockstep by the Java Scrypt hash function */
+    public static int scryptLanes = 1;
+
+    /** CPU hash batch time slice (milliseconds) */
+    public static int batchTime = 50;
+
+    /** CPU worker thread placement */
+    public static String cpuAffinity = "none";
+
+    /** Select the CPU hashing configuration at startup */
+    public static boolean autotune = false;
+
+    /** Select the GPU configuration at startup */
+    public static boolean gputune = false;
+
+    /** Profile the GPU commands */
+    public static boolean gpuProfile = false;
+
+    /** Use the Java Vector API hash functions when the native library is not used */
+    public static boolean vectorApi = true;
+
+    /** Use huge pages for the native hash function scratch memory */
+    public static boolean hugePages = false;
+
+    /** Maximum CPU worker duty cycle (percent) */
+    public static int dutyCycle = 100;
+
+    /** Maximum host processor usage (percent or 0 if there is no limit) */
+    public static int hostCpuLimit = 0;
+
+    /** Local control port (0 if the control interface is disabled) */
+    public static int controlPort = 0;
+
     /** GPU devices */
     public static List<Integer> gpuDevices = new ArrayList<>();
 
@@ -218,6 +254,21 @@ public class Main {
                 throw new IllegalArgumentException("Currency code is not valid");
             if (gpuIntensity > 1048576)
                 throw new IllegalArgumentException("Maximum gpuIntensity is 1,048,576");
+            if (scryptLookupGap<0 || scryptLookupGap>GpuScrypt.MAX_LOOKUP_GAP)
+                throw new IllegalArgumentException(String.format("scryptLookupGap must be between 0 and %d",
+                                                                 GpuScrypt.MAX_LOOKUP_GAP));
+            if (scryptLanes!=1 && scryptLanes!=2 && scryptLanes!=4)
+                throw new IllegalArgumentException("scryptLanes must be 1, 2 or 4");
+            if (batchTime<1 || batchTime>10000)
+                throw new IllegalArgumentException("batchTime must be between 1 and 10,000 milliseconds");
+            if (!cpuAffinity.toLowerCase().matches("none|spread|compact|[0-9]+( *, *[0-9]+)*"))
+                throw new IllegalArgumentException("cpuAffinity must be none, spread, compact or a list of CPU numbers");
+            if (dutyCycle<1 || dutyCycle>100)
+                throw new IllegalArgumentException("dutyCycle must be between 1 and 100");
+            if (hostCpuLimit<0 || hostCpuLimit>100)
+                throw new IllegalArgumentException("hostCpuLimit must be between 0 and 100");
+            if (controlPort<0 || controlPort>65535)
+                throw new IllegalArgumentException("controlPort must be between 0 and 65,535");
             accountId = Utils.getAccountId(Crypto.getPublicKey(secretPhrase));
             //
             // Get the application build properties
@@ -316,6 +367,17 @@ public class Main {
                 }
             }
             //
+            // Select the GPU configuration
+            //
+            GpuFunction.setProfiling(gpuProfile);
+            if (gputune && gpuIntensity > 0)
+                GpuTune.tune(currency.getAlgorithm());
+            //
+            // Select the CPU hashing configuration
+            //
+            if (autotune && cpuThreads > 0)
+                AutoTune.tune(currency.getAlgorithm());
+            //
             // Start the GUI
             //
             if (enableGUI) {
@@ -325,6 +387,11 @@ public class Main {
                     Thread.sleep(1000);
             }
             //
+            // Start the control interface
+            //
+            if (controlPort > 0)
+                ControlServer.start(controlPort);
+            //
             // Start minting
             //
             Mint.mint();
@@ -457,6 +524,42 @@ public class Main {
                         case "gpuintensity":
                             gpuIntensity = Integer.valueOf(value);
                             break;
+                        case "scryptlookupgap":
+                            scryptLookupGap = Integer.valueOf(value);
+                            break;
+                        case "scryptlanes":
+                            scryptLanes = Integer.valueOf(value);
+                            break;
+                        case "batchtime":
+                            batchTime = Integer.valueOf(value);
+                            break;
+                        case "cpuaffinity":
+                            cpuAffinity = value;
+                            break;
+                        case "autotune":
+                            autotune = Boolean.valueOf(value);
+                            break;
+                        case "gputune":
+                            gputune = Boolean.valueOf(value);
+                            break;
+                        case "gpuprofile":
+                            gpuProfile = Boolean.valueOf(value);
+                            break;
+                        case "vectorapi":
+                            vectorApi = Boolean.valueOf(value);
+                            break;
+                        case "hugepages":
+                            hugePages = Boolean.valueOf(value);
+                            break;
+                        case "dutycycle":
+                            dutyCycle = Integer.valueOf(value);
+                            break;
+                        case "hostcpulimit":
+                            hostCpuLimit = Integer.valueOf(value);
+                            break;
+                        case "controlport":
+                            controlPort = Integer.valueOf(value);
+                            break;
                         case "gpudevice":
                             String[] splits = value.split(",");
                             gpuDevices.add(Integer.valueOf(splits[0].trim()));
@@ -149,6 +149,12 @@ public final class MainWindow extends JFrame implements ActionListener {
         //
         menuBar.add(new Menu(this, "Details", new String[] {"Worker Details", "workerDetails"}));
         //
+        // Add the "Workers" menu to the menu bar
+        //
+        // The "Workers" menu contains "CPU Threads"
+        //
+        menuBar.add(new Menu(this, "Workers", new String[] {"CPU Threads", "cpuThreads"}));
+        //
         // Add the "Help" menu to the menu bar
         //
         // The "Help" menu contains "About"
@@ -299,6 +305,7 @@ public final class MainWindow extends JFrame implements ActionListener {
         // "about"          - Display information about this program
         // "exit"           - Exit the program
         // "workerDetails"  - Open the worker details dialog
+        // "cpuThreads"     - Change the number of CPU workers
         //
         try {
             String action = ae.getActionCommand();
@@ -312,6 +319,9 @@ public final class MainWindow extends JFrame implements ActionListener {
             case "workerDetails":
                 WorkerDetailsDialog.showDialog(this, Mint.getWorkers());
                 break;
+            case "cpuThreads":
+                changeCpuThreads();
+                break;
             }
         } catch (Exception exc) {
             Main.logException("Exception while processing action event", exc);
@@ -352,6 +362,21 @@ public final class MainWindow extends JFrame implements ActionListener {
         Main.shutdown();
     }
 
+    /**
+     * Change the number of CPU workers
+     */
+    private void changeCpuThreads() {
+        String value = JOptionPane.showInputDialog(this, "Number of CPU workers", Main.cpuThreads);
+        if (value == null)
+            return;
+        try {
+            Mint.setCpuThreads(Integer.valueOf(value.trim()));
+        } catch (IllegalArgumentException exc) {
+            JOptionPane.showMessageDialog(this, "The CPU worker count must be a non-negative integer",
+                                          "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
     /**
      * Display information about the NxtMint application
      */
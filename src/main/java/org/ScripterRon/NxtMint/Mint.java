@@ -22,21 +22,41 @@ import org.ScripterRon.NxtCore.Nxt;
 import org.ScripterRon.NxtCore.NxtException;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Mint mints coins for a Nxt Monetary System currency using multiple worker
  * threads to perform the hash functions.
+ *
+ * The current target is sent to every worker, but the nonces are not divided
+ * among the workers in advance.  Each worker pulls a nonce range from the shared
+ * allocator whenever it finishes a batch and the range size is based on its own
+ * hash rate.  So a fast device simply comes back for more work while a slow or
+ * throttled device takes less, and a GPU worker that has fallen back to CPU
+ * hashing just starts requesting smaller ranges.
  */
 public class Mint {
 
     /** Mint thread */
     private static Thread mintThread;
 
-    /** Thread list */
-    private static final List<MintWorker> workers = new ArrayList<>();
+    /** Thread list (CPU workers can be added and removed while minting) */
+    private static final List<MintWorker> workers = new CopyOnWriteArrayList<>();
+
+    /** Retired workers that may still be running */
+    private static final List<MintWorker> retiredWorkers = new CopyOnWriteArrayList<>();
+
+    /** Next worker identifier */
+    private static int nextWorkerId;
+
+    /** Target sent to the workers (null if there is no current target) */
+    private static MintingTarget dispatchedTarget;
 
     /** Thread group */
     private static final ThreadGroup threadGroup = new ThreadGroup("Workers");
@@ -58,7 +78,37 @@ public class Mint {
 
     /** Current minting target */
     public static MintingTarget mintingTarget;
+
+    /** Next unallocated nonce for each active counter */
+    private static final Map<Long, Long> nextNonces = new HashMap<>();
     
+    /**
+     * Allocate a nonce range for a worker
+     *
+     * Each worker gets a contiguous range of nonces that doesn't overlap the range
+     * given to any other worker for the same counter, so no nonce is hashed twice.
+     * The worker requests a range size that matches its hash rate.  The ranges for
+     * a new counter start at a random nonce so a restart doesn't repeat the same
+     * nonces.  A range never crosses a 32-bit boundary since some hash functions
+     * only modify the low 32 bits of the nonce.
+     *
+     * @param       counter         Minting counter
+     * @param       count           Number of nonces
+     * @return                      First nonce in the range
+     */
+    public static synchronized long allocateNonces(long counter, int count) {
+        Long next = nextNonces.get(counter);
+        if (next == null) {
+            nextNonces.keySet().removeIf((c) -> c < counter-1);
+            next = ThreadLocalRandom.current().nextLong();
+        }
+        long nonce = next;
+        if (count > 1 && (nonce>>>32) != ((nonce+count-1)>>>32))
+            nonce = (nonce+0x100000000L) & 0xffffffff00000000L;
+        nextNonces.put(counter, nonce+count);
+        return nonce;
+    }
+
     /**
      * Start minting
      */
@@ -83,21 +133,16 @@ public class Mint {
             //
             // Start the CPU worker threads
             //
-            for (int i=0; i<Main.cpuThreads; i++) {
-                MintWorker worker = new MintWorker(i, solutions, false, 0);
-                Thread thread = new Thread(threadGroup, worker);
-                thread.start();
-                workers.add(worker);
-            }
+            CpuAffinity.init();
+            Throttle.init();
+            setCpuThreads(Main.cpuThreads);
             //
             // Start the GPU worker threads
             //
             if (Main.gpuIntensity > 0) {
-                for (Integer gpuId : Main.gpuDevices) {
-                    MintWorker worker = new MintWorker(workers.size(), solutions, true, gpuId);
-                    Thread thread = new Thread(threadGroup, worker);
-                    thread.start();
-                    workers.add(worker);
+                synchronized(workers) {
+                    for (Integer gpuId : Main.gpuDevices)
+                        startWorker(true, gpuId, -1);
                 }
             }
             //
@@ -114,6 +159,9 @@ public class Mint {
                     Solution solution = solutions.take();
                     if (solution.getCounter() > submitCounter) {
                         workDispatched = false;
+                        synchronized(workers) {
+                            dispatchedTarget = null;
+                        }
                         submitCounter = solution.getCounter();
                         pending.add(solution);
                         log.debug(String.format("Solution for counter %d added to pending queue", solution.getCounter()));
@@ -132,7 +180,11 @@ public class Mint {
                         log.error("Unable to get new minting target", exc);
                         throw new InterruptedException("Abormal shutdown");
                     }
-                    workers.stream().forEach((worker) -> worker.newTarget(mintingTarget));
+                    synchronized(workers) {
+                        workers.stream().forEach((worker) -> worker.newTarget(mintingTarget));
+                        dispatchedTarget = mintingTarget;
+                        HashFunction.advanceTargetEpoch();
+                    }
                     workDispatched = true;
                 }
                 //
@@ -184,6 +236,54 @@ public class Mint {
         }
     }
 
+    /**
+     * Change the number of CPU workers
+     *
+     * New workers start on the current target.  Retired workers finish their current
+     * batch (returning a solution if one is found) and then stop.  They are kept in the
+     * retired worker list until they stop so they are included in shutdown().
+     *
+     * @param       count           Number of CPU workers
+     */
+    public static void setCpuThreads(int count) {
+        if (count < 0)
+            throw new IllegalArgumentException("CPU thread count cannot be negative");
+        synchronized(workers) {
+            retiredWorkers.removeIf((worker) -> worker.isStopped());
+            List<MintWorker> cpuWorkers = new ArrayList<>();
+            workers.stream().filter((worker) -> worker.getCpuSlot() >= 0).forEach((worker) -> cpuWorkers.add(worker));
+            for (int slot=cpuWorkers.size(); slot<count; slot++)
+                startWorker(false, 0, slot);
+            for (int slot=cpuWorkers.size()-1; slot>=count; slot--) {
+                MintWorker worker = cpuWorkers.get(slot);
+                workers.remove(worker);
+                retiredWorkers.add(worker);
+                worker.retire();
+            }
+            if (count != cpuWorkers.size())
+                log.info(String.format("Using %d CPU workers", count));
+            Main.cpuThreads = count;
+        }
+    }
+
+    /**
+     * Start a worker
+     *
+     * The caller must hold the workers lock
+     *
+     * @param       gpuWorker       TRUE if this is a GPU worker
+     * @param       gpuId           GPU identifier
+     * @param       cpuSlot         CPU slot for a CPU worker or -1 for a GPU worker
+     */
+    private static void startWorker(boolean gpuWorker, int gpuId, int cpuSlot) {
+        MintWorker worker = new MintWorker(nextWorkerId++, solutions, gpuWorker, gpuId, cpuSlot);
+        if (dispatchedTarget != null)
+            worker.newTarget(dispatchedTarget);
+        Thread thread = new Thread(threadGroup, worker);
+        thread.start();
+        workers.add(worker);
+    }
+
     /**
      * Stop minting
      */
@@ -200,6 +300,7 @@ public class Mint {
             // Stop the worker threads
             //
             workers.stream().forEach((worker) -> worker.shutdown());
+            retiredWorkers.stream().forEach((worker) -> worker.shutdown());
         } catch (InterruptedException exc) {
             log.error("Unable to wait for workers to terminate", exc);
         }
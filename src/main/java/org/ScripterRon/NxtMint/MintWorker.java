@@ -22,7 +22,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Date;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Mint worker
@@ -38,6 +38,18 @@ public class MintWorker implements Runnable {
     /** GPU identifier */
     private int gpuId;
 
+    /** CPU slot (-1 for a GPU worker) */
+    private final int cpuSlot;
+
+    /** Worker has been retired */
+    private volatile boolean retired;
+
+    /** Worker is waiting for a hash target */
+    private volatile boolean waiting;
+
+    /** Worker has stopped */
+    private volatile boolean stopped;
+
     /** GPU disabled */
     private boolean gpuDisabled;
 
@@ -45,7 +57,7 @@ public class MintWorker implements Runnable {
     private long gpuDisabledTime;
 
     /** Worker thread */
-    private Thread thread;
+    private volatile Thread thread;
 
     /** Work queue */
     private final ArrayBlockingQueue<MintingTarget> workQueue = new ArrayBlockingQueue<>(5);
@@ -54,7 +66,7 @@ public class MintWorker implements Runnable {
     private final ArrayBlockingQueue<Solution> solutionQueue;
 
     /** CPU hash function */
-    private final HashFunction hashFunction;
+    private HashFunction hashFunction;
 
     /** GPU hash function */
     private GpuFunction gpuFunction;
@@ -65,6 +77,21 @@ public class MintWorker implements Runnable {
     /** Nonce */
     private long nonce;
 
+    /** Hashes performed after a target switch for the previous target */
+    private volatile long staleHashes;
+
+    /** Number of target switches */
+    private volatile long targetSwitches;
+
+    /** Time spent hashing (nanoseconds) */
+    private volatile long busyTime;
+
+    /** Time spent paused by the throttle (nanoseconds) */
+    private volatile long pausedTime;
+
+    /** Throttle pause lock */
+    private final Object pauseLock = new Object();
+
     private volatile long startTime;
 
     /**
@@ -74,12 +101,14 @@ public class MintWorker implements Runnable {
      * @param solutionQueue         Hash solution queue
      * @param gpuWorker             TRUE if this is the GPU worker
      * @param gpuId                 GPU identifier
+     * @param cpuSlot               CPU slot for a CPU worker or -1 for a GPU worker
      */
-    public MintWorker(int workerId, ArrayBlockingQueue<Solution> solutionQueue, boolean gpuWorker, int gpuId) {
+    public MintWorker(int workerId, ArrayBlockingQueue<Solution> solutionQueue, boolean gpuWorker, int gpuId,
+                                        int cpuSlot) {
         this.workerId = workerId;
+        this.cpuSlot = cpuSlot;
         this.solutionQueue = solutionQueue;
         this.gpuWorker = gpuWorker;
-        hashFunction = HashFunction.factory(Main.currency.getAlgorithm());
         if (gpuWorker) {
             this.gpuId = gpuId;
             try {
@@ -102,19 +131,40 @@ public class MintWorker implements Runnable {
             log.info(String.format("GPU worker %d starting on GPU %d", workerId, gpuId));
         else
             log.info(String.format("CPU worker %d starting", workerId));
+        long profileTime = System.currentTimeMillis();
         //
         // Process hashing targets until shutdown
         //
         try {
+            //
+            // Create the hash function after binding a CPU worker to its processor so
+            // the hash function scratch memory is allocated on the local NUMA node
+            //
+            if (cpuSlot >= 0)
+                CpuAffinity.bindWorker(cpuSlot);
+            hashFunction = HashFunction.factory(Main.currency.getAlgorithm());
             while (true) {
                 //
-                // Get the next hash target
+                // Get the next hash target.  Targets that were replaced while we were
+                // busy are skipped since only the latest target is current.  A retired
+                // worker is interrupted while it is waiting for a target.
                 //
+                waiting = true;
+                if (retired) {
+                    log.info(String.format("Worker %d retired", workerId));
+                    return;
+                }
                 MintingTarget target = workQueue.take();
+                waiting = false;
+                MintingTarget nextTarget;
+                while ((nextTarget=workQueue.poll()) != null)
+                    target = nextTarget;
                 long counter = target.getCounter() + 1;
                 log.debug(String.format("Worker %d starting on counter %d", workerId, counter));
                 byte[] targetBytes = target.getTarget();
                 hashCount = 0;
+                busyTime = 0;
+                pausedTime = 0;
                 startTime = System.currentTimeMillis();
                 long statusTime = startTime;
                 //
@@ -124,11 +174,35 @@ public class MintWorker implements Runnable {
                 while (true) {
                     if (thread.isInterrupted())
                         throw new InterruptedException("Shutting down");
+                    if (retired) {
+                        log.info(String.format("Worker %d retired", workerId));
+                        return;
+                    }
+                    //
+                    // The target epoch is obtained before checking the work queue.  Mint
+                    // advances the epoch after queuing a new target, so a target queued
+                    // after the check will cause the hash function to stop hashing.
+                    //
+                    long epoch = HashFunction.getTargetEpoch();
                     if (!workQueue.isEmpty()) {
-                        log.debug(String.format("Worker %d abandoning counter %d", workerId, counter));
+                        targetSwitches++;
+                        log.debug(String.format("Worker %d abandoning counter %d, %,.0f stale hashes per target switch",
+                                                workerId, counter, getStaleHashes()));
                         break;
                     }
-                    nonce = (ThreadLocalRandom.current().nextLong() & 0xf0ffffffffffffffL) | ((long) workerId << 56);
+                    //
+                    // Park a CPU worker while the throttle has no processor time for it
+                    //
+                    boolean useGpu = (gpuWorker && !gpuDisabled);
+                    if (!useGpu && Throttle.isParked()) {
+                        pause(Throttle.SAMPLE_INTERVAL*1000000L);
+                        continue;
+                    }
+                    //
+                    // Get the nonce range for this batch
+                    //
+                    int batchSize = (useGpu ? gpuFunction.getBatchSize() : hashFunction.getBatchSize());
+                    nonce = Mint.allocateNonces(counter, batchSize);
                     ByteBuffer buffer = ByteBuffer.wrap(hashBytes);
                     buffer.order(ByteOrder.LITTLE_ENDIAN);
                     buffer.putLong(nonce);
@@ -137,10 +211,24 @@ public class MintWorker implements Runnable {
                     buffer.putLong(counter);
                     buffer.putLong(Main.accountId);
                     boolean meetsTarget;
-                    if (gpuWorker && !gpuDisabled)
-                        meetsTarget = gpuHash(hashBytes, targetBytes);
+                    long batchStart = System.nanoTime();
+                    long batchCount = hashCount;
+                    if (useGpu)
+                        meetsTarget = gpuHash(hashBytes, targetBytes, epoch);
                     else
-                        meetsTarget = cpuHash(hashBytes, targetBytes);
+                        meetsTarget = cpuHash(hashBytes, targetBytes, epoch);
+                    long batchTime = System.nanoTime() - batchStart;
+                    busyTime += batchTime;
+                    //
+                    // Estimate the number of hashes performed after the target epoch
+                    // changed by assuming a constant hash rate during the batch
+                    //
+                    if (HashFunction.getTargetEpoch() != epoch) {
+                        long batchEnd = System.nanoTime();
+                        long staleStart = Math.max(batchStart, HashFunction.getTargetEpochTime());
+                        if (batchEnd > batchStart && batchEnd > staleStart)
+                            staleHashes += (hashCount-batchCount)*(batchEnd-staleStart)/(batchEnd-batchStart);
+                    }
                     //
                     // Return the solution if the hash meets the target
                     //
@@ -157,11 +245,26 @@ public class MintWorker implements Runnable {
                     if (currentTime - statusTime > 1 * 60 * 1000) {
                         double count = (double) hashCount;
                         double rate = count / (double) ((currentTime - startTime) / 1000);
-                        log.debug(String.format("Worker %d: %,.2f MHash, %,.4f MHash/s", 
-                                                workerId, count/1000000.0, rate/1000000.0));
+                        log.debug(String.format("Worker %d: %,.2f MHash, %,.4f MHash/s, %.0f%% duty cycle",
+                                                workerId, count/1000000.0, rate/1000000.0, getDutyCycle()));
                         statusTime = currentTime;
                     }
                     //
+                    // Log the GPU profile every 5 minutes
+                    //
+                    if (useGpu && Main.gpuProfile && currentTime-profileTime > 5*60*1000) {
+                        Main.gpuDeviceList.get(gpuId).getProfile().log(gpuId);
+                        profileTime = currentTime;
+                    }
+                    //
+                    // Pause a CPU worker to maintain the throttle duty cycle
+                    //
+                    if (!useGpu) {
+                        long pauseTime = Throttle.getPauseTime(batchTime);
+                        if (pauseTime > 0)
+                            pause(pauseTime);
+                    }
+                    //
                     // Re-enable the GPU if we have waited 5 minuts
                     //
                     if (gpuDisabled && currentTime-gpuDisabledTime>5*60*1000) {
@@ -172,9 +275,16 @@ public class MintWorker implements Runnable {
                 }
             }
         } catch (InterruptedException exc) {
-            log.info(String.format("Worker %d stopping", workerId));
+            if (retired)
+                log.info(String.format("Worker %d retired", workerId));
+            else
+                log.info(String.format("Worker %d stopping", workerId));
         } catch (Throwable exc) {
             log.error(String.format("Worker %d terminated by exception", workerId), exc);
+        } finally {
+            if (hashFunction != null)
+                hashFunction.dispose();
+            stopped = true;
         }
     }
 
@@ -194,6 +304,31 @@ public class MintWorker implements Runnable {
         }
     }
 
+    /**
+     * Retire the worker
+     *
+     * The worker stops after finishing the current batch.  A worker waiting for a
+     * hash target is interrupted since it will not receive another target.
+     */
+    public void retire() {
+        retired = true;
+        synchronized(pauseLock) {
+            pauseLock.notify();
+        }
+        Thread workerThread = thread;
+        if (waiting && workerThread != null)
+            workerThread.interrupt();
+    }
+
+    /**
+     * Check if the worker has stopped
+     *
+     * @return                      TRUE if the worker thread has ended
+     */
+    public boolean isStopped() {
+        return stopped;
+    }
+
     /**
      * New hash target
      * 
@@ -202,20 +337,49 @@ public class MintWorker implements Runnable {
     public void newTarget(MintingTarget target) {
         try {
             workQueue.put(target);
+            synchronized(pauseLock) {
+                pauseLock.notify();
+            }
         } catch (InterruptedException exc) {
             log.error("Unable to add new target to work queue", exc);
         }
     }
 
+    /**
+     * Pause hashing
+     *
+     * The pause ends early if a new target is received or the worker is retired
+     *
+     * @param pauseTime             Pause time (nanoseconds)
+     * @throws InterruptedException Worker interrupted
+     */
+    private void pause(long pauseTime) throws InterruptedException {
+        long pauseStart = System.nanoTime();
+        long pauseEnd = pauseStart + pauseTime;
+        synchronized(pauseLock) {
+            while (workQueue.isEmpty() && !retired) {
+                long waitTime = pauseEnd - System.nanoTime();
+                if (waitTime <= 0)
+                    break;
+                TimeUnit.NANOSECONDS.timedWait(pauseLock, waitTime);
+            }
+        }
+        pausedTime += System.nanoTime() - pauseStart;
+    }
+
     /**
      * Hash using CPU threads
      * 
      * @param hashBytes             Bytes to be hashed
      * @param targetBytes           Target
+     * @param epoch                 Target epoch
      * @return                      TRUE if the hash satisfies the target
      */
-    private boolean cpuHash(byte[] hashBytes, byte[] targetBytes) {
-        boolean meetsTarget = hashFunction.hash(hashBytes, targetBytes, nonce);
+    private boolean cpuHash(byte[] hashBytes, byte[] targetBytes, long epoch) {
+        //
+        // The CPU hash functions increment the nonce before each hash
+        //
+        boolean meetsTarget = hashFunction.hash(hashBytes, targetBytes, nonce-1, epoch);
         hashCount += hashFunction.getCount();
         if (meetsTarget)
             nonce = hashFunction.getNonce();
@@ -227,12 +391,13 @@ public class MintWorker implements Runnable {
      * 
      * @param hashBytes             Bytes to be hashed
      * @param targetBytes           Target
+     * @param epoch                 Target epoch
      * @return                      TRUE if the hash satisfies the target
      */
-    private boolean gpuHash(byte[] hashBytes, byte[] targetBytes) {
+    private boolean gpuHash(byte[] hashBytes, byte[] targetBytes, long epoch) {
         boolean meetsTarget = false;
         gpuFunction.setInput(hashBytes, targetBytes);
-        if (!gpuFunction.execute()) {
+        if (!gpuFunction.execute(epoch)) {
             log.warn("GPU execution did not complete, probably due to GPU resource shortage");
             log.info("Disabling GPU hashing and reverting to CPU hashing");
             gpuDisabled = true;
@@ -257,6 +422,15 @@ public class MintWorker implements Runnable {
         return this.gpuWorker;
     }
 
+    /**
+     * Return the CPU slot
+     *
+     * @return                      CPU slot or -1 for a GPU worker
+     */
+    public int getCpuSlot() {
+        return cpuSlot;
+    }
+
     /**
      * Check if the GPU is disabled
      * 
@@ -278,12 +452,46 @@ public class MintWorker implements Runnable {
     /**
      * Return the hash rate since the last solution was found
      * 
+     * The rate is 0 if the worker has not started hashing yet
+     * 
      * @return                      Hash rate
      */
     public double getRate() {
-        long currentTime = System.currentTimeMillis();
-        double rate = hashCount/(double)((currentTime-startTime)/1000);
-        return rate;
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        if (startTime == 0 || elapsedTime <= 0)
+            return 0.0;
+        return (double)hashCount*1000.0/(double)elapsedTime;
+    }
+
+    /**
+     * Return the effective duty cycle since the last solution was found
+     *
+     * @return                      Percentage of time spent hashing
+     */
+    public double getDutyCycle() {
+        long busy = busyTime;
+        long paused = pausedTime;
+        return (busy+paused > 0 ? (double)busy*100.0/(double)(busy+paused) : 100.0);
+    }
+
+    /**
+     * Return the average number of hashes performed for the previous target
+     * after switching to a new target
+     *
+     * @return                      Stale hashes per target switch
+     */
+    public double getStaleHashes() {
+        long switches = targetSwitches;
+        return (switches!=0 ? (double)staleHashes/(double)switches : 0.0);
+    }
+
+    /**
+     * Return the GPU command profile
+     *
+     * @return                      GPU command profile or null if this is not a profiled GPU worker
+     */
+    public GpuProfile getGpuProfile() {
+        return (gpuWorker && Main.gpuProfile ? Main.gpuDeviceList.get(gpuId).getProfile() : null);
     }
 
     /**
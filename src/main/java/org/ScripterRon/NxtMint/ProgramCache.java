@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.NxtMint;
+import static org.ScripterRon.NxtMint.Main.log;
+
+import org.jocl.CL;
+import org.jocl.CLException;
+import org.jocl.Pointer;
+import org.jocl.Sizeof;
+import org.jocl.cl_context;
+import org.jocl.cl_device_id;
+import org.jocl.cl_program;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * OpenCL program binary cache
+ *
+ * Building the OpenCL programs from source can take several seconds for each program,
+ * and it is done each time a GPU worker starts or recovers from an error.  So the
+ * program binaries are saved in the OpenCL subdirectory of the application data
+ * directory and are loaded from there the next time the program is needed.
+ *
+ * The cache file name includes a hash of the platform name, device name, driver version,
+ * compiler options and program source, so a binary is not used after any of these change.
+ * A cached binary that the driver will not load is deleted and the program is built
+ * from source again.  Delete the OpenCL subdirectory to discard all of the binaries.
+ */
+public class ProgramCache {
+
+    /** Cache subdirectory */
+    private static final String CACHE_DIR = "OpenCL";
+
+    /**
+     * Build an OpenCL program
+     *
+     * @param       context         OpenCL context
+     * @param       gpuDevice       GPU device
+     * @param       pgmName         Program name
+     * @param       pgmSource       Program source
+     * @param       compilerOptions Compiler options
+     * @return                      Built program
+     * @throws      CLException     OpenCL error occurred
+     */
+    public static cl_program build(cl_context context, GpuDevice gpuDevice, String pgmName, String pgmSource,
+                                   String compilerOptions) throws CLException {
+        cl_device_id[] devices = new cl_device_id[] {gpuDevice.getDevice()};
+        Path cachePath = getCachePath(gpuDevice, pgmName, pgmSource, compilerOptions);
+        //
+        // Use the cached binary if we have one
+        //
+        if (cachePath != null && Files.isReadable(cachePath)) {
+            cl_program program = null;
+            try {
+                byte[] binary = Files.readAllBytes(cachePath);
+                int[] binaryStatus = new int[1];
+                program = CL.clCreateProgramWithBinary(context, 1, devices, new long[] {binary.length},
+                                                       new byte[][] {binary}, binaryStatus, null);
+                if (binaryStatus[0] != CL.CL_SUCCESS)
+                    throw new CLException(String.format("Binary status %d", binaryStatus[0]), binaryStatus[0]);
+                CL.clBuildProgram(program, 0, null, compilerOptions, null, null);
+                log.debug(String.format("GPU %d: Loaded cached OpenCL program '%s'",
+                                        gpuDevice.getGpuId(), pgmName));
+                return program;
+            } catch (IOException | CLException exc) {
+                log.warn(String.format("GPU %d: Cached OpenCL program '%s' is not usable - rebuilding from source",
+                                       gpuDevice.getGpuId(), pgmName), exc);
+                if (program != null)
+                    CL.clReleaseProgram(program);
+                try {
+                    Files.deleteIfExists(cachePath);
+                } catch (IOException exc2) {
+                    log.warn(String.format("Unable to delete '%s'", cachePath), exc2);
+                }
+            }
+        }
+        //
+        // Build the program from source and save the binary
+        //
+        cl_program program = CL.clCreateProgramWithSource(context, 1, new String[] {pgmSource}, null, null);
+        CL.clBuildProgram(program, 0, null, compilerOptions, null, null);
+        if (cachePath != null)
+            saveBinary(program, cachePath);
+        return program;
+    }
+
+    /**
+     * Save the program binary
+     *
+     * The binary is written to a temporary file and then renamed so another GPU worker
+     * never reads a partial binary.
+     *
+     * @param       program         Built program
+     * @param       cachePath       Cache file path
+     */
+    private static void saveBinary(cl_program program, Path cachePath) {
+        try {
+            long[] binarySize = new long[1];
+            CL.clGetProgramInfo(program, CL.CL_PROGRAM_BINARY_SIZES, Sizeof.size_t, Pointer.to(binarySize), null);
+            if (binarySize[0] == 0)
+                return;
+            byte[] binary = new byte[(int)binarySize[0]];
+            CL.clGetProgramInfo(program, CL.CL_PROGRAM_BINARIES, Sizeof.POINTER,
+                                Pointer.to(Pointer.to(binary)), null);
+            Files.createDirectories(cachePath.getParent());
+            Path tempPath = Files.createTempFile(cachePath.getParent(), "program", ".tmp");
+            try {
+                Files.write(tempPath, binary);
+                Files.move(tempPath, cachePath, StandardCopyOption.REPLACE_EXISTING,
+                                                StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempPath);
+            }
+        } catch (IOException | CLException exc) {
+            log.warn(String.format("Unable to save OpenCL program binary '%s'", cachePath), exc);
+        }
+    }
+
+    /**
+     * Return the cache file path for a program
+     *
+     * @param       gpuDevice       GPU device
+     * @param       pgmName         Program name
+     * @param       pgmSource       Program source
+     * @param       compilerOptions Compiler options
+     * @return                      Cache file path or null if the program can not be cached
+     * @throws      CLException     OpenCL error occurred
+     */
+    private static Path getCachePath(GpuDevice gpuDevice, String pgmName, String pgmSource,
+                                     String compilerOptions) throws CLException {
+        if (Main.dataPath == null)
+            return null;
+        String key = String.join("\n", OpenCL.getString(gpuDevice.getPlatform(), CL.CL_PLATFORM_NAME),
+                                       OpenCL.getString(gpuDevice.getDevice(), CL.CL_DEVICE_NAME),
+                                       OpenCL.getString(gpuDevice.getDevice(), CL.CL_DRIVER_VERSION),
+                                       compilerOptions, pgmSource);
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(32);
+            for (int i=0; i<16; i++)
+                sb.append(String.format("%02x", digest[i]&0xff));
+            String baseName = pgmName.endsWith(".cl") ? pgmName.substring(0, pgmName.length()-3) : pgmName;
+            return Paths.get(Main.dataPath, CACHE_DIR, String.format("%s-%s.bin", baseName, sb.toString()));
+        } catch (NoSuchAlgorithmException exc) {
+            log.warn("SHA-256 is not available - OpenCL programs will not be cached", exc);
+            return null;
+        }
+    }
+}
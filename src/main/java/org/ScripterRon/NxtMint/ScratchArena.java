@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.NxtMint;
+import static org.ScripterRon.NxtMint.Main.log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Native hash function scratch memory
+ *
+ * Each native hash function that needs scratch memory allocates an arena when it is
+ * created and reuses it for every hash call.  The arena is allocated by the native
+ * library from the operating system, so it is page-aligned and its pages are allocated
+ * on the NUMA node of the worker that first touches them.  When the 'hugePages'
+ * configuration option is set, the arena is backed by 2MB huge pages if the operating
+ * system provides them, which reduces the TLB misses for the Scrypt scratchpad.
+ */
+public class ScratchArena {
+
+    /** Page type descriptions */
+    private static final String[] pageTypes = {"normal pages", "transparent huge pages", "huge pages"};
+
+    /** Page type has been logged */
+    private static boolean pageTypeLogged;
+
+    /**
+     * Allocate scratch memory
+     *
+     * @param       size            Memory size
+     * @param       hugePages       TRUE to use huge pages
+     * @param       pageType        Returned page type
+     * @return                      Direct buffer or null if the memory is not available
+     */
+    private static native ByteBuffer JniAllocate(long size, boolean hugePages, int[] pageType);
+
+    /**
+     * Release scratch memory
+     *
+     * @param       arena           Direct buffer returned by JniAllocate()
+     */
+    private static native void JniFree(ByteBuffer arena);
+
+    /** Arena memory */
+    private final ByteBuffer buffer;
+
+    /** Arena memory was allocated by the native library */
+    private final boolean nativeMemory;
+
+    /**
+     * Allocate a scratch arena
+     *
+     * The native library must be loaded.  A Java direct buffer is used if the
+     * operating system does not provide the memory.
+     *
+     * @param       size            Arena size
+     */
+    public ScratchArena(int size) {
+        int[] pageType = new int[1];
+        ByteBuffer arena = JniAllocate(size, Main.hugePages, pageType);
+        synchronized(ScratchArena.class) {
+            if (!pageTypeLogged) {
+                if (arena != null)
+                    log.info(String.format("Native scratch memory allocated using %s", pageTypes[pageType[0]]));
+                else
+                    log.warn("Unable to allocate native scratch memory - using a Java direct buffer");
+                pageTypeLogged = true;
+            }
+        }
+        nativeMemory = (arena != null);
+        buffer = (arena != null ? arena : ByteBuffer.allocateDirect(size));
+    }
+
+    /**
+     * Return the arena memory
+     *
+     * @return                      Direct buffer
+     */
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Release the arena
+     *
+     * The arena must not be used after it is released
+     */
+    public void free() {
+        if (nativeMemory)
+            JniFree(buffer);
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2015 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.NxtMint;
+import static org.ScripterRon.NxtMint.Main.log;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * CPU worker throttling
+ *
+ * The CPU workers pause between hash batches so that they hash for no more than the
+ * current duty cycle (the fraction of time spent hashing).  Pausing the workers
+ * frees the processor caches and memory bandwidth as well as the processors, which
+ * lowering the thread priority does not do.
+ *
+ * The 'dutyCycle' configuration option sets the maximum duty cycle.  When the
+ * 'hostCpuLimit' option is set, the duty cycle is also adjusted once a second so that
+ * the total processor usage of the host (NxtMint plus everything else) stays below
+ * the limit.  The processor time used by other processes and the time stolen by the
+ * hypervisor are read from /proc/stat on Linux.  The CPU workers are parked when
+ * there is no processor time left for minting.
+ */
+public class Throttle {
+
+    /** Sample interval (milliseconds) */
+    public static final long SAMPLE_INTERVAL = 1000;
+
+    /** Duty cycles below this value park the CPU workers */
+    private static final double MIN_DUTY_CYCLE = 0.02;
+
+    /** Current duty cycle (0.0 to 1.0) */
+    private static volatile double dutyCycle = 1.0;
+
+    /** Processor usage of other processes (smoothed) */
+    private static double otherUsage = -1;
+
+    /** Previous host processor time (clock ticks) */
+    private static long prevTotalTicks;
+
+    /** Previous host busy time (clock ticks) */
+    private static long prevBusyTicks;
+
+    /** Previous NxtMint processor time (clock ticks) */
+    private static long prevSelfTicks;
+
+    /**
+     * Start throttling
+     *
+     * This is called by Mint before the workers are started
+     */
+    public static void init() {
+        dutyCycle = (double)Main.dutyCycle/100.0;
+        if (Main.dutyCycle < 100)
+            log.info(String.format("CPU worker duty cycle limited to %d%%", Main.dutyCycle));
+        if (Main.hostCpuLimit == 0)
+            return;
+        if (readTicks() == null) {
+            log.warn("Host processor usage is not available - hostCpuLimit ignored");
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(SAMPLE_INTERVAL);
+                    sample();
+                }
+            } catch (InterruptedException exc) {
+                // Shutting down
+            }
+        }, "NxtMint throttle");
+        thread.setDaemon(true);
+        thread.start();
+        log.info(String.format("Host processor usage limited to %d%%", Main.hostCpuLimit));
+    }
+
+    /**
+     * Return the current duty cycle
+     *
+     * @return                      Duty cycle (0.0 to 1.0)
+     */
+    public static double getDutyCycle() {
+        return dutyCycle;
+    }
+
+    /**
+     * Check if the CPU workers are parked
+     *
+     * @return                      TRUE if the CPU workers should not hash
+     */
+    public static boolean isParked() {
+        return dutyCycle < MIN_DUTY_CYCLE;
+    }
+
+    /**
+     * Return the pause needed after a hash batch to maintain the duty cycle
+     *
+     * @param       busyTime        Time spent hashing (nanoseconds)
+     * @return                      Pause time (nanoseconds)
+     */
+    public static long getPauseTime(long busyTime) {
+        double duty = dutyCycle;
+        if (duty >= 1.0)
+            return 0;
+        if (duty < MIN_DUTY_CYCLE)
+            return SAMPLE_INTERVAL*1000000L;
+        return (long)((double)busyTime*(1.0-duty)/duty);
+    }
+
+    /**
+     * Sample the host processor usage and adjust the duty cycle
+     */
+    private static void sample() {
+        long[] ticks = readTicks();
+        if (ticks == null)
+            return;
+        long totalTicks = ticks[0]-prevTotalTicks;
+        long busyTicks = ticks[1]-prevBusyTicks;
+        long selfTicks = ticks[2]-prevSelfTicks;
+        boolean firstSample = (prevTotalTicks == 0);
+        prevTotalTicks = ticks[0];
+        prevBusyTicks = ticks[1];
+        prevSelfTicks = ticks[2];
+        if (firstSample || totalTicks <= 0)
+            return;
+        //
+        // Processor usage by everything except NxtMint (including stolen time),
+        // averaged over the last few samples
+        //
+        double usage = Math.min(1.0, Math.max(0.0, (double)(busyTicks-selfTicks)/(double)totalTicks));
+        otherUsage = (otherUsage < 0 ? usage : (otherUsage+usage)/2);
+        //
+        // Give the CPU workers the remaining processor time up to the limit.  Each
+        // worker can use one of the host processors.
+        //
+        List<MintWorker> workers = Mint.getWorkers();
+        int cpuWorkers = (int)workers.stream().filter((worker) -> worker.getCpuSlot() >= 0).count();
+        int processors = Runtime.getRuntime().availableProcessors();
+        double available = (double)Main.hostCpuLimit/100.0 - otherUsage;
+        double duty = (cpuWorkers > 0 ? available*(double)processors/(double)cpuWorkers : 1.0);
+        duty = Math.min((double)Main.dutyCycle/100.0, Math.max(0.0, duty));
+        double prevDuty = dutyCycle;
+        dutyCycle = duty;
+        if (Math.abs(duty-prevDuty) >= 0.05 || (duty < MIN_DUTY_CYCLE) != (prevDuty < MIN_DUTY_CYCLE)) {
+            if (duty < MIN_DUTY_CYCLE)
+                log.info(String.format("Other processes using %.0f%% of host processors - CPU workers parked",
+                                       otherUsage*100.0));
+            else
+                log.info(String.format("Other processes using %.0f%% of host processors - CPU duty cycle %.0f%%",
+                                       otherUsage*100.0, duty*100.0));
+        }
+    }
+
+    /**
+     * Read the processor times
+     *
+     * @return                      Host total, host busy and NxtMint times or null if not available
+     */
+    private static long[] readTicks() {
+        try {
+            //
+            // The first line of /proc/stat has the host times: user, nice, system, idle,
+            // iowait, irq, softirq and steal
+            //
+            Path statPath = Paths.get("/proc/stat");
+            Path selfPath = Paths.get("/proc/self/stat");
+            if (!Files.isReadable(statPath) || !Files.isReadable(selfPath))
+                return null;
+            String[] fields = Files.readAllLines(statPath).get(0).trim().split("\\s+");
+            if (!fields[0].equals("cpu") || fields.length < 9)
+                return null;
+            long total = 0;
+            for (int i=1; i<9; i++)
+                total += Long.parseLong(fields[i]);
+            long busy = total - Long.parseLong(fields[4]) - Long.parseLong(fields[5]);
+            //
+            // /proc/self/stat has the process user and system times in fields 14 and 15.
+            // The command name in field 2 can contain spaces, so start after it.
+            //
+            String selfStat = new String(Files.readAllBytes(selfPath));
+            String[] selfFields = selfStat.substring(selfStat.lastIndexOf(')')+1).trim().split("\\s+");
+            long self = Long.parseLong(selfFields[11]) + Long.parseLong(selfFields[12]);
+            return new long[] {total, busy, self};
+        } catch (IOException | RuntimeException exc) {
+            log.debug("Unable to read processor times", exc);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.NxtMint;
+
+import jdk.incubator.vector.VectorShape;
+
+/**
+ * Java Vector API hash functions
+ *
+ * The Vector API classes are compiled only when building with Java 17 or later (see
+ * the 'vector' profile in pom.xml) and can be used only when the jdk.incubator.vector
+ * module is added to the JVM.  HashFunction loads this class by name so the rest of
+ * NxtMint still runs on earlier Java versions.
+ */
+public class VectorHash {
+
+    /**
+     * Create a Vector API hash function for the specified algorithm
+     *
+     * @param       algorithm       Hash algorithm
+     * @return                      Hash function or null if there is no Vector API version
+     */
+    public static HashFunction factory(int algorithm) {
+        HashFunction hashFunction;
+        switch (algorithm) {
+            case 3:                 // SHA3
+                hashFunction = new VectorKeccak(24);
+                break;
+            case 5:                 // SCRYPT
+                hashFunction = new VectorScrypt();
+                break;
+            case 25:                // KECCAK25
+                hashFunction = new VectorKeccak(25);
+                break;
+            default:
+                hashFunction = null;
+        }
+        return hashFunction;
+    }
+
+    /**
+     * Return the vector size
+     *
+     * @return                      Number of bits in the preferred vector
+     */
+    public static int getVectorSize() {
+        return VectorShape.preferredShape().vectorBitSize();
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2015 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.NxtMint;
+import static jdk.incubator.vector.VectorOperators.AND_NOT;
+import static jdk.incubator.vector.VectorOperators.ROL;
+import static jdk.incubator.vector.VectorOperators.UNSIGNED_LE;
+import static jdk.incubator.vector.VectorOperators.XOR;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * KECCAK25 and SHA-3 hash functions using the Java Vector API
+ *
+ * Each vector lane hashes a different nonce, so SPECIES.length() consecutive nonces
+ * are hashed at the same time.  The first round is precomputed by KeccakRound0 the
+ * same as the scalar hash functions.  KECCAK25 uses 25 rounds and SHA-3 uses 24 rounds.
+ *
+ * The vector state is kept in local variables so the JIT compiler can keep it in
+ * vector registers.
+ */
+public class VectorKeccak extends HashFunction {
+
+    /** Vector species (the widest vector supported by the processor) */
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+    /** Number of nonces hashed at the same time */
+    public static final int LANES = SPECIES.length();
+
+    /** Keccak round constants */
+    private static final long[] constants = {
+        1L, 32898L, -9223372036854742902L, -9223372034707259392L, 32907L,
+        2147483649L, -9223372034707259263L, -9223372036854743031L, 138L, 136L,
+        2147516425L, 2147483658L, 2147516555L, -9223372036854775669L, -9223372036854742903L,
+        -9223372036854743037L, -9223372036854743038L, -9223372036854775680L, 32778L, -9223372034707292150L,
+        -9223372034707259263L, -9223372036854742912L, 2147483649L, -9223372034707259384L
+    };
+
+    /** Lane offsets from the first nonce */
+    private static final long[] laneOffsets = new long[LANES];
+    static {
+        for (int i=0; i<LANES; i++)
+            laneOffsets[i] = i;
+    }
+
+    /** Number of rounds */
+    private final int rounds;
+
+    /** Precomputed first round lanes */
+    private final long[] round0 = new long[25];
+
+    /** Target words in little-endian order */
+    private final long[] targetWords = new long[4];
+
+    /**
+     * Create a Keccak hash function
+     *
+     * @param       rounds          Number of rounds (25 for KECCAK25, 24 for SHA-3)
+     */
+    public VectorKeccak(int rounds) {
+        super();
+        this.rounds = rounds;
+    }
+
+    /**
+     * Hash the input bytes
+     *
+     * @param       inputBytes      Input bytes (40 bytes)
+     * @param       targetBytes     Target bytes (32 bytes)
+     * @param       initialNonce    Initial nonce
+     * @param       epoch           Target epoch for this work
+     * @param       count           Maximum number of hashes
+     * @return                      TRUE if the target is met
+     */
+    @Override
+    protected boolean hash(byte[] inputBytes, byte[] targetBytes, long initialNonce, long epoch, int count) {
+        boolean meetsTarget = false;
+        KeccakRound0.precompute(inputBytes, round0);
+        for (int i=0; i<4; i++) {
+            long word = 0;
+            for (int j=7; j>=0; j--)
+                word = (word<<8) | (targetBytes[i*8+j]&0xff);
+            targetWords[i] = word;
+        }
+        nonce = initialNonce;
+        hashCount = 0;
+        Thread thread = Thread.currentThread();
+        //
+        // Keep hashing until we meet the target, the maximum loop count is reached or
+        // the target epoch changes.  The lanes past the end of the batch are not checked
+        // since their nonces belong to the next nonce range.
+        //
+        for (int i=0; i<count && !meetsTarget; i+=LANES) {
+            if (thread.isInterrupted() || getTargetEpoch() != epoch)
+                break;
+            meetsTarget = doHash(Math.min(LANES, count-i));
+            hashCount = (int)(nonce-initialNonce);
+        }
+        return meetsTarget;
+    }
+
+    /**
+     * Hash the next nonce for each lane
+     *
+     * Every lane is hashed, but only the first 'laneCount' lanes are in the nonce range
+     * for the batch and are checked against the target.  The nonce is set to the first
+     * nonce that meets the target or to the nonce for the last checked lane if no lane
+     * meets the target.
+     *
+     * @param       laneCount       Number of lanes to check
+     * @return                      TRUE if the target is met
+     */
+    private boolean doHash(int laneCount) {
+        //
+        // Perform the first round using the precomputed lanes
+        //
+        LongVector laneNonce = LongVector.broadcast(SPECIES, nonce+1).add(LongVector.fromArray(SPECIES, laneOffsets, 0));
+        LongVector p0 = LongVector.broadcast(SPECIES, round0[0]).lanewise(XOR, laneNonce);
+        LongVector p1 = LongVector.broadcast(SPECIES, round0[1]).lanewise(XOR, laneNonce.lanewise(ROL, 44));
+        LongVector p2 = LongVector.broadcast(SPECIES, round0[2]);
+        LongVector p3 = LongVector.broadcast(SPECIES, round0[3]);
+        LongVector p4 = LongVector.broadcast(SPECIES, round0[4]).lanewise(XOR, laneNonce.lanewise(ROL, 15));
+        LongVector p5 = LongVector.broadcast(SPECIES, round0[5]);
+        LongVector p6 = LongVector.broadcast(SPECIES, round0[6]).lanewise(XOR, laneNonce.lanewise(ROL, 21));
+        LongVector p7 = LongVector.broadcast(SPECIES, round0[7]);
+        LongVector p8 = LongVector.broadcast(SPECIES, round0[8]).lanewise(XOR, laneNonce.lanewise(ROL, 45));
+        LongVector p9 = LongVector.broadcast(SPECIES, round0[9]);
+        LongVector p10 = LongVector.broadcast(SPECIES, round0[10]).lanewise(XOR, laneNonce.lanewise(ROL, 1));
+        LongVector p11 = LongVector.broadcast(SPECIES, round0[11]);
+        LongVector p12 = LongVector.broadcast(SPECIES, round0[12]);
+        LongVector p13 = LongVector.broadcast(SPECIES, round0[13]).lanewise(XOR, laneNonce.lanewise(ROL, 9));
+        LongVector p14 = LongVector.broadcast(SPECIES, round0[14]);
+        LongVector p15 = LongVector.broadcast(SPECIES, round0[15]).lanewise(XOR, laneNonce.lanewise(ROL, 28));
+        LongVector p16 = LongVector.broadcast(SPECIES, round0[16]);
+        LongVector p17 = LongVector.broadcast(SPECIES, round0[17]).lanewise(XOR, laneNonce.lanewise(ROL, 10));
+        LongVector p18 = LongVector.broadcast(SPECIES, round0[18]);
+        LongVector p19 = LongVector.broadcast(SPECIES, round0[19]);
+        LongVector p20 = LongVector.broadcast(SPECIES, round0[20]);
+        LongVector p21 = LongVector.broadcast(SPECIES, round0[21]);
+        LongVector p22 = LongVector.broadcast(SPECIES, round0[22]).lanewise(XOR, laneNonce.lanewise(ROL, 40));
+        LongVector p23 = LongVector.broadcast(SPECIES, round0[23]);
+        LongVector p24 = LongVector.broadcast(SPECIES, round0[24]).lanewise(XOR, laneNonce.lanewise(ROL, 2));
+        LongVector a0 = p0.lanewise(XOR, p2.lanewise(AND_NOT, p1));
+        LongVector a1 = p1.lanewise(XOR, p3.lanewise(AND_NOT, p2));
+        LongVector a2 = p2.lanewise(XOR, p4.lanewise(AND_NOT, p3));
+        LongVector a3 = p3.lanewise(XOR, p0.lanewise(AND_NOT, p4));
+        LongVector a4 = p4.lanewise(XOR, p1.lanewise(AND_NOT, p0));
+        LongVector a5 = p5.lanewise(XOR, p7.lanewise(AND_NOT, p6));
+        LongVector a6 = p6.lanewise(XOR, p8.lanewise(AND_NOT, p7));
+        LongVector a7 = p7.lanewise(XOR, p9.lanewise(AND_NOT, p8));
+        LongVector a8 = p8.lanewise(XOR, p5.lanewise(AND_NOT, p9));
+        LongVector a9 = p9.lanewise(XOR, p6.lanewise(AND_NOT, p5));
+        LongVector a10 = p10.lanewise(XOR, p12.lanewise(AND_NOT, p11));
+        LongVector a11 = p11.lanewise(XOR, p13.lanewise(AND_NOT, p12));
+        LongVector a12 = p12.lanewise(XOR, p14.lanewise(AND_NOT, p13));
+        LongVector a13 = p13.lanewise(XOR, p10.lanewise(AND_NOT, p14));
+        LongVector a14 = p14.lanewise(XOR, p11.lanewise(AND_NOT, p10));
+        LongVector a15 = p15.lanewise(XOR, p17.lanewise(AND_NOT, p16));
+        LongVector a16 = p16.lanewise(XOR, p18.lanewise(AND_NOT, p17));
+        LongVector a17 = p17.lanewise(XOR, p19.lanewise(AND_NOT, p18));
+        LongVector a18 = p18.lanewise(XOR, p15.lanewise(AND_NOT, p19));
+        LongVector a19 = p19.lanewise(XOR, p16.lanewise(AND_NOT, p15));
+        LongVector a20 = p20.lanewise(XOR, p22.lanewise(AND_NOT, p21));
+        LongVector a21 = p21.lanewise(XOR, p23.lanewise(AND_NOT, p22));
+        LongVector a22 = p22.lanewise(XOR, p24.lanewise(AND_NOT, p23));
+        LongVector a23 = p23.lanewise(XOR, p20.lanewise(AND_NOT, p24));
+        LongVector a24 = p24.lanewise(XOR, p21.lanewise(AND_NOT, p20));
+        a0 = a0.lanewise(XOR, constants[0]);
+        //
+        // Perform the remaining rounds
+        //
+        for (int round=1; round<rounds; round++) {
+            //
+            // theta
+            //
+            LongVector c0 = a0.lanewise(XOR, a5).lanewise(XOR, a10).lanewise(XOR, a15).lanewise(XOR, a20);
+            LongVector c1 = a1.lanewise(XOR, a6).lanewise(XOR, a11).lanewise(XOR, a16).lanewise(XOR, a21);
+            LongVector c2 = a2.lanewise(XOR, a7).lanewise(XOR, a12).lanewise(XOR, a17).lanewise(XOR, a22);
+            LongVector c3 = a3.lanewise(XOR, a8).lanewise(XOR, a13).lanewise(XOR, a18).lanewise(XOR, a23);
+            LongVector c4 = a4.lanewise(XOR, a9).lanewise(XOR, a14).lanewise(XOR, a19).lanewise(XOR, a24);
+            LongVector d0 = c4.lanewise(XOR, c1.lanewise(ROL, 1));
+            LongVector d1 = c0.lanewise(XOR, c2.lanewise(ROL, 1));
+            LongVector d2 = c1.lanewise(XOR, c3.lanewise(ROL, 1));
+            LongVector d3 = c2.lanewise(XOR, c4.lanewise(ROL, 1));
+            LongVector d4 = c3.lanewise(XOR, c0.lanewise(ROL, 1));
+            //
+            // rho and pi
+            //
+            LongVector b0 = a0.lanewise(XOR, d0);
+            LongVector b1 = a6.lanewise(XOR, d1).lanewise(ROL, 44);
+            LongVector b2 = a12.lanewise(XOR, d2).lanewise(ROL, 43);
+            LongVector b3 = a18.lanewise(XOR, d3).lanewise(ROL, 21);
+            LongVector b4 = a24.lanewise(XOR, d4).lanewise(ROL, 14);
+            LongVector b5 = a3.lanewise(XOR, d3).lanewise(ROL, 28);
+            LongVector b6 = a9.lanewise(XOR, d4).lanewise(ROL, 20);
+            LongVector b7 = a10.lanewise(XOR, d0).lanewise(ROL, 3);
+            LongVector b8 = a16.lanewise(XOR, d1).lanewise(ROL, 45);
+            LongVector b9 = a22.lanewise(XOR, d2).lanewise(ROL, 61);
+            LongVector b10 = a1.lanewise(XOR, d1).lanewise(ROL, 1);
+            LongVector b11 = a7.lanewise(XOR, d2).lanewise(ROL, 6);
+            LongVector b12 = a13.lanewise(XOR, d3).lanewise(ROL, 25);
+            LongVector b13 = a19.lanewise(XOR, d4).lanewise(ROL, 8);
+            LongVector b14 = a20.lanewise(XOR, d0).lanewise(ROL, 18);
+            LongVector b15 = a4.lanewise(XOR, d4).lanewise(ROL, 27);
+            LongVector b16 = a5.lanewise(XOR, d0).lanewise(ROL, 36);
+            LongVector b17 = a11.lanewise(XOR, d1).lanewise(ROL, 10);
+            LongVector b18 = a17.lanewise(XOR, d2).lanewise(ROL, 15);
+            LongVector b19 = a23.lanewise(XOR, d3).lanewise(ROL, 56);
+            LongVector b20 = a2.lanewise(XOR, d2).lanewise(ROL, 62);
+            LongVector b21 = a8.lanewise(XOR, d3).lanewise(ROL, 55);
+            LongVector b22 = a14.lanewise(XOR, d4).lanewise(ROL, 39);
+            LongVector b23 = a15.lanewise(XOR, d0).lanewise(ROL, 41);
+            LongVector b24 = a21.lanewise(XOR, d1).lanewise(ROL, 2);
+            //
+            // chi and iota
+            //
+            a0 = b0.lanewise(XOR, b2.lanewise(AND_NOT, b1));
+            a1 = b1.lanewise(XOR, b3.lanewise(AND_NOT, b2));
+            a2 = b2.lanewise(XOR, b4.lanewise(AND_NOT, b3));
+            a3 = b3.lanewise(XOR, b0.lanewise(AND_NOT, b4));
+            a4 = b4.lanewise(XOR, b1.lanewise(AND_NOT, b0));
+            a5 = b5.lanewise(XOR, b7.lanewise(AND_NOT, b6));
+            a6 = b6.lanewise(XOR, b8.lanewise(AND_NOT, b7));
+            a7 = b7.lanewise(XOR, b9.lanewise(AND_NOT, b8));
+            a8 = b8.lanewise(XOR, b5.lanewise(AND_NOT, b9));
+            a9 = b9.lanewise(XOR, b6.lanewise(AND_NOT, b5));
+            a10 = b10.lanewise(XOR, b12.lanewise(AND_NOT, b11));
+            a11 = b11.lanewise(XOR, b13.lanewise(AND_NOT, b12));
+            a12 = b12.lanewise(XOR, b14.lanewise(AND_NOT, b13));
+            a13 = b13.lanewise(XOR, b10.lanewise(AND_NOT, b14));
+            a14 = b14.lanewise(XOR, b11.lanewise(AND_NOT, b10));
+            a15 = b15.lanewise(XOR, b17.lanewise(AND_NOT, b16));
+            a16 = b16.lanewise(XOR, b18.lanewise(AND_NOT, b17));
+            a17 = b17.lanewise(XOR, b19.lanewise(AND_NOT, b18));
+            a18 = b18.lanewise(XOR, b15.lanewise(AND_NOT, b19));
+            a19 = b19.lanewise(XOR, b16.lanewise(AND_NOT, b15));
+            a20 = b20.lanewise(XOR, b22.lanewise(AND_NOT, b21));
+            a21 = b21.lanewise(XOR, b23.lanewise(AND_NOT, b22));
+            a22 = b22.lanewise(XOR, b24.lanewise(AND_NOT, b23));
+            a23 = b23.lanewise(XOR, b20.lanewise(AND_NOT, b24));
+            a24 = b24.lanewise(XOR, b21.lanewise(AND_NOT, b20));
+            a0 = a0.lanewise(XOR, constants[round%24]);
+        }
+        //
+        // The digest is the first 4 state lanes and is compared to the target as a
+        // 32-byte little-endian number.  Only the lanes where the most significant
+        // digest word doesn't exceed the target need to be checked further.
+        //
+        VectorMask<Long> candidates = a3.compare(UNSIGNED_LE, targetWords[3]);
+        if (!candidates.anyTrue()) {
+            nonce += laneCount;
+            return false;
+        }
+        for (int lane=0; lane<laneCount; lane++) {
+            if (!candidates.laneIsSet(lane))
+                continue;
+            long[] digestWords = new long[] {a0.lane(lane), a1.lane(lane), a2.lane(lane), a3.lane(lane)};
+            boolean isSolved = true;
+            for (int i=3; i>=0; i--) {
+                int cmp = Long.compareUnsigned(digestWords[i], targetWords[i]);
+                if (cmp < 0)
+                    break;
+                if (cmp > 0) {
+                    isSolved = false;
+                    break;
+                }
+            }
+            if (isSolved) {
+                nonce += lane + 1;
+                for (int i=0; i<32; i++)
+                    digest[i] = (byte)(digestWords[i/8] >> ((i%8)*8));
+                return true;
+            }
+        }
+        nonce += laneCount;
+        return false;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.NxtMint;
+import static jdk.incubator.vector.VectorOperators.LSHL;
+import static jdk.incubator.vector.VectorOperators.ROL;
+import static jdk.incubator.vector.VectorOperators.XOR;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SCRYPT hash function using the Java Vector API
+ *
+ * The PBKDF2 steps are performed by HashScrypt for each lane.  The scratchpad fill
+ * and mix steps, where nearly all of the time is spent, hash SPECIES.length() nonces
+ * at the same time with one nonce in each vector lane.
+ *
+ * The block mix buffer is stored with the lanes interleaved (word w of lane l is at
+ * w*LANES+l) so each word is a single vector.  Each lane has its own contiguous
+ * scratchpad, so the blocks are written using scatter stores and read using gather
+ * loads and each block read touches the same two cache lines as the scalar version.
+ */
+public class VectorScrypt extends HashScrypt {
+
+    /** Vector species (the widest vector supported by the processor) */
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    /** Number of nonces hashed at the same time */
+    public static final int LANES = SPECIES.length();
+
+    /** Start of the scratchpad for each lane */
+    private static final int[] laneBase = new int[LANES];
+    static {
+        for (int i=0; i<LANES; i++)
+            laneBase[i] = i*32*1024;
+    }
+
+    /** Block mix buffer with the lanes interleaved */
+    private final int[] XV = new int[32*LANES];
+
+    /** Scratchpads for all of the lanes */
+    private final int[] VV = new int[LANES*32*1024];
+
+    /** Salsa20/8 round results */
+    private final int[] T = new int[16*LANES];
+
+    /** Scratchpad block index for each lane */
+    private final int[] blockIndex = new int[LANES];
+
+    /**
+     * Create a Scrypt hash function
+     */
+    public VectorScrypt() {
+        super(LANES, false);
+    }
+
+    /**
+     * Fill and mix the scratchpads
+     *
+     * X = ROMix(X) for each lane
+     */
+    @Override
+    protected void mixScratchpads() {
+        int i, w, lane;
+        for (lane=0; lane<LANES; lane++)
+            for (w=0; w<32; w++)
+                XV[w*LANES+lane] = X[lane][w];
+        //
+        // Fill the scratchpads
+        //
+        for (i=0; i<1024; i++) {
+            for (w=0; w<32; w++)
+                IntVector.fromArray(SPECIES, XV, w*LANES).intoArray(VV, i*32+w, laneBase, 0);
+            xorSalsa8(XV, 0, 16*LANES);
+            xorSalsa8(XV, 16*LANES, 0);
+        }
+        //
+        // Mix the scratchpads
+        //
+        IntVector base = IntVector.fromArray(SPECIES, laneBase, 0);
+        for (i=0; i<1024; i++) {
+            IntVector.fromArray(SPECIES, XV, 16*LANES).and(1023).lanewise(LSHL, 5).add(base).intoArray(blockIndex, 0);
+            for (w=0; w<32; w++)
+                IntVector.fromArray(SPECIES, XV, w*LANES)
+                         .lanewise(XOR, IntVector.fromArray(SPECIES, VV, w, blockIndex, 0))
+                         .intoArray(XV, w*LANES);
+            xorSalsa8(XV, 0, 16*LANES);
+            xorSalsa8(XV, 16*LANES, 0);
+        }
+        for (lane=0; lane<LANES; lane++)
+            for (w=0; w<32; w++)
+                X[lane][w] = XV[w*LANES+lane];
+    }
+
+    /**
+     * Block mix
+     *
+     * @param       X           Block mix buffer with the lanes interleaved
+     * @param       di          First block start index
+     * @param       xi          Second block start index
+     */
+    private void xorSalsa8(int[] X, int di, int xi) {
+        int w;
+        for (w=0; w<16*LANES; w+=LANES)
+            IntVector.fromArray(SPECIES, X, di+w).lanewise(XOR, IntVector.fromArray(SPECIES, X, xi+w)).intoArray(X, di+w);
+        salsaRounds(X, di, T);
+        for (w=0; w<16*LANES; w+=LANES)
+            IntVector.fromArray(SPECIES, X, di+w).add(IntVector.fromArray(SPECIES, T, w)).intoArray(X, di+w);
+    }
+
+    /**
+     * Salsa20/8 rounds
+     *
+     * The rounds are kept in a separate method since the client compiler runs out of
+     * registers if the whole block mix is in one method.  The method is then never
+     * compiled by the server compiler and the vector operations are not intrinsified.
+     *
+     * @param       X           Block mix buffer with the lanes interleaved
+     * @param       di          Block start index
+     * @param       T           Result buffer
+     */
+    private static void salsaRounds(int[] X, int di, int[] T) {
+        IntVector x00 = IntVector.fromArray(SPECIES, X, di);
+        IntVector x01 = IntVector.fromArray(SPECIES, X, di+1*LANES);
+        IntVector x02 = IntVector.fromArray(SPECIES, X, di+2*LANES);
+        IntVector x03 = IntVector.fromArray(SPECIES, X, di+3*LANES);
+        IntVector x04 = IntVector.fromArray(SPECIES, X, di+4*LANES);
+        IntVector x05 = IntVector.fromArray(SPECIES, X, di+5*LANES);
+        IntVector x06 = IntVector.fromArray(SPECIES, X, di+6*LANES);
+        IntVector x07 = IntVector.fromArray(SPECIES, X, di+7*LANES);
+        IntVector x08 = IntVector.fromArray(SPECIES, X, di+8*LANES);
+        IntVector x09 = IntVector.fromArray(SPECIES, X, di+9*LANES);
+        IntVector x10 = IntVector.fromArray(SPECIES, X, di+10*LANES);
+        IntVector x11 = IntVector.fromArray(SPECIES, X, di+11*LANES);
+        IntVector x12 = IntVector.fromArray(SPECIES, X, di+12*LANES);
+        IntVector x13 = IntVector.fromArray(SPECIES, X, di+13*LANES);
+        IntVector x14 = IntVector.fromArray(SPECIES, X, di+14*LANES);
+        IntVector x15 = IntVector.fromArray(SPECIES, X, di+15*LANES);
+        for (int i = 0; i < 8; i += 2) {
+            //
+            // Operate on the columns
+            //
+            x04 = x04.lanewise(XOR, x00.add(x12).lanewise(ROL, 7));
+            x08 = x08.lanewise(XOR, x04.add(x00).lanewise(ROL, 9));
+            x12 = x12.lanewise(XOR, x08.add(x04).lanewise(ROL, 13));
+            x00 = x00.lanewise(XOR, x12.add(x08).lanewise(ROL, 18));
+            x09 = x09.lanewise(XOR, x05.add(x01).lanewise(ROL, 7));
+            x13 = x13.lanewise(XOR, x09.add(x05).lanewise(ROL, 9));
+            x01 = x01.lanewise(XOR, x13.add(x09).lanewise(ROL, 13));
+            x05 = x05.lanewise(XOR, x01.add(x13).lanewise(ROL, 18));
+            x14 = x14.lanewise(XOR, x10.add(x06).lanewise(ROL, 7));
+            x02 = x02.lanewise(XOR, x14.add(x10).lanewise(ROL, 9));
+            x06 = x06.lanewise(XOR, x02.add(x14).lanewise(ROL, 13));
+            x10 = x10.lanewise(XOR, x06.add(x02).lanewise(ROL, 18));
+            x03 = x03.lanewise(XOR, x15.add(x11).lanewise(ROL, 7));
+            x07 = x07.lanewise(XOR, x03.add(x15).lanewise(ROL, 9));
+            x11 = x11.lanewise(XOR, x07.add(x03).lanewise(ROL, 13));
+            x15 = x15.lanewise(XOR, x11.add(x07).lanewise(ROL, 18));
+            //
+            // Operate on the rows
+            //
+            x01 = x01.lanewise(XOR, x00.add(x03).lanewise(ROL, 7));
+            x02 = x02.lanewise(XOR, x01.add(x00).lanewise(ROL, 9));
+            x03 = x03.lanewise(XOR, x02.add(x01).lanewise(ROL, 13));
+            x00 = x00.lanewise(XOR, x03.add(x02).lanewise(ROL, 18));
+            x06 = x06.lanewise(XOR, x05.add(x04).lanewise(ROL, 7));
+            x07 = x07.lanewise(XOR, x06.add(x05).lanewise(ROL, 9));
+            x04 = x04.lanewise(XOR, x07.add(x06).lanewise(ROL, 13));
+            x05 = x05.lanewise(XOR, x04.add(x07).lanewise(ROL, 18));
+            x11 = x11.lanewise(XOR, x10.add(x09).lanewise(ROL, 7));
+            x08 = x08.lanewise(XOR, x11.add(x10).lanewise(ROL, 9));
+            x09 = x09.lanewise(XOR, x08.add(x11).lanewise(ROL, 13));
+            x10 = x10.lanewise(XOR, x09.add(x08).lanewise(ROL, 18));
+            x12 = x12.lanewise(XOR, x15.add(x14).lanewise(ROL, 7));
+            x13 = x13.lanewise(XOR, x12.add(x15).lanewise(ROL, 9));
+            x14 = x14.lanewise(XOR, x13.add(x12).lanewise(ROL, 13));
+            x15 = x15.lanewise(XOR, x14.add(x13).lanewise(ROL, 18));
+        }
+        x00.intoArray(T, 0);
+        x01.intoArray(T, 1*LANES);
+        x02.intoArray(T, 2*LANES);
+        x03.intoArray(T, 3*LANES);
+        x04.intoArray(T, 4*LANES);
+        x05.intoArray(T, 5*LANES);
+        x06.intoArray(T, 6*LANES);
+        x07.intoArray(T, 7*LANES);
+        x08.intoArray(T, 8*LANES);
+        x09.intoArray(T, 9*LANES);
+        x10.intoArray(T, 10*LANES);
+        x11.intoArray(T, 11*LANES);
+        x12.intoArray(T, 12*LANES);
+        x13.intoArray(T, 13*LANES);
+        x14.intoArray(T, 14*LANES);
+        x15.intoArray(T, 15*LANES);
+    }
+}
@@ -36,6 +36,7 @@ import javax.swing.JScrollPane;
  */
 public class WorkerDetailsDialog extends JDialog {
     private static final int DETAILS_WIDTH = 200;
+    private static final int PROFILE_WIDTH = 450;
     private static final int MIN_HEIGHT = 350;
 
     private final Box mainContainer;
@@ -50,7 +51,7 @@ public class WorkerDetailsDialog extends JDialog {
     public WorkerDetailsDialog(JFrame owner, List<MintWorker> workers) {
         super(owner, "Workers Details", false);
         setDefaultCloseOperation(DISPOSE_ON_CLOSE);
-        setPreferredSize(new Dimension(DETAILS_WIDTH,
+        setPreferredSize(new Dimension(Main.gpuProfile ? PROFILE_WIDTH : DETAILS_WIDTH,
                     owner.getSize().height<MIN_HEIGHT ? MIN_HEIGHT : owner.getSize().height));
         workersPanels = new ArrayList<>(workers.size());
         mainContainer = Box.createVerticalBox();
@@ -104,6 +105,9 @@ public class WorkerDetailsDialog extends JDialog {
         private final JLabel hashrateRatioLabel;
         private final JLabel totalHashesLabel;
         private final JLabel totalHashesRatioLabel;
+        private final JLabel staleHashesLabel;
+        private final JLabel dutyCycleLabel;
+        private final JLabel profileLabel;
 
         /**
          * Create the individual worker details panel
@@ -121,12 +125,19 @@ public class WorkerDetailsDialog extends JDialog {
             hashrateRatioLabel = new JLabel();
             totalHashesLabel = new JLabel();
             totalHashesRatioLabel = new JLabel();
+            staleHashesLabel = new JLabel();
+            dutyCycleLabel = new JLabel();
+            profileLabel = new JLabel();
 
             add(Box.createVerticalStrut(5));
             add(hashrateLabel);
             add(hashrateRatioLabel);
             add(totalHashesLabel);
             add(totalHashesRatioLabel);
+            add(staleHashesLabel);
+            add(dutyCycleLabel);
+            if (worker.getGpuProfile() != null)
+                add(profileLabel);
             add(Box.createVerticalStrut(10));
 
             updateLabels(0, 0);
@@ -153,6 +164,31 @@ public class WorkerDetailsDialog extends JDialog {
                                         (double)hashes/1000000));
             totalHashesRatioLabel.setText(String.format("<html><b>&#37; of total hashes: %,.2f</b></html>", 
                                         hashesRatio));
+            staleHashesLabel.setText(String.format("<html><b>Stale hashes per target switch: %,.0f</b></html>",
+                                        worker.getStaleHashes()));
+            dutyCycleLabel.setText(String.format("<html><b>Duty cycle: %,.0f&#37;</b></html>",
+                                        worker.getDutyCycle()));
+            //
+            // The GPU profile summary is displayed in the panel and the run time
+            // histograms are displayed as the tool tip
+            //
+            GpuProfile profile = worker.getGpuProfile();
+            if (profile != null) {
+                StringBuilder text = new StringBuilder(256);
+                text.append("<html><b>GPU profile:</b>");
+                profile.getSummary().forEach((line) -> text.append("<br>").append(line.replace("<", "&lt;").replace("%", "&#37;")));
+                text.append("</html>");
+                profileLabel.setText(text.toString());
+                StringBuilder tip = new StringBuilder(1024);
+                tip.append("<html>");
+                profile.getHistograms().forEach((name, lines) -> {
+                    tip.append("<b>").append(name).append(" run times</b>");
+                    lines.forEach((line) -> tip.append("<br>").append(line.replace("<", "&lt;").replace("%", "&#37;")));
+                    tip.append("<br>");
+                });
+                tip.append("</html>");
+                profileLabel.setToolTipText(tip.toString());
+            }
         }
     }
 
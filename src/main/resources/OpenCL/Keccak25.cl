@@ -34,6 +34,7 @@ typedef struct This_s {
     __global ulong * restrict input;        /* Input data */
     __global ulong * restrict target;       /* Hash target */
     __global ulong * restrict solution;     /* Solution nonce */
+    __global ulong * restrict round0;       /* Precomputed first round lanes */
              int              passId;       /* Pass identifier */
 } This;
 
@@ -61,19 +62,68 @@ __constant LONG constants[] = {
  * Perform a single hash
  */
 static void hash(This *this) {
-    ULONG nonce = this->input[0] + (ULONG)get_global_id(0) + ((ULONG)this->passId<<32);  
-    ULONG state0 = nonce;
-    ULONG state1 = this->input[1];
-    ULONG state2 = this->input[2];  
-    ULONG state3 = this->input[3];
-    ULONG state4 = this->input[4];
-    ULONG state5 = 1;   ULONG state6 = 0;   ULONG state7 = 0;   ULONG state8 = 0;   ULONG state9 = 0;
-    ULONG state10 = 0;  ULONG state11 = 0;  ULONG state12 = 0;  ULONG state13 = 0;  ULONG state14 = 0;
-    ULONG state15 = 0;  ULONG state16 = 0x8000000000000000L;           
-    ULONG state17 = 0;  ULONG state18 = 0;  ULONG state19 = 0;  ULONG state20 = 0;  ULONG state21 = 0;
-    ULONG state22 = 0;  ULONG state23 = 0;  ULONG state24 = 0;
+    ULONG nonce = this->input[0] + (ULONG)get_global_id(0) + (ULONG)this->passId*(ULONG)get_global_size(0);  
+    ULONG c0, c1, c2, c3, c4;
+    //
+    // Perform the first round using the lanes precomputed for the input data.  Only the
+    // lanes that depend on the nonce need to be updated before the chi and iota steps.
+    //
+    c0 = this->round0[0] ^ nonce;
+    c1 = this->round0[1] ^ rotateLeft(nonce, 44);
+    c2 = this->round0[2];
+    c3 = this->round0[3];
+    c4 = this->round0[4] ^ rotateLeft(nonce, 15);
+    ULONG state0 = c0 ^ (~c1 & c2) ^ (ULONG)constants[0];
+    ULONG state1 = c1 ^ (~c2 & c3);
+    ULONG state2 = c2 ^ (~c3 & c4);
+    ULONG state3 = c3 ^ (~c4 & c0);
+    ULONG state4 = c4 ^ (~c0 & c1);
+
+    c0 = this->round0[5];
+    c1 = this->round0[6] ^ rotateLeft(nonce, 21);
+    c2 = this->round0[7];
+    c3 = this->round0[8] ^ rotateLeft(nonce, 45);
+    c4 = this->round0[9];
+    ULONG state5 = c0 ^ (~c1 & c2);
+    ULONG state6 = c1 ^ (~c2 & c3);
+    ULONG state7 = c2 ^ (~c3 & c4);
+    ULONG state8 = c3 ^ (~c4 & c0);
+    ULONG state9 = c4 ^ (~c0 & c1);
+
+    c0 = this->round0[10] ^ rotateLeft(nonce, 1);
+    c1 = this->round0[11];
+    c2 = this->round0[12];
+    c3 = this->round0[13] ^ rotateLeft(nonce, 9);
+    c4 = this->round0[14];
+    ULONG state10 = c0 ^ (~c1 & c2);
+    ULONG state11 = c1 ^ (~c2 & c3);
+    ULONG state12 = c2 ^ (~c3 & c4);
+    ULONG state13 = c3 ^ (~c4 & c0);
+    ULONG state14 = c4 ^ (~c0 & c1);
+
+    c0 = this->round0[15] ^ rotateLeft(nonce, 28);
+    c1 = this->round0[16];
+    c2 = this->round0[17] ^ rotateLeft(nonce, 10);
+    c3 = this->round0[18];
+    c4 = this->round0[19];
+    ULONG state15 = c0 ^ (~c1 & c2);
+    ULONG state16 = c1 ^ (~c2 & c3);
+    ULONG state17 = c2 ^ (~c3 & c4);
+    ULONG state18 = c3 ^ (~c4 & c0);
+    ULONG state19 = c4 ^ (~c0 & c1);
+
+    c0 = this->round0[20];
+    c1 = this->round0[21];
+    c2 = this->round0[22] ^ rotateLeft(nonce, 40);
+    c3 = this->round0[23];
+    c4 = this->round0[24] ^ rotateLeft(nonce, 2);
+    ULONG state20 = c0 ^ (~c1 & c2);
+    ULONG state21 = c1 ^ (~c2 & c3);
+    ULONG state22 = c2 ^ (~c3 & c4);
+    ULONG state23 = c3 ^ (~c4 & c0);
+    ULONG state24 = c4 ^ (~c0 & c1);
     int i;
-    for (i=0; i<25; i++) {
+    for (i=1; i<25; i++) {
         ULONG t0 = state0 ^ state5 ^ state10 ^ state15 ^ state20;
         ULONG t1 = state1 ^ state6 ^ state11 ^ state16 ^ state21;
         ULONG t2 = state2 ^ state7 ^ state12 ^ state17 ^ state22;
@@ -174,6 +224,7 @@ __kernel void run(__global uchar  *kernelData,
     this->input = (__global ulong *)kernelData;
     this->target = (__global ulong *)(kernelData+40);
     this->solution = (__global ulong *)(kernelData+72);
+    this->round0 = (__global ulong *)(kernelData+80);
     this->passId = passId;
     //
     // Hash the input data
@@ -119,7 +119,7 @@ static void hash(This *this, State *state) {
     // The nonce is stored in the first 8 bytes of the input data
     //
     ULONG nonce = ((__global ulong *)this->input)[0] +
-                        (ULONG)get_global_id(0) + ((ULONG)this->passId<<32);
+                        (ULONG)get_global_id(0) + (ULONG)this->passId*(ULONG)get_global_size(0);
     state->B[0] = (BYTE)nonce;
     state->B[1] = (BYTE)(nonce >> 8);
     state->B[2] = (BYTE)(nonce >> 16);
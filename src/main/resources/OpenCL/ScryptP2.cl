@@ -31,6 +31,15 @@ typedef uchar    BOOLEAN;
 #define TRUE  1
 #define FALSE 0
 
+/**
+ * Lookup gap (only every LOOKUP_GAP pad cache entry is stored and the missing
+ * entries are recomputed from the preceding stored entry)
+ */
+#ifndef LOOKUP_GAP
+#define LOOKUP_GAP 1
+#endif
+#define V_ENTRIES ((1024+LOOKUP_GAP-1)/LOOKUP_GAP)
+
 /**
  * SCRYPT state
  */
@@ -65,30 +74,45 @@ static void xorSalsa8(uint16 * restrict X0, uint16 * restrict X1);
  * Do the hash
  */
 static void hash(This *this, State *state) {
-    int    i;
+    int    i, j, k;
+    uint16 Y0, Y1;
     //
     // The V array holds the pad cache.  To improve memory access performance, we
     // will group the cache entries together for each pass within the same work group instead
     // of grouping the entries together for each work item.  Each cache entry is 32
-    // unsigned integers and there are 1024 cache entries for each work item.
+    // unsigned integers and there are V_ENTRIES cache entries for each work item.
     // 
     int groupSize = get_local_size(0);
-    __global uint16 * vBase = this->V + (get_group_id(0)*groupSize*2*1024 + get_local_id(0)*2);
+    __global uint16 * vBase = this->V + (get_group_id(0)*groupSize*2*V_ENTRIES + get_local_id(0)*2);
     int vInc = groupSize*2;
     //
-    // Perform the hashes
+    // Perform the hashes.  Only every LOOKUP_GAP entry is stored in the pad cache.
     //
     __global uint16 * pV = vBase;
-    for (i=0; i<1024; i++, pV+=vInc) {
-        *pV = *state->X0;
-        *(pV+1) = *state->X1;
+    for (i=0; i<1024; i++) {
+        if (i%LOOKUP_GAP == 0) {
+            *pV = *state->X0;
+            *(pV+1) = *state->X1;
+            pV += vInc;
+        }
         xorSalsa8(state->X0, state->X1);
         xorSalsa8(state->X1, state->X0);
     }
     for (i=0; i<1024; i++) {
-        pV = vBase + (((*state->X1).s0 & 1023) * vInc);
-        *state->X0 ^= *pV;
-        *state->X1 ^= *(pV+1);
+        //
+        // Get the stored entry preceding the entry we need and recompute the
+        // entries after it
+        //
+        j = (*state->X1).s0 & 1023;
+        pV = vBase + ((j/LOOKUP_GAP) * vInc);
+        Y0 = *pV;
+        Y1 = *(pV+1);
+        for (k=j%LOOKUP_GAP; k>0; k--) {
+            xorSalsa8(&Y0, &Y1);
+            xorSalsa8(&Y1, &Y0);
+        }
+        *state->X0 ^= Y0;
+        *state->X1 ^= Y1;
         xorSalsa8(state->X0, state->X1);
         xorSalsa8(state->X1, state->X0);
     }
@@ -158,7 +158,7 @@ static void hash(This *this, State *state) {
     //
     if (isSolved==TRUE)
         this->solution[0] = ((__global ulong *)this->input)[0] + 
-                                (ULONG)get_global_id(0) + ((ULONG)this->passId<<32);
+                                (ULONG)get_global_id(0) + (ULONG)this->passId*(ULONG)get_global_size(0);
 }
 
 /**
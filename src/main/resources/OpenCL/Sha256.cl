@@ -39,7 +39,7 @@ __constant uint k[] = {
  * Kernel arguments 
  */
 typedef struct This_s {
-    __global uchar  *input;             /* Input data */
+    __global uint   *data;              /* Precomputed input data */
     __global uchar  *target;            /* Hash target */
     __global uchar  *solution;          /* Solution nonce */
              int    passId;             /* Pass identifier */
@@ -54,69 +54,193 @@ typedef struct This_s {
 #define rotateLeft(v, c) (((v)<<c) | ((v)>>(32-c)))
 #endif
 
+/**
+ * Reverse the bytes in an integer
+ */
+#define byteSwap(x) (((x)>>24) | (((x)>>8)&0xff00) | (((x)<<8)&0xff0000) | ((x)<<24))
+
+/**
+ * SHA-256 helper functions
+ */
+#define Ch(x, y, z)  (((x) & (y)) ^ (~(x) & (z)))
+#define Maj(x, y, z) (((x) & (y)) ^ ((x) & (z)) ^ ((y) & (z)))
+#define Sum0(x) (rotateLeft(x, 30) ^ rotateLeft(x, 19) ^ rotateLeft(x, 10))
+#define Sum1(x) (rotateLeft(x, 26) ^ rotateLeft(x, 21) ^ rotateLeft(x, 7))
+#define sigma0(x) (rotateLeft(x, 25) ^ rotateLeft(x, 14) ^ ((x) >> 3))
+#define sigma1(x) (rotateLeft(x, 15) ^ rotateLeft(x, 13) ^ ((x) >> 10))
+
+/**
+ * SHA-256 round.  The working variables are renamed for each round instead
+ * of being shifted.
+ */
+#define ROUND(a, b, c, d, e, f, g, h, kw) \
+    T = h + Sum1(e) + Ch(e, f, g) + (kw); \
+    d += T; \
+    h = T + Sum0(a) + Maj(a, b, c);
+
 /**
  * Do the hash
+ *
+ * The input data is a single SHA-256 block where only message word 0 changes for
+ * each execution instance.  The host precomputes everything that doesn't depend on
+ * that word (see GpuSha256.setInput()):
+ *     Word 0:      Low 32 bits of the initial nonce
+ *     Word 1:      Message word 1
+ *     Word 2:      Round 0 T1 value without message word 0
+ *     Word 3:      Round 0 T2 value
+ *     Words 4-18:  Message word plus round constant for rounds 1-15
+ *     Words 19-34: Nonce-independent part of message words 16-31
  */
 static void hash(This *this) {
-    uint A = 0x6A09E667;
-    uint B = 0xBB67AE85;
-    uint C = 0x3C6EF372;
-    uint D = 0xA54FF53A;
-    uint E = 0x510E527F;
-    uint F = 0x9B05688C;
-    uint G = 0x1F83D9AB;
-    uint H = 0x5BE0CD19;
-    uint w0=0, w1=0, w2=0, w3=0, w4=0, w5=0, w6=0, w7=0;
-    uint w8=0, w9=0, w10=0, w11=0, w12=0, w13=0, w14=0, w15=0, w16=0;
-    uint T, T2;
+    uint A, B, C, D, E, F, G, H, T;
+    uint W0, W16, W17, W18, W19, W20, W21, W22, W23, W24, W25, W26, W27, W28, W29, W30, W31, W32, W33, W34, W35, W36, W37, W38, W39;
+    uint W40, W41, W42, W43, W44, W45, W46, W47, W48, W49, W50, W51, W52, W53, W54, W55, W56, W57, W58, W59, W60, W61, W62, W63;
+    uint a0, e0;
     //
-    // Transform the data (the SHA-256 algorithm is big-endian)
+    // Message word 0 is bytes 0-3 of the nonce (the SHA-256 algorithm is big-endian).
+    // We will modify the low 32 bits of the nonce for each execution instance based on
+    // the global ID and the pass ID.  The host makes sure the nonce range doesn't
+    // cross a 32-bit boundary, so the high 32 bits (message word 1) don't change.
     //
-    // We will modify the nonce (first 8 bytes of the input data) for each execution instance
-    // based on the global ID and the pass ID
+    uint nonce = this->data[0] + (uint)this->passId*(uint)get_global_size(0) + (uint)get_global_id(0);
+    W0 = byteSwap(nonce);
     //
-    int offset = 0;
-    int r;
-    uint input[16];
-    for (r=0; r<16; r++, offset+=4)
-        input[r] = ((uint)this->input[offset] << 24) |  ((uint)this->input[offset+1] << 16) | 
-                   ((uint)this->input[offset+2] << 8) | ((uint)this->input[offset+3]);
-    input[0] += this->passId;
-    input[1] += get_global_id(0);
-    for (r=0; r<16; r++) {
-        w16 = input[r];
-        T = (H + (rotateLeft(E, 26) ^ rotateLeft(E, 21) ^ rotateLeft(E, 7)) +
-                        ((E & F) ^ (~E & G)) + k[r] + w16);
-        T2 = ((rotateLeft(A, 30) ^ rotateLeft(A, 19) ^ rotateLeft(A, 10)) + 
-                        ((A & B) ^ (A & C) ^ (B & C)));
-        w0 = w1; w1 = w2; w2 = w3; w3 = w4; w4 = w5; w5 = w6; w6 = w7; w7 = w8; w8 = w9;
-        w9 = w10; w10 = w11; w11 = w12; w12 = w13; w13 = w14; w14 = w15; w15 = w16;
-        H = G; G = F; F = E; E = D + T;
-        D = C; C = B; B = A; A = T + T2;
-    }    
-    for (r=16; r<64; r++) {
-        w16 = ((rotateLeft(w14, 15) ^ rotateLeft(w14, 13) ^ (w14 >> 10)) + w9 + 
-                    (rotateLeft(w1, 25) ^ rotateLeft(w1, 14) ^ (w1 >> 3)) + w0);
-        T = (H + (rotateLeft(E, 26) ^ rotateLeft(E, 21) ^ rotateLeft(E, 7)) +
-                        ((E & F) ^ (~E & G)) + k[r] + w16);
-        T2 = ((rotateLeft(A, 30) ^ rotateLeft(A, 19) ^ rotateLeft(A, 10)) + 
-                        ((A & B) ^ (A & C) ^ (B & C)));
-        w0 = w1; w1 = w2; w2 = w3; w3 = w4; w4 = w5; w5 = w6; w6 = w7; w7 = w8; w8 = w9;
-        w9 = w10; w10 = w11; w11 = w12; w12 = w13; w13 = w14; w14 = w15; w15 = w16;
-        H = G; G = F; F = E; E = D + T;
-        D = C; C = B; B = A; A = T + T2;
-    }
+    // Finish round 0 (the remaining working variables are the initial hash values)
+    // and then do round 1
+    //
+    T = this->data[2] + W0;
+    a0 = T + this->data[3];
+    e0 = 0xA54FF53A + T;
+    T = 0x1F83D9AB + Sum1(e0) + Ch(e0, 0x510E527F, 0x9B05688C) + this->data[4];
+    A = T + Sum0(a0) + Maj(a0, 0x6A09E667, 0xBB67AE85);
+    B = a0;
+    C = 0x6A09E667;
+    D = 0xBB67AE85;
+    E = 0x3C6EF372 + T;
+    F = e0;
+    G = 0x510E527F;
+    H = 0x9B05688C;
+    ROUND(A, B, C, D, E, F, G, H, this->data[5]);
+    ROUND(H, A, B, C, D, E, F, G, this->data[6]);
+    ROUND(G, H, A, B, C, D, E, F, this->data[7]);
+    ROUND(F, G, H, A, B, C, D, E, this->data[8]);
+    ROUND(E, F, G, H, A, B, C, D, this->data[9]);
+    ROUND(D, E, F, G, H, A, B, C, this->data[10]);
+    ROUND(C, D, E, F, G, H, A, B, this->data[11]);
+    ROUND(B, C, D, E, F, G, H, A, this->data[12]);
+    ROUND(A, B, C, D, E, F, G, H, this->data[13]);
+    ROUND(H, A, B, C, D, E, F, G, this->data[14]);
+    ROUND(G, H, A, B, C, D, E, F, this->data[15]);
+    ROUND(F, G, H, A, B, C, D, E, this->data[16]);
+    ROUND(E, F, G, H, A, B, C, D, this->data[17]);
+    ROUND(D, E, F, G, H, A, B, C, this->data[18]);
+    W16 = this->data[19] + W0;
+    ROUND(C, D, E, F, G, H, A, B, k[16] + W16);
+    W17 = this->data[20];
+    ROUND(B, C, D, E, F, G, H, A, k[17] + W17);
+    W18 = this->data[21] + sigma1(W16);
+    ROUND(A, B, C, D, E, F, G, H, k[18] + W18);
+    W19 = this->data[22];
+    ROUND(H, A, B, C, D, E, F, G, k[19] + W19);
+    W20 = this->data[23] + sigma1(W18);
+    ROUND(G, H, A, B, C, D, E, F, k[20] + W20);
+    W21 = this->data[24];
+    ROUND(F, G, H, A, B, C, D, E, k[21] + W21);
+    W22 = this->data[25] + sigma1(W20);
+    ROUND(E, F, G, H, A, B, C, D, k[22] + W22);
+    W23 = this->data[26] + W16;
+    ROUND(D, E, F, G, H, A, B, C, k[23] + W23);
+    W24 = this->data[27] + sigma1(W22);
+    ROUND(C, D, E, F, G, H, A, B, k[24] + W24);
+    W25 = this->data[28] + sigma1(W23) + W18;
+    ROUND(B, C, D, E, F, G, H, A, k[25] + W25);
+    W26 = this->data[29] + sigma1(W24);
+    ROUND(A, B, C, D, E, F, G, H, k[26] + W26);
+    W27 = this->data[30] + sigma1(W25) + W20;
+    ROUND(H, A, B, C, D, E, F, G, k[27] + W27);
+    W28 = this->data[31] + sigma1(W26);
+    ROUND(G, H, A, B, C, D, E, F, k[28] + W28);
+    W29 = this->data[32] + sigma1(W27) + W22;
+    ROUND(F, G, H, A, B, C, D, E, k[29] + W29);
+    W30 = this->data[33] + sigma1(W28) + W23;
+    ROUND(E, F, G, H, A, B, C, D, k[30] + W30);
+    W31 = this->data[34] + sigma1(W29) + W24 + sigma0(W16);
+    ROUND(D, E, F, G, H, A, B, C, k[31] + W31);
+    W32 = sigma1(W30) + W25 + sigma0(W17) + W16;
+    ROUND(C, D, E, F, G, H, A, B, k[32] + W32);
+    W33 = sigma1(W31) + W26 + sigma0(W18) + W17;
+    ROUND(B, C, D, E, F, G, H, A, k[33] + W33);
+    W34 = sigma1(W32) + W27 + sigma0(W19) + W18;
+    ROUND(A, B, C, D, E, F, G, H, k[34] + W34);
+    W35 = sigma1(W33) + W28 + sigma0(W20) + W19;
+    ROUND(H, A, B, C, D, E, F, G, k[35] + W35);
+    W36 = sigma1(W34) + W29 + sigma0(W21) + W20;
+    ROUND(G, H, A, B, C, D, E, F, k[36] + W36);
+    W37 = sigma1(W35) + W30 + sigma0(W22) + W21;
+    ROUND(F, G, H, A, B, C, D, E, k[37] + W37);
+    W38 = sigma1(W36) + W31 + sigma0(W23) + W22;
+    ROUND(E, F, G, H, A, B, C, D, k[38] + W38);
+    W39 = sigma1(W37) + W32 + sigma0(W24) + W23;
+    ROUND(D, E, F, G, H, A, B, C, k[39] + W39);
+    W40 = sigma1(W38) + W33 + sigma0(W25) + W24;
+    ROUND(C, D, E, F, G, H, A, B, k[40] + W40);
+    W41 = sigma1(W39) + W34 + sigma0(W26) + W25;
+    ROUND(B, C, D, E, F, G, H, A, k[41] + W41);
+    W42 = sigma1(W40) + W35 + sigma0(W27) + W26;
+    ROUND(A, B, C, D, E, F, G, H, k[42] + W42);
+    W43 = sigma1(W41) + W36 + sigma0(W28) + W27;
+    ROUND(H, A, B, C, D, E, F, G, k[43] + W43);
+    W44 = sigma1(W42) + W37 + sigma0(W29) + W28;
+    ROUND(G, H, A, B, C, D, E, F, k[44] + W44);
+    W45 = sigma1(W43) + W38 + sigma0(W30) + W29;
+    ROUND(F, G, H, A, B, C, D, E, k[45] + W45);
+    W46 = sigma1(W44) + W39 + sigma0(W31) + W30;
+    ROUND(E, F, G, H, A, B, C, D, k[46] + W46);
+    W47 = sigma1(W45) + W40 + sigma0(W32) + W31;
+    ROUND(D, E, F, G, H, A, B, C, k[47] + W47);
+    W48 = sigma1(W46) + W41 + sigma0(W33) + W32;
+    ROUND(C, D, E, F, G, H, A, B, k[48] + W48);
+    W49 = sigma1(W47) + W42 + sigma0(W34) + W33;
+    ROUND(B, C, D, E, F, G, H, A, k[49] + W49);
+    W50 = sigma1(W48) + W43 + sigma0(W35) + W34;
+    ROUND(A, B, C, D, E, F, G, H, k[50] + W50);
+    W51 = sigma1(W49) + W44 + sigma0(W36) + W35;
+    ROUND(H, A, B, C, D, E, F, G, k[51] + W51);
+    W52 = sigma1(W50) + W45 + sigma0(W37) + W36;
+    ROUND(G, H, A, B, C, D, E, F, k[52] + W52);
+    W53 = sigma1(W51) + W46 + sigma0(W38) + W37;
+    ROUND(F, G, H, A, B, C, D, E, k[53] + W53);
+    W54 = sigma1(W52) + W47 + sigma0(W39) + W38;
+    ROUND(E, F, G, H, A, B, C, D, k[54] + W54);
+    W55 = sigma1(W53) + W48 + sigma0(W40) + W39;
+    ROUND(D, E, F, G, H, A, B, C, k[55] + W55);
+    W56 = sigma1(W54) + W49 + sigma0(W41) + W40;
+    ROUND(C, D, E, F, G, H, A, B, k[56] + W56);
+    W57 = sigma1(W55) + W50 + sigma0(W42) + W41;
+    ROUND(B, C, D, E, F, G, H, A, k[57] + W57);
+    W58 = sigma1(W56) + W51 + sigma0(W43) + W42;
+    ROUND(A, B, C, D, E, F, G, H, k[58] + W58);
+    W59 = sigma1(W57) + W52 + sigma0(W44) + W43;
+    ROUND(H, A, B, C, D, E, F, G, k[59] + W59);
+    W60 = sigma1(W58) + W53 + sigma0(W45) + W44;
+    ROUND(G, H, A, B, C, D, E, F, k[60] + W60);
+    W61 = sigma1(W59) + W54 + sigma0(W46) + W45;
+    ROUND(F, G, H, A, B, C, D, E, k[61] + W61);
+    W62 = sigma1(W60) + W55 + sigma0(W47) + W46;
+    ROUND(E, F, G, H, A, B, C, D, k[62] + W62);
+    W63 = sigma1(W61) + W56 + sigma0(W48) + W47;
+    ROUND(D, E, F, G, H, A, B, C, k[63] + W63);
     //
     // Finish the digest
     //
-    A += 0x6A09E667;
-    B += 0xBB67AE85;
-    C += 0x3C6EF372;
-    D += 0xA54FF53A;
-    E += 0x510E527F;
-    F += 0x9B05688C;
-    G += 0x1F83D9AB;
-    H += 0x5BE0CD19;
+    C += 0x6A09E667;
+    D += 0xBB67AE85;
+    E += 0x3C6EF372;
+    F += 0xA54FF53A;
+    G += 0x510E527F;
+    H += 0x9B05688C;
+    A += 0x1F83D9AB;
+    B += 0x5BE0CD19;
     //
     // Save the digest if it satisfies the target.  Note that the digest and the target are
     // treated as 32-byte unsigned numbers in little-endian format when performing the comparison.
@@ -127,7 +251,7 @@ static void hash(This *this) {
     uchar bytes[4];
     int i, j;
     for (i=7; i>=0 && keepChecking!=0; i--) {
-        check = (i==0 ? A : i==1 ? B : i==2 ? C : i==3 ? D : i==4 ? E : i==5 ? F : i==6 ? G : H);
+        check = (i==0 ? C : i==1 ? D : i==2 ? E : i==3 ? F : i==4 ? G : i==5 ? H : i==6 ? A : B);
         bytes[3] = (uchar)(check&0xff);
         bytes[2] = (uchar)((check>>8)&0xff);
         bytes[1] = (uchar)((check>>16)&0xff);
@@ -145,14 +269,15 @@ static void hash(This *this) {
       //
       // Save the nonce (the SHA-256 algorithm is big-endian)
       //
-      this->solution[0] = (uchar)(input[0]>>24);
-      this->solution[1] = (uchar)(input[0]>>16);
-      this->solution[2] = (uchar)(input[0]>>8);
-      this->solution[3] = (uchar)input[0];
-      this->solution[4] = (uchar)(input[1]>>24);
-      this->solution[5] = (uchar)(input[1]>>16);
-      this->solution[6] = (uchar)(input[1]>>8);
-      this->solution[7] = (uchar)input[1];
+      uint W1 = this->data[1];
+      this->solution[0] = (uchar)(W0>>24);
+      this->solution[1] = (uchar)(W0>>16);
+      this->solution[2] = (uchar)(W0>>8);
+      this->solution[3] = (uchar)W0;
+      this->solution[4] = (uchar)(W1>>24);
+      this->solution[5] = (uchar)(W1>>16);
+      this->solution[6] = (uchar)(W1>>8);
+      this->solution[7] = (uchar)W1;
    }
 }
 
@@ -166,9 +291,9 @@ __kernel void run(__global uchar  *kernelData,
     //
     This thisStruct;
     This* this=&thisStruct;
-    this->input = kernelData+0;
-    this->target = kernelData+64;
-    this->solution = kernelData+96;
+    this->data = (__global uint *)kernelData;
+    this->target = kernelData+140;
+    this->solution = kernelData+172;
     this->passId = passId;
     //
     // Hash the input data
@@ -21,7 +21,8 @@
  * from http://keccak.noekeon.org/
  *
  * The code has been optimized for SHA3-256 with rate=1088 and capacity=512.
- * It will not work for any other values.
+ * It will not work for any other values.  The first round is precomputed for
+ * the input data by the host.
  */
 
 /** Addition Java<->C definitions */
@@ -54,6 +55,7 @@ typedef struct This_s {
     __global uchar * input;         /* Input data */
     __global ulong * target;        /* Hash target */
     __global ulong * solution;      /* Solution nonce */
+    __global ulong * round0;        /* Precomputed first round lanes */
              int     passId;        /* Pass identifier */
 } This;
 
@@ -74,117 +76,159 @@ static void hash(This *this);
  * @param       this                Kernel data
  */
 static void hash(This *this) {
-    ULONG state[25];
-    //
-    // Initialize the state from the input data
-    //
-    int i;
-    for (i=0; i<5; i++)
-        state[i] =  ((ULONG)this->input[i*8+0]&0xff)      | (((ULONG)this->input[i*8+1]&0xff)<<8) |
-                   (((ULONG)this->input[i*8+2]&0xff)<<16) | (((ULONG)this->input[i*8+3]&0xff)<<24) |
-                   (((ULONG)this->input[i*8+4]&0xff)<<32) | (((ULONG)this->input[i*8+5]&0xff)<<40) |
-                   (((ULONG)this->input[i*8+6]&0xff)<<48) | (((ULONG)this->input[i*8+7]&0xff)<<56);
-    for (i=5; i<25; i++)
-        state[i] = 0;
-    state[5]  = 0x0000000000000001UL;
-    state[16] = 0x8000000000000000UL;
     //
     // The nonce is stored in the first 8 bytes of the input data in little-endian format.
     // We will modify the nonce based on our global and pass identifiers.
     //
-    ULONG nonce = state[0] += (ULONG)get_global_id(0) + ((ULONG)this->passId<<32);
+    ULONG nonce = (((ULONG)this->input[0]&0xff)      | (((ULONG)this->input[1]&0xff)<<8) |
+                  (((ULONG)this->input[2]&0xff)<<16) | (((ULONG)this->input[3]&0xff)<<24) |
+                  (((ULONG)this->input[4]&0xff)<<32) | (((ULONG)this->input[5]&0xff)<<40) |
+                  (((ULONG)this->input[6]&0xff)<<48) | (((ULONG)this->input[7]&0xff)<<56)) +
+                  (ULONG)get_global_id(0) + (ULONG)this->passId*(ULONG)get_global_size(0);
+    ULONG c0, c1, c2, c3, c4;
+    //
+    // Perform the first round using the lanes precomputed for the input data.  Only the
+    // lanes that depend on the nonce need to be updated before the chi and iota steps.
+    //
+    c0 = this->round0[0] ^ nonce;
+    c1 = this->round0[1] ^ rotateLeft(nonce, 44);
+    c2 = this->round0[2];
+    c3 = this->round0[3];
+    c4 = this->round0[4] ^ rotateLeft(nonce, 15);
+    ULONG state0 = c0 ^ (~c1 & c2) ^ KeccakRoundConstants[0];
+    ULONG state1 = c1 ^ (~c2 & c3);
+    ULONG state2 = c2 ^ (~c3 & c4);
+    ULONG state3 = c3 ^ (~c4 & c0);
+    ULONG state4 = c4 ^ (~c0 & c1);
+
+    c0 = this->round0[5];
+    c1 = this->round0[6] ^ rotateLeft(nonce, 21);
+    c2 = this->round0[7];
+    c3 = this->round0[8] ^ rotateLeft(nonce, 45);
+    c4 = this->round0[9];
+    ULONG state5 = c0 ^ (~c1 & c2);
+    ULONG state6 = c1 ^ (~c2 & c3);
+    ULONG state7 = c2 ^ (~c3 & c4);
+    ULONG state8 = c3 ^ (~c4 & c0);
+    ULONG state9 = c4 ^ (~c0 & c1);
+
+    c0 = this->round0[10] ^ rotateLeft(nonce, 1);
+    c1 = this->round0[11];
+    c2 = this->round0[12];
+    c3 = this->round0[13] ^ rotateLeft(nonce, 9);
+    c4 = this->round0[14];
+    ULONG state10 = c0 ^ (~c1 & c2);
+    ULONG state11 = c1 ^ (~c2 & c3);
+    ULONG state12 = c2 ^ (~c3 & c4);
+    ULONG state13 = c3 ^ (~c4 & c0);
+    ULONG state14 = c4 ^ (~c0 & c1);
+
+    c0 = this->round0[15] ^ rotateLeft(nonce, 28);
+    c1 = this->round0[16];
+    c2 = this->round0[17] ^ rotateLeft(nonce, 10);
+    c3 = this->round0[18];
+    c4 = this->round0[19];
+    ULONG state15 = c0 ^ (~c1 & c2);
+    ULONG state16 = c1 ^ (~c2 & c3);
+    ULONG state17 = c2 ^ (~c3 & c4);
+    ULONG state18 = c3 ^ (~c4 & c0);
+    ULONG state19 = c4 ^ (~c0 & c1);
+
+    c0 = this->round0[20];
+    c1 = this->round0[21];
+    c2 = this->round0[22] ^ rotateLeft(nonce, 40);
+    c3 = this->round0[23];
+    c4 = this->round0[24] ^ rotateLeft(nonce, 2);
+    ULONG state20 = c0 ^ (~c1 & c2);
+    ULONG state21 = c1 ^ (~c2 & c3);
+    ULONG state22 = c2 ^ (~c3 & c4);
+    ULONG state23 = c3 ^ (~c4 & c0);
+    ULONG state24 = c4 ^ (~c0 & c1);
     //
-    // Perform the Keccak permutations
+    // Perform the remaining Keccak permutations
     //
-    for (i=0; i<24; i++) {
-            // theta(state)
-        ULONG C[5], dX;
-        C[0] = state[0] ^ state[5] ^ state[10] ^ state[15] ^ state[20];
-        C[1] = state[1] ^ state[6] ^ state[11] ^ state[16] ^ state[21];
-        C[2] = state[2] ^ state[7] ^ state[12] ^ state[17] ^ state[22];
-        C[3] = state[3] ^ state[8] ^ state[13] ^ state[18] ^ state[23];
-        C[4] = state[4] ^ state[9] ^ state[14] ^ state[19] ^ state[24];
-        dX = rotateLeft(C[1], 1) ^ C[4];
-        state[0] ^= dX;  state[5] ^= dX;  state[10] ^= dX;  state[15] ^= dX;  state[20] ^= dX;
-        dX = rotateLeft(C[2], 1) ^ C[0];
-        state[1] ^= dX;  state[6] ^= dX;  state[11] ^= dX;  state[16] ^= dX;  state[21] ^= dX;
-        dX = rotateLeft(C[3], 1) ^ C[1];
-        state[2] ^= dX;  state[7] ^= dX;  state[12] ^= dX;  state[17] ^= dX;  state[22] ^= dX;
-        dX = rotateLeft(C[4], 1) ^ C[2];
-        state[3] ^= dX;  state[8] ^= dX;  state[13] ^= dX;  state[18] ^= dX;  state[23] ^= dX;
-        dX = rotateLeft(C[0], 1) ^ C[3];
-        state[4] ^= dX;  state[9] ^= dX;  state[14] ^= dX;  state[19] ^= dX;  state[24] ^= dX;
-            // rho(state)
-        //state[0] = rotateLeft(state[0], 0);
-        state[5] = rotateLeft(state[5], 36);
-        state[10] = rotateLeft(state[10], 3);
-        state[15] = rotateLeft(state[15], 41);
-        state[20] = rotateLeft(state[20], 18);
+    int i;
+    for (i=1; i<24; i++) {
+        ULONG t0 = state0 ^ state5 ^ state10 ^ state15 ^ state20;
+        ULONG t1 = state1 ^ state6 ^ state11 ^ state16 ^ state21;
+        ULONG t2 = state2 ^ state7 ^ state12 ^ state17 ^ state22;
+        ULONG t3 = state3 ^ state8 ^ state13 ^ state18 ^ state23;
+        ULONG t4 = state4 ^ state9 ^ state14 ^ state19 ^ state24;
+        
+        ULONG u0 = t0 ^ rotateLeft(t2, 1);
+        ULONG w0 = rotateLeft(state6 ^ u0, 44);
+        ULONG u1 = t1 ^ rotateLeft(t3, 1);
+        ULONG w1 = rotateLeft(state7 ^ u1, 6);
+        ULONG u2 = t2 ^ rotateLeft(t4, 1);
+        ULONG w2 = rotateLeft(state8 ^ u2, 55);
+        ULONG u3 = t3 ^ rotateLeft(t0, 1);
+        ULONG w3 = rotateLeft(state9 ^ u3, 20);
+        ULONG u4 = t4 ^ rotateLeft(t1, 1);
+        
+        t0 = state0 ^ u4;
+        t1 = rotateLeft(state1 ^ u0, 1);
+        t2 = rotateLeft(state2 ^ u1, 62);
+        t3 = rotateLeft(state3 ^ u2, 28);
+        t4 = rotateLeft(state4 ^ u3, 27);
         
-        state[1] = rotateLeft(state[1], 1);
-        state[6] = rotateLeft(state[6], 44);
-        state[11] = rotateLeft(state[11], 10);
-        state[16] = rotateLeft(state[16], 45);
-        state[21] = rotateLeft(state[21], 2);
+        state2 = rotateLeft(state12 ^ u1, 43);
+        state0 = t0 ^ (~w0 & state2) ^ KeccakRoundConstants[i];
+        state3 = rotateLeft(state18 ^ u2, 21);
+        state1 = w0 ^ (~state2 & state3);
+        state4 = rotateLeft(state24 ^ u3, 14);
+        state2 ^= (~state3 & state4);
+        state3 ^= (~state4 & t0);
+        state4 ^= (~t0 & w0);
         
-        state[2] = rotateLeft(state[2], 62);
-        state[7] = rotateLeft(state[7], 6);
-        state[12] = rotateLeft(state[12], 43);
-        state[17] = rotateLeft(state[17], 15);
-        state[22] = rotateLeft(state[22], 61);
+        w0 = rotateLeft(state5 ^ u4, 36);
+        state7 = rotateLeft(state10 ^ u4, 3);
+        state5 = t3 ^ (~w3 & state7);
+        state8 = rotateLeft(state16 ^ u0, 45);
+        state6 = w3 ^ (~state7 & state8);
+        state9 = rotateLeft(state22 ^ u1, 61);
+        state7 ^= (~state8 & state9);
+        state8 ^= (~state9 & t3);
+        state9 ^= (~t3 & w3);
         
-        state[3] = rotateLeft(state[3], 28);
-        state[8] = rotateLeft(state[8], 55);
-        state[13] = rotateLeft(state[13], 25);
-        state[18] = rotateLeft(state[18], 21);
-        state[23] = rotateLeft(state[23], 56);
+        w3 = state11 ^ u0;
+        t3 = state14 ^ u3;
+        state12 = rotateLeft(state13 ^ u2, 25);
+        state10 = t1 ^ (~w1 & state12);
+        state13 = rotateLeft(state19 ^ u3, 8);
+        state11 = w1 ^ (~state12 & state13);
+        state14 = rotateLeft(state20 ^ u4, 18);
+        state12 ^= (~state13 & state14);
+        state13 ^= (~state14 & t1);
+        state14 ^= (~t1 & w1);
         
-        state[4] = rotateLeft(state[4], 27);
-        state[9] = rotateLeft(state[9], 20);
-        state[14] = rotateLeft(state[14], 39);
-        state[19] = rotateLeft(state[19], 8);
-        state[24] = rotateLeft(state[24], 14);
-            // pi(state)
-        ULONG tempA[25];
-        tempA[0]  = state[0];  tempA[1]  = state[1];  tempA[2]  = state[2];  tempA[3]  = state[3];  tempA[4]  = state[4];
-        tempA[5]  = state[5];  tempA[6]  = state[6];  tempA[7]  = state[7];  tempA[8]  = state[8];  tempA[9]  = state[9];
-        tempA[10] = state[10]; tempA[11] = state[11]; tempA[12] = state[12]; tempA[13] = state[13]; tempA[14] = state[14];
-        tempA[15] = state[15]; tempA[16] = state[16]; tempA[17] = state[17]; tempA[18] = state[18]; tempA[19] = state[19];
-        tempA[20] = state[20]; tempA[21] = state[21]; tempA[22] = state[22]; tempA[23] = state[23]; tempA[24] = state[24];
+        t1 = state15 ^ u4;
+        w1 = state17 ^ u1;
+        state17 = rotateLeft(w3, 10);
+        state15 = t4 ^ (~w0 & state17);
+        state18 = rotateLeft(w1, 15);
+        state16 = w0 ^ (~state17 & state18);
+        state19 = rotateLeft(state23 ^ u2, 56);
+        state17 ^= (~state18 & state19);
+        state18 ^= (~state19 & t4);
+        state19 ^= (~t4 & w0);
         
-        state[0]  = tempA[0]; state[16] = tempA[5]; state[7]  = tempA[10]; state[23] = tempA[15]; state[14] = tempA[20];
-        state[10] = tempA[1]; state[1]  = tempA[6]; state[17] = tempA[11]; state[8]  = tempA[16]; state[24] = tempA[21];
-        state[20] = tempA[2]; state[11] = tempA[7]; state[2]  = tempA[12]; state[18] = tempA[17]; state[9]  = tempA[22];
-        state[5]  = tempA[3]; state[21] = tempA[8]; state[12] = tempA[13]; state[3]  = tempA[18]; state[19] = tempA[23];
-        state[15] = tempA[4]; state[6]  = tempA[9]; state[22] = tempA[14]; state[13] = tempA[19]; state[4]  = tempA[24];
-            // chi(state)
-        ULONG chiC[5];
-        int y;
-        for (y=0; y<5; y++) {
-            chiC[0] = state[0+5*y] ^ ((~state[1+5*y]) & state[2+5*y]);
-            chiC[1] = state[1+5*y] ^ ((~state[2+5*y]) & state[3+5*y]);
-            chiC[2] = state[2+5*y] ^ ((~state[3+5*y]) & state[4+5*y]);
-            chiC[3] = state[3+5*y] ^ ((~state[4+5*y]) & state[0+5*y]);
-            chiC[4] = state[4+5*y] ^ ((~state[0+5*y]) & state[1+5*y]);
-            state[0+5*y] = chiC[0];  state[1+5*y] = chiC[1];  state[2+5*y] = chiC[2];
-            state[3+5*y] = chiC[3];  state[4+5*y] = chiC[4];
-        }
-            // iota(state, i)
-        state[0] ^= KeccakRoundConstants[i];
-    }
+        w3 = state21 ^ u0;
+        state22 = rotateLeft(t3, 39);
+        state20 = t2 ^ (~w2 & state22);
+        state23 = rotateLeft(t1, 41);
+        state21 = w2 ^ (~state22 & state23);
+        state24 = rotateLeft(w3, 2);
+        state22 ^= (~state23 & state24);
+        state23 ^= (~state24 & t2);
+        state24 ^= (~t2 & w2);
+    }    
     //
     // Check if we met the target
     //
-    BOOLEAN isSolved = TRUE;
-    BOOLEAN keepChecking = TRUE;
-    for (i=3; i>=0 && keepChecking; i--) {
-        if (state[i] < this->target[i]) {
-            keepChecking = FALSE;
-        } else if (state[i] > this->target[i]) {
-            isSolved = FALSE;
-            keepChecking = FALSE;
-        }
-    }
+    BOOLEAN isSolved = (state3<this->target[3] ? TRUE : state3>this->target[3] ? FALSE :
+                        state2<this->target[2] ? TRUE : state2>this->target[2] ? FALSE :
+                        state1<this->target[1] ? TRUE : state1>this->target[1] ? FALSE :
+                        state0<this->target[0] ? TRUE : state0>this->target[0] ? FALSE : TRUE);
     //
     // Return the nonce if we met the target
     //
@@ -205,6 +249,7 @@ __kernel void run(__global uchar  *kernelData,
     this->input = kernelData+0;
     this->target = (__global ulong *)(kernelData+40);
     this->solution = (__global ulong *)(kernelData+72);
+    this->round0 = (__global ulong *)(kernelData+80);
     this->passId = passId;
     //
     // Hash the input data